@@ -0,0 +1,40 @@
+package org.molgenis.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Main class for running the JMH benchmarks from command-line, writing the
+ * results as JSON.
+ */
+public class Main
+{
+    public static void main(String args[]) throws Exception
+    {
+        /*
+         * Print help if incorrect number of arguments are given
+         */
+        if(args.length < 1)
+        {
+            System.out.println("Please supply 1 or more arguments:");
+            System.out.println("- Output file location for the results in JSON.");
+            System.out.println("- [optional] Regular expressions selecting the " +
+                    "benchmarks to run, e.g. HelperBenchmark. Default: all.");
+            System.exit(0);
+        }
+
+        /*
+         * Run the selected benchmarks
+         */
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .resultFormat(ResultFormatType.JSON)
+                .result(args[0]);
+        for(int i = 1; i < args.length; i++)
+        {
+            options.include(args[i]);
+        }
+        new Runner(options.build()).run();
+    }
+}
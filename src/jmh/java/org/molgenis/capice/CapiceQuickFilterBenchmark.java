@@ -0,0 +1,83 @@
+package org.molgenis.capice;
+
+import org.molgenis.capicegenerator.VcfGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end benchmark of CapiceQuickFilter.run() on a generated VCF, per
+ * number of samples, CSQ transcripts and threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CapiceQuickFilterBenchmark {
+
+    @Param({"20000"})
+    public int variants;
+
+    @Param({"10", "100", "1000"})
+    public int samples;
+
+    @Param({"1", "5"})
+    public int transcripts;
+
+    @Param({"1"})
+    public int threads;
+
+    private File directory;
+    private File input;
+    private File output;
+
+    @Setup(Level.Trial)
+    public void writeInput() throws Exception
+    {
+        directory = Files.createTempDirectory("capice-quick-filter-benchmark").toFile();
+        input = new File(directory, "input.vcf.gz");
+        output = new File(directory, "output.vcf");
+        VcfGenerator generator = new VcfGenerator(input, variants, samples);
+        generator.setTranscripts(transcripts);
+        generator.run();
+    }
+
+    @Setup(Level.Invocation)
+    public void removeOutput()
+    {
+        output.delete();
+    }
+
+    @Benchmark
+    public void run() throws Exception
+    {
+        CapiceQuickFilter cqf = new CapiceQuickFilter(input, output, 0.2, 0.05, "S0", Arrays.asList("S1", "S2"));
+        cqf.setThreads(threads);
+        cqf.run();
+    }
+
+    @TearDown(Level.Trial)
+    public void removeFiles()
+    {
+        input.delete();
+        output.delete();
+        directory.delete();
+    }
+}
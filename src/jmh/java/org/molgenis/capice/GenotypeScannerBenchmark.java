@@ -0,0 +1,81 @@
+package org.molgenis.capice;
+
+import org.molgenis.capicegenerator.VcfGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmarks of the scalar and vectorized GenotypeScanner: decoding
+ * the genotypes of all samples of a generated line, and checking the
+ * controls, i.e. all samples but the first. The vectorized scanner is run
+ * in a JVM with the Vector API module.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class GenotypeScannerBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int samples;
+
+    @Param({"scalar", "vector"})
+    public String scanner;
+
+    private byte[] line;
+    private GenotypeDecoder decoder;
+    private byte[] altCounts;
+    private int[] controlSlots;
+
+    @Setup
+    public void setup()
+    {
+        line = new VcfGenerator(null, 1, samples).getLine(0).getBytes(StandardCharsets.ISO_8859_1);
+        List<Integer> all = new ArrayList<>();
+        for(int i = 0; i < samples; i++)
+        {
+            all.add(i);
+        }
+        decoder = new GenotypeDecoder(samples, all);
+        GenotypeScanner best = GenotypeScanner.get();
+        if(scanner.equals("vector") && !best.isVectorized())
+        {
+            throw new IllegalStateException("Vector API not available, is VectorGenotypeScanner compiled in?");
+        }
+        decoder.useScanner(scanner.equals("vector") ? best : new GenotypeScanner());
+        altCounts = decoder.decode(line, 0, line.length);
+        controlSlots = new int[samples - 1];
+        for(int i = 0; i < controlSlots.length; i++)
+        {
+            controlSlots[i] = i + 1;
+        }
+    }
+
+    @Benchmark
+    public byte[] decode()
+    {
+        return decoder.decode(line, 0, line.length);
+    }
+
+    @Benchmark
+    public int controlFlags()
+    {
+        return decoder.getScanner().controlFlags(altCounts, controlSlots);
+    }
+}
@@ -0,0 +1,112 @@
+package org.molgenis.capice;
+
+import org.molgenis.capicegenerator.VcfGenerator;
+import org.molgenis.vcf.VcfRecord;
+import org.molgenis.vcf.meta.VcfMeta;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmarks of the Helper functions on generated VEP annotated
+ * records, per number of CSQ transcripts or samples.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HelperBenchmark {
+
+    /**
+     * A record with this many CSQ transcripts and a few samples.
+     */
+    @State(Scope.Benchmark)
+    public static class Annotated
+    {
+        @Param({"1", "5", "20"})
+        public int transcripts;
+
+        VcfRecord record;
+        CsqExtractor csq;
+
+        @Setup
+        public void setup()
+        {
+            VcfGenerator generator = new VcfGenerator(null, 1, 3);
+            generator.setTranscripts(transcripts);
+            String line = generator.getLine(0);
+            record = new VcfRecord(new VcfMeta(), line.split("\t", -1));
+            csq = new CsqExtractor(Arrays.asList(VcfGenerator.CSQ_FORMAT.split("\\|")), CsqExtractor.SYMBOL, CsqExtractor.GNOMAD_AF);
+        }
+    }
+
+    /**
+     * A line with this many samples, of which three are retained.
+     */
+    @State(Scope.Benchmark)
+    public static class Genotyped
+    {
+        @Param({"10", "100", "1000"})
+        public int samples;
+
+        String line;
+        List<Integer> indices;
+
+        @Setup
+        public void setup()
+        {
+            line = new VcfGenerator(null, 1, samples).getLine(0);
+            indices = Arrays.asList(0, samples / 2, samples - 1);
+        }
+    }
+
+    @Benchmark
+    public Double getHighestCapice(Annotated state)
+    {
+        return Helper.getHighestCapice(state.record.getInformation().iterator());
+    }
+
+    @Benchmark
+    public Double getLowestGnomAD(Annotated state)
+    {
+        return Helper.getLowestGnomAD(state.record.getInformation().iterator(), state.csq);
+    }
+
+    @Benchmark
+    public Set<String> getGenes(Annotated state)
+    {
+        return Helper.getGenes(state.record.getInformation().iterator(), state.csq);
+    }
+
+    @Benchmark
+    public int[] getGeneIds(Annotated state)
+    {
+        return Helper.getGeneIds(state.record.getInformation().iterator(), state.csq);
+    }
+
+    @Benchmark
+    public boolean isAutosomal(Annotated state)
+    {
+        return Helper.isAutosomal(state.record);
+    }
+
+    @Benchmark
+    public String retainIndices(Genotyped state)
+    {
+        return Helper.retainIndices(state.line, state.indices);
+    }
+}
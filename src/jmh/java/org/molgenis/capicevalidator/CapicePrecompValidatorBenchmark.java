@@ -0,0 +1,68 @@
+package org.molgenis.capicevalidator;
+
+import org.molgenis.capicegenerator.PrecompGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end benchmark of CapicePrecompValidator.run() on a generated
+ * precomputed CAPICE SNV file, serial and in parallel chunks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CapicePrecompValidatorBenchmark {
+
+    @Param({"200000"})
+    public int positionsPerChrom;
+
+    @Param({"5"})
+    public int chromosomes;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private File input;
+
+    @Setup(Level.Trial)
+    public void writeInput() throws Exception
+    {
+        input = Files.createTempFile("capice-precomputed-benchmark", ".tsv.gz").toFile();
+        PrecompGenerator generator = new PrecompGenerator(input);
+        generator.setChromosomes(chromosomes);
+        generator.setChromLength(positionsPerChrom);
+        generator.run();
+    }
+
+    @Benchmark
+    public void run() throws Exception
+    {
+        CapicePrecompValidator cpv = new CapicePrecompValidator(input);
+        cpv.setThreads(threads);
+        cpv.run();
+    }
+
+    @TearDown(Level.Trial)
+    public void removeInput()
+    {
+        input.delete();
+    }
+}
@@ -0,0 +1,156 @@
+package org.molgenis.capice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes output on a background thread, so that filtering does not wait
+ * for disk I/O. Bytes for any number of streams are written in the order
+ * in which they were queued. The queue is bounded, so a slow disk slows
+ * down filtering instead of filling up memory. Whenever the queue runs
+ * empty, the streams written to are flushed, so rare candidates show up in
+ * the output right away instead of waiting in a buffer. The time spent
+ * writing is measured as a stage of the StageMetrics.
+ */
+class BackgroundWriter implements Closeable {
+
+    /*
+     * Static variables
+     */
+    private static final int QUEUE_SIZE = 4096;
+
+    /**
+     * Bytes queued for a stream, or NULL bytes to close the stream. A NULL
+     * stream signals the end.
+     */
+    private static class Item
+    {
+        final OutputStream out;
+        final byte[] data;
+
+        Item(OutputStream out, byte[] data)
+        {
+            this.out = out;
+            this.data = data;
+        }
+    }
+
+    /*
+     * Class variables
+     */
+    private BlockingQueue<Item> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private Set<OutputStream> unflushed = Collections.newSetFromMap(new IdentityHashMap<>());
+    private Thread thread;
+    private volatile IOException error;
+    private StageMetrics.Stage output;
+
+    /*
+     * Constructor, starts the writer thread
+     */
+    BackgroundWriter(StageMetrics.Stage output) {
+        this.output = output;
+        this.thread = new Thread(this::drain, "capice-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void drain()
+    {
+        try {
+            while(true)
+            {
+                Item item = queue.take();
+                if(item.out == null)
+                {
+                    return;
+                }
+                if(error == null)
+                {
+                    long start = output.start();
+                    long startAllocation = output.startAllocation();
+                    try {
+                        if(item.data == null)
+                        {
+                            unflushed.remove(item.out);
+                            item.out.close();
+                        }
+                        else
+                        {
+                            item.out.write(item.data);
+                            unflushed.add(item.out);
+                        }
+                        if(queue.isEmpty())
+                        {
+                            for(OutputStream out : unflushed)
+                            {
+                                out.flush();
+                            }
+                            unflushed.clear();
+                        }
+                        output.stop(start, startAllocation, 0, item.data == null ? 0 : item.data.length);
+                    } catch(IOException e) {
+                        error = e;
+                    }
+                }
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queue bytes to be written, waiting if the queue is full. The bytes
+     * must not be changed afterwards.
+     */
+    void write(OutputStream out, byte[] data) throws IOException
+    {
+        put(new Item(out, data));
+    }
+
+    /**
+     * Queue closing a stream, after all bytes queued for it so far.
+     */
+    void close(OutputStream out) throws IOException
+    {
+        put(new Item(out, null));
+    }
+
+    private void put(Item item) throws IOException
+    {
+        if(error != null)
+        {
+            throw error;
+        }
+        try {
+            queue.put(item);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing output", e);
+        }
+    }
+
+    /**
+     * Wait until all queued bytes are written.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        put(new Item(null, null));
+        try {
+            thread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing output", e);
+        }
+        if(error != null)
+        {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.molgenis.capice;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a BGZF file one compressed block at a time, without inflating it.
+ * Blocks can then be inflated independently, e.g. on worker threads.
+ */
+public class BgzfBlockReader implements Closeable {
+
+    /*
+     * Size of the fixed part of a gzip member header and of the trailer
+     */
+    private static final int FIXED_HEADER_SIZE = 12;
+    private static final int TRAILER_SIZE = 8;
+
+    /*
+     * Class variables
+     */
+    private RandomAccessFile raf;
+    private long address;
+    private byte[] header = new byte[FIXED_HEADER_SIZE];
+
+    /**
+     * A single compressed BGZF block and where it was found in the file.
+     */
+    public static class Block
+    {
+        final long address;
+        final byte[] data;
+        final int dataOffset;
+        final int dataLength;
+        final int uncompressedSize;
+
+        Block(long address, byte[] data, int dataOffset, int dataLength, int uncompressedSize)
+        {
+            this.address = address;
+            this.data = data;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.uncompressedSize = uncompressedSize;
+        }
+
+        /**
+         * Number of bytes in this block after inflating.
+         */
+        public int getUncompressedSize()
+        {
+            return uncompressedSize;
+        }
+    }
+
+    /*
+     * Constructor
+     */
+    public BgzfBlockReader(File input) throws IOException {
+        this.raf = new RandomAccessFile(input, "r");
+        this.address = 0;
+    }
+
+    /**
+     * Read the next block, or NULL at the end of the file.
+     */
+    public Block next() throws IOException
+    {
+        long blockAddress = address;
+        int read = raf.read(header, 0, 1);
+        if(read == -1)
+        {
+            return null;
+        }
+        raf.readFully(header, 1, FIXED_HEADER_SIZE - 1);
+        if((header[0] & 0xFF) != 31 || (header[1] & 0xFF) != 139 || (header[2] & 0xFF) != 8 || (header[3] & 4) == 0)
+        {
+            throw new IOException("Not a BGZF block at file offset " + blockAddress);
+        }
+
+        /*
+         * Find the BSIZE subfield ('BC') in the extra field
+         */
+        int xlen = (header[10] & 0xFF) | ((header[11] & 0xFF) << 8);
+        byte[] extra = new byte[xlen];
+        raf.readFully(extra);
+        int blockSize = -1;
+        for(int i = 0; i + 4 <= xlen; )
+        {
+            int slen = (extra[i + 2] & 0xFF) | ((extra[i + 3] & 0xFF) << 8);
+            if(extra[i] == 66 && extra[i + 1] == 67 && slen == 2)
+            {
+                blockSize = ((extra[i + 4] & 0xFF) | ((extra[i + 5] & 0xFF) << 8)) + 1;
+            }
+            i += 4 + slen;
+        }
+        if(blockSize == -1)
+        {
+            throw new IOException("BGZF block without BSIZE at file offset " + blockAddress);
+        }
+
+        /*
+         * Read the compressed data plus trailer, ISIZE is in the last 4 bytes
+         */
+        int remaining = blockSize - FIXED_HEADER_SIZE - xlen;
+        byte[] data = new byte[remaining];
+        raf.readFully(data);
+        int uncompressedSize = (data[remaining - 4] & 0xFF) | ((data[remaining - 3] & 0xFF) << 8) | ((data[remaining - 2] & 0xFF) << 16) | ((data[remaining - 1] & 0xFF) << 24);
+        address += blockSize;
+        return new Block(blockAddress, data, 0, remaining - TRAILER_SIZE, uncompressedSize);
+    }
+
+    /**
+     * Continue reading at the block starting at this file offset.
+     */
+    public void seek(long blockAddress) throws IOException
+    {
+        raf.seek(blockAddress);
+        this.address = blockAddress;
+    }
+
+    /**
+     * File offset of the next block to be read.
+     */
+    public long getAddress()
+    {
+        return address;
+    }
+
+    /**
+     * Inflate a block into the destination array at the given offset.
+     * The destination must have room for block.uncompressedSize bytes.
+     */
+    public static void inflate(Block block, Inflater inflater, byte[] dest, int destOffset) throws IOException
+    {
+        inflater.reset();
+        inflater.setInput(block.data, block.dataOffset, block.dataLength);
+        try {
+            int total = 0;
+            while(total < block.uncompressedSize)
+            {
+                int n = inflater.inflate(dest, destOffset + total, block.uncompressedSize - total);
+                if(n == 0 && (inflater.finished() || inflater.needsInput()))
+                {
+                    break;
+                }
+                total += n;
+            }
+            if(total != block.uncompressedSize)
+            {
+                throw new EOFException("BGZF block at file offset " + block.address + " inflated to " + total + " instead of " + block.uncompressedSize + " bytes");
+            }
+        } catch(DataFormatException e) {
+            throw new IOException("Corrupt BGZF block at file offset " + block.address, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        raf.close();
+    }
+}
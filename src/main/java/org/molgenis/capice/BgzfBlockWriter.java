@@ -0,0 +1,121 @@
+package org.molgenis.capice;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses data into BGZF blocks. Each call to write() starts a new
+ * block, so separate parts of a file can be compressed independently, e.g.
+ * on worker threads, and the blocks written one after the other.
+ */
+public class BgzfBlockWriter {
+
+    /*
+     * Static variables
+     */
+    private static final int MAX_BLOCK_SIZE = 65536;
+    private static final int MAX_DATA_SIZE = 65280;
+    private static final int HEADER_SIZE = 18;
+    private static final int TRAILER_SIZE = 8;
+    private static final byte[] EOF_BLOCK = {31, (byte) 139, 8, 4, 0, 0, 0, 0, 0, (byte) 255, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    /*
+     * Class variables
+     */
+    private Deflater deflater;
+    private Deflater storer = new Deflater(Deflater.NO_COMPRESSION, true);
+    private CRC32 crc = new CRC32();
+    private byte[] block = new byte[MAX_BLOCK_SIZE];
+
+    /*
+     * Constructor, with the deflate compression level
+     */
+    public BgzfBlockWriter(int level) {
+        this.deflater = new Deflater(level, true);
+    }
+
+    /**
+     * Compress data[offset] to data[offset + length] (exclusive) into as
+     * many blocks as needed and write them.
+     */
+    public void write(byte[] data, int offset, int length, OutputStream out) throws IOException
+    {
+        for(int start = offset; start < offset + length; start += MAX_DATA_SIZE)
+        {
+            int size = Math.min(MAX_DATA_SIZE, offset + length - start);
+            int compressed = deflate(deflater, data, start, size);
+            if(compressed == -1)
+            {
+                compressed = deflate(storer, data, start, size);
+            }
+            int blockSize = HEADER_SIZE + compressed + TRAILER_SIZE;
+            block[0] = 31;
+            block[1] = (byte) 139;
+            block[2] = 8;
+            block[3] = 4;
+            block[4] = block[5] = block[6] = block[7] = block[8] = 0;
+            block[9] = (byte) 255;
+            block[10] = 6;
+            block[11] = 0;
+            block[12] = 66;
+            block[13] = 67;
+            block[14] = 2;
+            block[15] = 0;
+            writeShort(blockSize - 1, HEADER_SIZE - 2);
+            crc.reset();
+            crc.update(data, start, size);
+            writeInt((int) crc.getValue(), HEADER_SIZE + compressed);
+            writeInt(size, HEADER_SIZE + compressed + 4);
+            out.write(block, 0, blockSize);
+        }
+    }
+
+    /**
+     * Deflate into the block after the header, or return -1 if it does not
+     * fit.
+     */
+    private int deflate(Deflater d, byte[] data, int start, int size)
+    {
+        d.reset();
+        d.setInput(data, start, size);
+        d.finish();
+        int room = MAX_BLOCK_SIZE - HEADER_SIZE - TRAILER_SIZE;
+        int n = 0;
+        while(!d.finished() && n < room)
+        {
+            n += d.deflate(block, HEADER_SIZE + n, room - n);
+        }
+        return d.finished() ? n : -1;
+    }
+
+    private void writeShort(int value, int at)
+    {
+        block[at] = (byte) value;
+        block[at + 1] = (byte) (value >> 8);
+    }
+
+    private void writeInt(int value, int at)
+    {
+        writeShort(value, at);
+        writeShort(value >> 16, at + 2);
+    }
+
+    /**
+     * Write the empty block that marks the end of a BGZF file.
+     */
+    public static void writeEofBlock(OutputStream out) throws IOException
+    {
+        out.write(EOF_BLOCK);
+    }
+
+    /**
+     * Release the deflaters.
+     */
+    public void end()
+    {
+        deflater.end();
+        storer.end();
+    }
+}
@@ -0,0 +1,207 @@
+package org.molgenis.capice;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads lines from a BGZF file as raw bytes, keeping track of the BGZF
+ * virtual offset (compressed block address << 16 | offset within the
+ * inflated block) at which each line starts. Supports seeking to a virtual
+ * offset, e.g. one taken from a tabix index or remembered earlier.
+ * The line bytes are only valid until the next call to next().
+ */
+public class BgzfLineReader implements Closeable {
+
+    /*
+     * Class variables
+     */
+    private BgzfBlockReader blockReader;
+    private Inflater inflater = new Inflater(true);
+    private byte[] block = new byte[65536];
+    private int blockLength = 0;
+    private int blockPos = 0;
+    private long blockAddress = 0;
+    private byte[] lineBuffer = new byte[4096];
+    private byte[] lineData;
+    private int lineStart;
+    private int lineEnd;
+    private long lineOffset;
+    private StageMetrics.Stage decompression;
+
+    /*
+     * Constructor
+     */
+    public BgzfLineReader(File input) throws IOException {
+        this.blockReader = new BgzfBlockReader(input);
+    }
+
+    /**
+     * Measure the inflating of blocks as this stage.
+     */
+    void measure(StageMetrics.Stage decompression)
+    {
+        this.decompression = decompression;
+    }
+
+    /**
+     * Position the reader at a virtual offset. Offsets within the current
+     * block do not need to read and inflate it again, which makes reading
+     * lines in file order by offset cheap.
+     */
+    public void seek(long virtualOffset) throws IOException
+    {
+        if(blockLength > 0 && (virtualOffset >>> 16) == blockAddress)
+        {
+            blockPos = (int) (virtualOffset & 0xFFFF);
+            return;
+        }
+        blockReader.seek(virtualOffset >>> 16);
+        blockLength = 0;
+        blockPos = 0;
+        if(!loadBlock())
+        {
+            return;
+        }
+        blockPos = (int) (virtualOffset & 0xFFFF);
+    }
+
+    /**
+     * Inflate the next non-empty block, returns false at the end of file.
+     */
+    private boolean loadBlock() throws IOException
+    {
+        while(true)
+        {
+            BgzfBlockReader.Block b = blockReader.next();
+            if(b == null)
+            {
+                blockLength = 0;
+                blockPos = 0;
+                return false;
+            }
+            if(b.uncompressedSize == 0)
+            {
+                continue;
+            }
+            if(block.length < b.uncompressedSize)
+            {
+                block = new byte[b.uncompressedSize];
+            }
+            if(decompression == null)
+            {
+                BgzfBlockReader.inflate(b, inflater, block, 0);
+            }
+            else
+            {
+                long start = decompression.start();
+                long startAllocation = decompression.startAllocation();
+                BgzfBlockReader.inflate(b, inflater, block, 0);
+                decompression.stop(start, startAllocation, 1, b.uncompressedSize);
+            }
+            blockAddress = b.address;
+            blockLength = b.uncompressedSize;
+            blockPos = 0;
+            return true;
+        }
+    }
+
+    /**
+     * Advance to the next line. Returns false at the end of the file.
+     */
+    public boolean next() throws IOException
+    {
+        if(blockPos >= blockLength && !loadBlock())
+        {
+            return false;
+        }
+        lineOffset = (blockAddress << 16) | blockPos;
+
+        /*
+         * Common case: the line ends within the current block
+         */
+        int newline = RecordPrefilter.indexOf(block, blockPos, blockLength, (byte) '\n');
+        if(newline < blockLength)
+        {
+            lineData = block;
+            lineStart = blockPos;
+            lineEnd = newline;
+            blockPos = newline + 1;
+            return trimCarriageReturn();
+        }
+
+        /*
+         * Otherwise collect the pieces from consecutive blocks
+         */
+        int length = 0;
+        while(true)
+        {
+            int pieceEnd = RecordPrefilter.indexOf(block, blockPos, blockLength, (byte) '\n');
+            int pieceLength = pieceEnd - blockPos;
+            if(lineBuffer.length < length + pieceLength)
+            {
+                byte[] larger = new byte[Math.max(lineBuffer.length * 2, length + pieceLength)];
+                System.arraycopy(lineBuffer, 0, larger, 0, length);
+                lineBuffer = larger;
+            }
+            System.arraycopy(block, blockPos, lineBuffer, length, pieceLength);
+            length += pieceLength;
+            if(pieceEnd < blockLength)
+            {
+                blockPos = pieceEnd + 1;
+                break;
+            }
+            if(!loadBlock())
+            {
+                break;
+            }
+        }
+        lineData = lineBuffer;
+        lineStart = 0;
+        lineEnd = length;
+        return trimCarriageReturn();
+    }
+
+    private boolean trimCarriageReturn()
+    {
+        if(lineEnd > lineStart && lineData[lineEnd - 1] == '\r')
+        {
+            lineEnd--;
+        }
+        return true;
+    }
+
+    /**
+     * Bytes of the current line, from getLineStart() to getLineEnd().
+     */
+    public byte[] getLineData()
+    {
+        return lineData;
+    }
+
+    public int getLineStart()
+    {
+        return lineStart;
+    }
+
+    public int getLineEnd()
+    {
+        return lineEnd;
+    }
+
+    /**
+     * Virtual offset at which the current line starts.
+     */
+    public long getLineOffset()
+    {
+        return lineOffset;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        inflater.end();
+        blockReader.close();
+    }
+}
@@ -1,16 +1,13 @@
 package org.molgenis.capice;
 
 import net.sf.samtools.util.BlockCompressedInputStream;
-import org.molgenis.genotype.Allele;
+import org.molgenis.capiceindex.CapiceScoreIndex;
 import org.molgenis.vcf.VcfReader;
-import org.molgenis.vcf.VcfRecord;
-import org.molgenis.vcf.VcfSample;
 import org.molgenis.vcf.meta.VcfMeta;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * CapiceQuickFilter tool. With only CAPICE and GnomAD annotations, perform
@@ -28,15 +25,28 @@ public class CapiceQuickFilter {
     private double gnomadThreshold;
     private String caseSampleID;
     private List<String> controlSampleIDs;
+    private File batchFile;
+    private boolean cohort;
+    private int threads = 1;
+    private long regionShardSize = -1;
+    private long geneWindow = -1;
+    private File capiceIndex;
+    private File precomputedScores;
+    private File gnomadFrequencies;
+    private long checkpointInterval = -1;
+    private boolean resume;
+    private File report;
+    private boolean writeSidecar;
+    private boolean sortedOutput;
+    private double[] sweepCapiceThresholds = new double[0];
+    private double[] sweepGnomadThresholds = new double[0];
+    private StageMetrics metrics;
+    private volatile List<SampleSetFilter> filters;
 
     /*
      * Static variables
      */
-    private static final String version = "v0.0.1";
-    private static final String DE_NOVO = "Potential de novo/uncontrolled hetzygote: ";
-    private static final String HOM_ALT = "Potential homozygous                    : ";
-    private static final String NON_AUT = "Potential non-autosomal                 : ";
-    private static final String COMPHET = "Potential compound heterozygote         : ";
+    static final String version = "v0.0.1";
 
     /*
      * Constructor
@@ -50,45 +60,199 @@ public class CapiceQuickFilter {
         this.controlSampleIDs = controlSampleIDs;
     }
 
+    /*
+     * Constructor for batch mode: case and control samples are read from a
+     * PED file or job list, and one report per case is written to the
+     * output directory.
+     */
+    public CapiceQuickFilter(File input, File outputDir, double capiceThreshold, double gnomadThreshold, File batchFile) {
+        this.input = input;
+        this.output = outputDir;
+        this.capiceThreshold = capiceThreshold;
+        this.gnomadThreshold = gnomadThreshold;
+        this.batchFile = batchFile;
+    }
+
+    /*
+     * Constructor for cohort mode: every sample that is not one of the
+     * controls is a case, and one report per case is written to the output
+     * directory. See CohortFilter.
+     */
+    public CapiceQuickFilter(File input, File outputDir, double capiceThreshold, double gnomadThreshold, List<String> controlSampleIDs) {
+        this.input = input;
+        this.output = outputDir;
+        this.capiceThreshold = capiceThreshold;
+        this.gnomadThreshold = gnomadThreshold;
+        this.controlSampleIDs = controlSampleIDs;
+        this.cohort = true;
+    }
+
+    /**
+     * Number of threads used to decompress, screen and parse the input.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Process the input by region using its tabix or CSI index, either one
+     * region per chromosome (shard size 0) or shards of this many bases.
+     */
+    public void setRegions(long shardSize) {
+        this.regionShardSize = shardSize;
+    }
+
+    /**
+     * Write candidates as soon as they are known instead of at the end.
+     * Genes are assumed to be done once the sorted input has moved this
+     * many bases past their last potential compound heterozygote.
+     */
+    public void setStreaming(long geneWindow) {
+        this.geneWindow = geneWindow;
+    }
+
+    /**
+     * Write each report as a VCF with the candidates in file order, with
+     * their category as an INFO field, instead of grouped by category.
+     */
+    public void setSortedOutput(boolean sortedOutput) {
+        this.sortedOutput = sortedOutput;
+    }
+
+    /**
+     * Score SNVs with a binary CAPICE score index, built from the
+     * precomputed scores, instead of the CAPICE INFO field.
+     */
+    public void setCapiceIndex(File capiceIndex) {
+        this.capiceIndex = capiceIndex;
+    }
+
+    /**
+     * Score SNVs with the precomputed CAPICE scores file itself, joined
+     * with the input while filtering (see CapiceScoreJoin), instead of the
+     * CAPICE INFO field.
+     */
+    public void setPrecomputedScores(File precomputedScores) {
+        this.precomputedScores = precomputedScores;
+    }
+
+    /**
+     * Look up GnomAD frequencies in a local table, joined with the input
+     * while filtering (see GnomadFrequencyJoin), instead of the gnomAD_AF
+     * field of the CSQ annotation.
+     */
+    public void setGnomadFrequencies(File gnomadFrequencies) {
+        this.gnomadFrequencies = gnomadFrequencies;
+    }
+
+    /**
+     * Write a checkpoint of the scan this many seconds apart, next to the
+     * output (see Checkpoint), to resume from if the run is interrupted.
+     */
+    public void setCheckpoints(long intervalSeconds) {
+        this.checkpointInterval = intervalSeconds;
+    }
+
+    /**
+     * Resume from the checkpoint next to the output, if there is one,
+     * instead of starting at the beginning of the input.
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Also evaluate every combination of these CAPICE and GnomAD
+     * thresholds with the thresholds given to the constructor, in the same
+     * pass. Each pair gets its own report, named after the output with the
+     * thresholds inserted, see getSweepOutput().
+     */
+    public void setSweep(double[] capiceThresholds, double[] gnomadThresholds) {
+        this.sweepCapiceThresholds = capiceThresholds;
+        this.sweepGnomadThresholds = gnomadThresholds;
+    }
+
+    /**
+     * Write a columnar sidecar next to the input (see Sidecar) during this
+     * run, unless a valid one is already there. Later runs on the same
+     * input find it and run from it, whether this is set or not.
+     */
+    public void setSidecar(boolean writeSidecar) {
+        this.writeSidecar = writeSidecar;
+    }
+
+    /**
+     * Measure the processing stages and write them to this JSON file at
+     * the end. While running, the stages are available over JMX.
+     */
+    public void setReport(File report) {
+        this.report = report;
+    }
+
+    /**
+     * Measure the stages into these metrics, e.g. to follow them from
+     * another thread. By default, stages are only measured for a report.
+     */
+    void setMetrics(StageMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * The filters of the sample sets, once the input header has been read.
+     * Their counters are only final once run() has returned.
+     */
+    List<SampleSetFilter> getFilters() {
+        return filters;
+    }
+
     /**
      * Run the CapiceQuickFilter after constructing.
      */
     void run() throws Exception
     {
-        /*
-         * Counters for reporting
-         */
-        int totalVariantCount = 0;
-        int droppedByGnomAD = 0;
-        int droppedByCAPICE = 0;
-        int droppedByNullOrRefCaseGeno = 0;
-        int droppedByHomZygAltControlGeno = 0;
-        int droppedByHetZygAltNoHetComp = 0;
-        int variantWithoutGnomAD = 0;
-        int variantWithoutCAPICE = 0;
+        long start = System.nanoTime();
+        StageMetrics metrics = this.metrics != null ? this.metrics : new StageMetrics(report != null);
+        if(metrics.isEnabled())
+        {
+            metrics.register();
+        }
+        try {
+            filter(metrics);
+        } finally {
+            metrics.unregister();
+        }
+        if(report != null)
+        {
+            metrics.writeReport(report, input, threads, System.nanoTime() - start);
+            System.out.println("Stage metrics written to " + report.getAbsolutePath());
+        }
+    }
 
+    /**
+     * Filter the input, measuring the stages if enabled.
+     */
+    private void filter(StageMetrics metrics) throws Exception
+    {
         /*
-         * Initialize the VCF reader
+         * Initialize the VCF reader, only used to read the header
          */
         BlockCompressedInputStream is = new BlockCompressedInputStream(input);
         VcfReader r = new VcfReader(is);
         VcfMeta vm = r.getVcfMeta();
+        r.close();
 
         /*
-         * Prepare objects to store output
+         * Read the CSQ field layout once from the header
          */
-        HashMap<String, List<String>> geneToHetZyg = new HashMap<>();
-        HashMap<String, List<String>> reportedVariants = new HashMap<>();
-        reportedVariants.put(DE_NOVO, new ArrayList<>());
-        reportedVariants.put(HOM_ALT, new ArrayList<>());
-        reportedVariants.put(NON_AUT, new ArrayList<>());
-        reportedVariants.put(COMPHET, new ArrayList<>());
-
-        /*
-         * Create output file writer
-         */
-        FileWriter fw = new FileWriter(output);
-        BufferedWriter bw = new BufferedWriter(fw);
+        CsqExtractor csq = CsqExtractor.fromHeader(vm, CsqExtractor.SYMBOL, CsqExtractor.GNOMAD_AF);
+        if(csq.getIndex(CsqExtractor.SYMBOL) == -1)
+        {
+            throw new Exception("CSQ annotation has no " + CsqExtractor.SYMBOL + " field");
+        }
+        if(csq.getIndex(CsqExtractor.GNOMAD_AF) == -1 && gnomadFrequencies == null)
+        {
+            System.out.println("CSQ annotation has no " + CsqExtractor.GNOMAD_AF + " field, all variants are treated as without GnomAD annotation.");
+        }
 
         /*
          * Get the sample names from the VCF meta-data
@@ -100,308 +264,460 @@ public class CapiceQuickFilter {
         }
 
         /*
-         * Sanity checks: are the sample and control IDs present in the VCF?
-         * Also, store indices of case and control samples for later use and
-         * a list of all indices for convenience
+         * Determine the sample sets to evaluate, either the single case
+         * with its controls, all sets from the batch file or every sample of
+         * a cohort with the same controls. Each gets its own filter with
+         * counters and output.
          */
-        if(!sampleNames.contains(caseSampleID))
+        List<SampleSet> sampleSets;
+        if(cohort)
         {
-            throw new Exception("index sample id not found: " + caseSampleID);
+            if(!output.exists() && !output.mkdirs())
+            {
+                throw new Exception("Could not create output directory: " + output.getAbsolutePath());
+            }
+            for(String control : controlSampleIDs)
+            {
+                if(!sampleNames.contains(control))
+                {
+                    throw new Exception("control sample id not found: " + control);
+                }
+            }
+            sampleSets = new ArrayList<>();
+            for(String caseSampleID : CohortFilter.getCaseSampleIDs(sampleNames, controlSampleIDs))
+            {
+                sampleSets.add(new SampleSet(caseSampleID, controlSampleIDs, new File(output, caseSampleID + ".vcf")));
+            }
+            if(sampleSets.isEmpty())
+            {
+                throw new Exception("Cohort has no samples other than the controls");
+            }
+        }
+        else if(batchFile == null)
+        {
+            sampleSets = Collections.singletonList(new SampleSet(caseSampleID, controlSampleIDs, output));
         }
-        int caseSampleIndex = sampleNames.indexOf(caseSampleID);
-        List<Integer> controlSampleIndices = new ArrayList<Integer>();
-        for(String control : controlSampleIDs)
+        else
         {
-            if(!sampleNames.contains(control))
+            if(!output.exists() && !output.mkdirs())
             {
-                throw new Exception("control sample id not found: " + control);
+                throw new Exception("Could not create output directory: " + output.getAbsolutePath());
             }
-            controlSampleIndices.add(sampleNames.indexOf(control));
+            sampleSets = SampleSet.read(batchFile, sampleNames, output);
+        }
+        /*
+         * All threshold pairs of a sweep, from the loosest to the strictest:
+         * CAPICE thresholds ascending and GnomAD thresholds descending. The
+         * pair given to the constructor writes to the output of the sample
+         * set, the other pairs next to it.
+         */
+        double[] capiceThresholds = distinctSorted(capiceThreshold, sweepCapiceThresholds);
+        double[] gnomadThresholds = distinctSorted(gnomadThreshold, sweepGnomadThresholds);
+        List<SampleSetFilter> filters = new ArrayList<>();
+        boolean resumable = resume && Checkpoint.forOutput(output).exists();
+        for(SampleSet sampleSet : sampleSets)
+        {
+            for(int capiceLevel = 0; capiceLevel < capiceThresholds.length; capiceLevel++)
+            {
+                for(int gnomadLevel = gnomadThresholds.length - 1; gnomadLevel >= 0; gnomadLevel--)
+                {
+                    double capice = capiceThresholds[capiceLevel];
+                    double gnomad = gnomadThresholds[gnomadLevel];
+                    SampleSet pairSet = sampleSet;
+                    if(capice != capiceThreshold || gnomad != gnomadThreshold)
+                    {
+                        pairSet = new SampleSet(sampleSet.getCaseSampleID(), sampleSet.getControlSampleIDs(), getSweepOutput(sampleSet.getOutput(), capice, gnomad));
+                    }
+                    if(pairSet.getOutput().exists() && !resumable)
+                    {
+                        throw new Exception("Output VCF file already exists at " + pairSet.getOutput().getAbsolutePath());
+                    }
+                    SampleSetFilter filter = new SampleSetFilter(pairSet, sampleNames);
+                    filter.useThresholds(capice, capiceLevel, gnomad, gnomadLevel);
+                    if(sortedOutput)
+                    {
+                        filter.sortOutput();
+                    }
+                    filters.add(filter);
+                }
+            }
+        }
+        this.filters = filters;
+        if(geneWindow >= 0 && regionShardSize >= 0)
+        {
+            throw new Exception("Streaming output can not be combined with processing by region");
+        }
+        if(geneWindow >= 0 && sortedOutput)
+        {
+            throw new Exception("Streaming output can not be sorted");
+        }
+        if(cohort && (geneWindow >= 0 || regionShardSize >= 0 || filters.size() > sampleSets.size()))
+        {
+            throw new Exception("Cohort mode can not be combined with streaming output, processing by region or a threshold sweep");
+        }
+        if(batchFile != null)
+        {
+            System.out.println("Evaluating " + sampleSets.size() + " sample sets in one pass.");
+        }
+        if(cohort)
+        {
+            System.out.println("Evaluating " + sampleSets.size() + " cases of the cohort in one pass.");
+        }
+        if(filters.size() > sampleSets.size())
+        {
+            System.out.println("Sweeping " + capiceThresholds.length * gnomadThresholds.length + " threshold pairs in one pass.");
         }
-        List<Integer> allIndices = controlSampleIndices;
-        allIndices.add(caseSampleIndex);
 
         /*
-         * Start iterating over the input VCF file
+         * Run from a valid sidecar of the input if there is one. CAPICE
+         * scores from an index or precomputed file and GnomAD frequencies
+         * from a table are not in the sidecar, so it is not used with those.
          */
-        Iterator<VcfRecord> vcfIt = r.iterator();
-        vcfIterator:
-        while(vcfIt.hasNext())
-        {
-            VcfRecord vr = vcfIt.next();
-            totalVariantCount++;
-
-            /*
-             * Retrieve GnomAD and CAPICE values if present
-             */
-            Double lowestGnomAD =
-                    Helper.getLowestGnomAD(vr.getInformation().iterator());
-            Double highestCapice = Helper.getHighestCapice(vr.getInformation().iterator());
-
-            /*
-             * Keep track of missing GnomAD and CAPICE values
-             */
-            if(highestCapice == null)
+        if(capiceIndex != null && precomputedScores != null)
+        {
+            throw new Exception("Score with either a CAPICE score index or the precomputed scores, not both");
+        }
+        boolean externalValues = capiceIndex != null || precomputedScores != null || gnomadFrequencies != null;
+        File sidecarFile = Sidecar.forInput(input);
+        boolean useSidecar = !externalValues && Sidecar.isValidFor(sidecarFile, input, sampleNames.size());
+        SidecarWriter sidecarWriter = null;
+        if(useSidecar && regionShardSize >= 0)
+        {
+            System.out.println("Running from the sidecar, processing by region is not needed.");
+        }
+        if(writeSidecar && !useSidecar)
+        {
+            if(externalValues)
             {
-                variantWithoutCAPICE++;
+                throw new Exception("A sidecar can not be written when scoring with a CAPICE score index or precomputed scores, or with GnomAD frequencies from a table");
             }
-            if(lowestGnomAD == null)
+            if(regionShardSize >= 0)
             {
-                variantWithoutGnomAD++;
+                throw new Exception("A sidecar can not be written when processing by region");
             }
+            sidecarWriter = new SidecarWriter(sidecarFile, input, sampleNames.size(), csq.getGeneDictionary());
+        }
 
-            /*
-             * If not missing, we have reasons to drop variants
-             */
-            if(highestCapice != null && highestCapice < capiceThreshold)
+        /*
+         * Only the genotypes of samples used by any of the sets are decoded,
+         * or those of all samples when writing a sidecar or for a cohort,
+         * where they are packed into bit-planes
+         */
+        Set<Integer> selectedSampleIndices = new TreeSet<>();
+        for(SampleSetFilter filter : filters)
+        {
+            selectedSampleIndices.addAll(filter.getSampleIndices());
+        }
+        if(sidecarWriter != null || cohort)
+        {
+            for(int i = 0; i < sampleNames.size(); i++)
             {
-                droppedByCAPICE++;
-                continue;
+                selectedSampleIndices.add(i);
             }
-            if(lowestGnomAD != null && lowestGnomAD > gnomadThreshold)
+        }
+        GenotypeDecoder genotypeDecoder = new GenotypeDecoder(sampleNames.size(), selectedSampleIndices);
+        for(SampleSetFilter filter : filters)
+        {
+            filter.useDecoder(genotypeDecoder);
+        }
+        CohortFilter cohortFilter = null;
+        if(cohort)
+        {
+            genotypeDecoder.pack();
+            List<Integer> controlSampleIndices = new ArrayList<>();
+            for(String control : controlSampleIDs)
             {
-                droppedByGnomAD++;
-                continue;
+                controlSampleIndices.add(sampleNames.indexOf(control));
             }
+            cohortFilter = new CohortFilter(filters, controlSampleIndices, genotypeDecoder, 0, 0);
+        }
 
-            /*
-             * Now we need to investigate genotypes
-             * Store case and control genotype in objects
-             */
-            List<Allele> caseGeno = null;
-            HashMap<String, List<Allele>> controlGeno = new HashMap<>();
-
-            /*
-             * Iterate over samples and extract the case and control genotypes
-             */
-            Iterator<VcfSample> vi = vr.getSamples().iterator();
-            VcfSample nextSample;
-            int sampleIndex = 0;
-            while(vi.hasNext())
+        /*
+         * Checkpoints of the scan over the input, and resuming from the last
+         * one. The streamed output, regions and the sidecar writer have state
+         * that is not in a checkpoint, so they can not be combined with it.
+         */
+        CheckpointWriter checkpointWriter = null;
+        long resumeAfter = -1;
+        if(checkpointInterval >= 0 || resume)
+        {
+            if(geneWindow >= 0 || regionShardSize >= 0 || sidecarWriter != null)
+            {
+                throw new Exception("Checkpoints can not be combined with streaming, processing by region or writing a sidecar");
+            }
+            if(useSidecar)
+            {
+                System.out.println("Running from the sidecar, checkpoints are not needed.");
+            }
+            else
             {
-                nextSample = vi.next();
-                if(sampleIndex == caseSampleIndex)
+                StringBuilder settings = new StringBuilder(version + "\t" + cohort + "\t" + capiceIndex + "\t" + precomputedScores + "\t" + gnomadFrequencies);
+                for(SampleSetFilter filter : filters)
+                {
+                    settings.append("\n").append(filter.getSettingsKey());
+                }
+                byte[] settingsDigest = Checkpoint.digest(settings.toString());
+                File checkpointFile = Checkpoint.forOutput(output);
+                if(resume && checkpointFile.exists())
+                {
+                    Checkpoint checkpoint = Checkpoint.read(checkpointFile, input, settingsDigest);
+                    checkpoint.restore(filters, cohortFilter, csq.getGeneDictionary());
+                    resumeAfter = checkpoint.getLastOffset();
+                    System.out.println("Resuming from checkpoint " + checkpointFile.getAbsolutePath());
+                }
+                else if(resume)
                 {
-                    caseGeno = nextSample.getAlleles();
+                    System.out.println("No checkpoint found at " + checkpointFile.getAbsolutePath() + ", starting at the beginning.");
                 }
-                else if(controlSampleIndices.contains(sampleIndex))
+                if(checkpointInterval >= 0)
                 {
-                    controlGeno.put(sampleNames.get(sampleIndex),
-                            nextSample.getAlleles());
+                    checkpointWriter = new CheckpointWriter(checkpointFile, input, settingsDigest, checkpointInterval);
                 }
-                sampleIndex++;
             }
+        }
 
-            /*
-             * Drop variant if case genotype consists of only reference
-             * alleles and/or missing alleles
-             */
-            int caseAltCount = 0;
-            for(Allele a: caseGeno)
+        /*
+         * Start iterating over the input VCF file. Every line is screened
+         * for the CAPICE and GnomAD thresholds on the raw bytes and only the
+         * records that pass are parsed into a VcfRecord. This is done once
+         * and shared by all sample sets.
+         */
+        RecordPrefilter prefilter = new RecordPrefilter(capiceThresholds, gnomadThresholds, csq.getIndex(CsqExtractor.GNOMAD_AF));
+        BackgroundWriter writer = null;
+        try(CapiceScoreIndex scoreIndex = capiceIndex != null ? CapiceScoreIndex.open(capiceIndex) : null;
+            CapiceScoreJoin scoreJoin = precomputedScores != null ? CapiceScoreJoin.open(precomputedScores) : null;
+            GnomadFrequencyJoin gnomadJoin = gnomadFrequencies != null ? GnomadFrequencyJoin.open(gnomadFrequencies) : null)
+        {
+            if(scoreIndex != null)
             {
-                if(!a.equals(Allele.ZERO) && !a.equals(vr.getReferenceAllele())) {
-                    caseAltCount++;
-                }
+                prefilter.setCapiceScores(scoreIndex);
             }
-            if(caseAltCount == 0)
+            if(scoreJoin != null)
             {
-                droppedByNullOrRefCaseGeno++;
-                continue;
+                prefilter.setCapiceScores(scoreJoin);
             }
-
-            /*
-             * Analyse further. If one control sample is homozygous, drop the
-             * variant. If not, track if 1+ control(s) are heterozygous.
-             */
-            boolean atLeastOneCtrlWithOneAlt = false;
-            for(String key : controlGeno.keySet())
+            if(gnomadJoin != null)
+            {
+                prefilter.setGnomadFrequencies(gnomadJoin);
+            }
+            RecordScreener screener = new RecordScreener(vm, prefilter, genotypeDecoder, metrics);
+            if(sidecarWriter != null)
+            {
+                screener.keepAll();
+            }
+            if(geneWindow >= 0)
             {
-                List<Allele> controlAlleles = controlGeno.get(key);
-                int controlAltCount = 0;
-                for(Allele a: controlAlleles)
+                writer = new BackgroundWriter(metrics.output);
+                for(SampleSetFilter filter : filters)
                 {
-                    if(!a.equals(Allele.ZERO) && !a.equals(vr.getReferenceAllele())) {
-                        controlAltCount++;
+                    if(filter.getSummaryFile().exists())
+                    {
+                        throw new Exception("Summary file already exists at " + filter.getSummaryFile().getAbsolutePath());
                     }
-                }
-                if(controlAltCount == 2)
-                {
-                    droppedByHomZygAltControlGeno++;
-                    continue vcfIterator;
-                }
-                else if(controlAltCount == 1)
-                {
-                    atLeastOneCtrlWithOneAlt = true;
+                    filter.startStreaming(writer, geneWindow, input);
                 }
             }
-
-
-            /*
-             * There are no homozygous controls. So if the case is homozygous
-             * alternative, report it and continue.
-             */
-            if(caseAltCount == 2)
+            if(useSidecar)
             {
-                reportedVariants.get((Helper.isAutosomal(vr) ? HOM_ALT : NON_AUT)).add(Helper.retainIndices(vr.toString(), allIndices));
-                continue;
+                filterSidecar(sidecarFile, prefilter, capiceThresholds[0], gnomadThresholds[gnomadThresholds.length - 1], genotypeDecoder, cohortFilter, csq, metrics);
             }
-
-            /*
-             * If case has 1 alt, and there are no controls with alt alleles,
-             * it is either de novo (controls present), or an 'uncontrolled'
-             * heterozygote (controls not present). Report and continue.
-             */
-            if(caseAltCount == 1 && !atLeastOneCtrlWithOneAlt)
+            else if(regionShardSize >= 0)
             {
-                reportedVariants.get((Helper.isAutosomal(vr) ? DE_NOVO : NON_AUT)).add(Helper.retainIndices(vr.toString(), allIndices));
-                continue;
-            }
-
-            /*
-             * If case has 1 alt but there are also controls with 1 alt, it
-             * could still be compound heterozygous. But we can only tell
-             * after we have seen all variants from this gene. Save for later.
-             * Exception is variants on allosomes, always report these.
-             */
-            Set<String> genes = Helper.getGenes(vr.getInformation().iterator());
-            if(caseAltCount == 1)
-            {
-                if(!Helper.isAutosomal(vr))
+                /*
+                 * Region-parallel: scan the indexed regions on a fork-join pool
+                 * and merge the per-region results back in file order
+                 */
+                TabixIndex index = TabixIndex.forInput(input);
+                if(index == null)
                 {
-                    reportedVariants.get(NON_AUT).add(Helper.retainIndices(vr.toString(), allIndices));
-                    continue;
+                    throw new Exception("Processing by region needs a tabix (.tbi) or CSI (.csi) index next to " + input.getAbsolutePath());
                 }
-                else
+                List<RegionScan.Region> regions = RegionScan.plan(index, input, regionShardSize);
+                System.out.println("Processing " + regions.size() + " regions using " + threads + " threads.");
+                if(!regions.isEmpty())
                 {
-                    for(String gene : genes)
-                    {
-                        if(!geneToHetZyg.containsKey(gene))
+                    ForkJoinPool pool = new ForkJoinPool(threads);
+                    try {
+                        List<SampleSetFilter> merged = pool.invoke(new RegionScan(input, regions, 0, regions.size(), screener, filters, csq));
+                        for(int i = 0; i < filters.size(); i++)
                         {
-                            geneToHetZyg.put(gene, new ArrayList<>());
+                            filters.get(i).merge(merged.get(i));
                         }
-                        geneToHetZyg.get(gene).add(vr.toString());
+                    } catch(RuntimeException e) {
+                        if(e.getCause() instanceof Exception)
+                        {
+                            throw (Exception) e.getCause();
+                        }
+                        throw e;
+                    } finally {
+                        pool.shutdown();
                     }
-                      continue;
                 }
             }
+            else
+            {
+                try(RecordPipeline pipeline = new RecordPipeline(input, screener, threads, resumeAfter))
+                {
+                    while(pipeline.hasNext())
+                    {
+                        ScreenedRecord sr = pipeline.next();
+                        long stageStart = metrics.genotypes.start();
+                        long stageAllocation = metrics.genotypes.startAllocation();
+                        accept(sr, cohortFilter, csq);
+                        metrics.genotypes.stop(stageStart, stageAllocation, 1, 0);
+                        if(sidecarWriter != null)
+                        {
+                            sidecarWriter.add(sr, csq);
+                        }
 
-            /*
-             * We should have covered all states when looping over all
-             * variants in the input VCF. If not, crash the program.
-             */
-            throw new Exception("Bad state: all possibilities should be covered by now. Offending variant: " + vr.toString());
-        }
-
+                        /*
+                         * Only records that passed know their offset, dropped ones
+                         * are shared, so checkpoints are taken right after those
+                         */
+                        if(checkpointWriter != null && sr.offset != -1 && checkpointWriter.isDue())
+                        {
+                            checkpointWriter.save(sr.offset, filters, cohortFilter, csq.getGeneDictionary());
+                        }
+                    }
+                } catch(Exception e) {
 
-        /*
-         * Iterate over the heterozygous variants that may become compound
-         * heterozygous variants if there are two in one gene. Keep track
-         * which are reported to prevent duplicates.
-         */
-        Set<String> hasBeenReported = new HashSet<>();
-        Set<String> hasBeenDropped = new HashSet<>();
-        for(String gene : geneToHetZyg.keySet()) {
-            if (geneToHetZyg.get(gene).size() > 1) {
-                for (String rec : geneToHetZyg.get(gene)) {
-                    if (!hasBeenReported.contains(rec)) {
-                        reportedVariants.get(COMPHET).add(Helper.retainIndices(rec, allIndices));
-                        hasBeenReported.add(rec);
+                    /*
+                     * A failed scan must not leave a sidecar that looks complete
+                     */
+                    if(sidecarWriter != null)
+                    {
+                        sidecarWriter.abort();
                     }
+                    throw e;
+                } finally {
+                    if(checkpointWriter != null)
+                    {
+                        checkpointWriter.close();
+                    }
+                }
+                if(sidecarWriter != null)
+                {
+                    sidecarWriter.close();
+                    System.out.println("Sidecar written to " + sidecarFile.getAbsolutePath());
                 }
             }
         }
+        if(cohortFilter != null)
+        {
+            cohortFilter.finish();
+        }
 
         /*
-         * Also iterate over the leftovers to make sure all numbers add up.
-         * For this, we must also considered those already reported for a
-         * different gene.
+         * Resolve compound heterozygotes and write a report per sample set,
+         * or finish the streamed output
          */
-        for(String gene : geneToHetZyg.keySet()) {
-            if (geneToHetZyg.get(gene).size() == 1)
+        if(writer != null)
+        {
+            for(SampleSetFilter filter : filters)
             {
-                String rec = geneToHetZyg.get(gene).get(0);
-                if(!hasBeenDropped.contains(rec) && !hasBeenReported.contains(rec)) {
-                    droppedByHetZygAltNoHetComp++;
-                    hasBeenDropped.add(rec);
-                }
+                long stageStart = metrics.compoundHets.start();
+                long stageAllocation = metrics.compoundHets.startAllocation();
+                filter.finishStreaming(input);
+                metrics.compoundHets.stop(stageStart, stageAllocation, 1, 0);
+                metrics.output.add(filter.getTotalReportedCount(), 0);
             }
+            writer.close();
+            return;
         }
+        for(SampleSetFilter filter : filters)
+        {
+            long stageStart = metrics.compoundHets.start();
+            long stageAllocation = metrics.compoundHets.startAllocation();
+            filter.resolveCompoundHets();
+            metrics.compoundHets.stop(stageStart, stageAllocation, 1, 0);
+            stageStart = metrics.output.start();
+            stageAllocation = metrics.output.startAllocation();
+            filter.writeReport(input);
+            metrics.output.stop(stageStart, stageAllocation, filter.getTotalReportedCount(), filter.getOutput().length());
+        }
+        if(checkpointWriter != null)
+        {
+            checkpointWriter.delete();
+        }
+    }
 
-        /*
-         * Count total reported and total dropped
-         */
-        int totalRep =
-                reportedVariants.get(HOM_ALT).size() + reportedVariants.get(DE_NOVO).size() + reportedVariants.get(COMPHET).size() + reportedVariants.get(NON_AUT).size();
-        int totalDrop =
-                droppedByGnomAD + droppedByCAPICE + droppedByNullOrRefCaseGeno + droppedByHomZygAltControlGeno + droppedByHetZygAltNoHetComp;
-
-        /*
-         * Print the header with information in theo utput VCF file.
-         * TODO: retain original header for proper meta-data
-         * TODO: assign VCF version
-         * TODO: perhaps sort output by chrom/pos instead of category
-         */
-        bw.write("## Output of CapiceQuickFilter " + version + "\n");
-        bw.write("## Settings:\n");
-        bw.write("## - Input file: " + input.getAbsolutePath() + "\n");
-        bw.write("## - Output file: " + output.getAbsolutePath() + "\n");
-        bw.write("## - CAPICE threshold: " + capiceThreshold + "\n");
-        bw.write("## - GnomAD threshold: " + gnomadThreshold + "\n");
-        bw.write("## - Case sample ID: " + caseSampleID + "\n");
-        bw.write("## - Control sample IDs: " + controlSampleIDs + "\n");
-        bw.write("## Total number of variants processed: " + totalVariantCount + "\n");
-        bw.write("## Total number of potential candidates found: " + totalRep + "\n");
-        bw.write("## Breakdown of potential candidates by type:" + "\n");
-        bw.write("## - " + HOM_ALT + reportedVariants.get(HOM_ALT).size() + "\n");
-        bw.write("## - " + DE_NOVO + reportedVariants.get(DE_NOVO).size() + "\n");
-        bw.write("## - " + COMPHET + reportedVariants.get(COMPHET).size() + "\n");
-        bw.write("## - " + NON_AUT + reportedVariants.get(NON_AUT).size() + "\n");
-        bw.write("## Total number of variants dropped: " + totalDrop + "\n");
-        bw.write("## Breakdown of dropped variants by reason:" + "\n");
-        bw.write("## - CAPICE score below threshold = " + droppedByCAPICE + "\n");
-        bw.write("## - GnomAD allele frequency over threshold = " + droppedByGnomAD + "\n");
-        bw.write("## - Case genotype null or reference = " + droppedByNullOrRefCaseGeno + "\n");
-        bw.write("## - Homozygous control was present = " + droppedByHomZygAltControlGeno + "\n");
-        bw.write("## - Flagged for compound but no second hit: " + droppedByHetZygAltNoHetComp + "\n");
-        bw.write("## Additional information:" + "\n");
-        bw.write("## - Variants without GnomAD annotation: " + variantWithoutGnomAD + "\n");
-        bw.write("## - Variants without CAPICE annotation: " + variantWithoutCAPICE + "\n");
-        bw.write("## Potential candidates categorized by type (full info below, can be copy-pasted side by side):" + "\n");
-        for(String key : reportedVariants.keySet())
-        {
-            for(String variant : reportedVariants.get(key))
+    /**
+     * Evaluate the records of a sidecar instead of the input. Its scores
+     * are screened in one scan over the columns, and only the records that
+     * pass the loosest thresholds get their genotypes and genes.
+     */
+    private void filterSidecar(File sidecarFile, RecordPrefilter prefilter, double loosestCapice, double loosestGnomad, GenotypeDecoder genotypeDecoder, CohortFilter cohortFilter, CsqExtractor csq, StageMetrics metrics) throws Exception
+    {
+        System.out.println("Running from sidecar " + sidecarFile.getAbsolutePath());
+        try(Sidecar sidecar = Sidecar.open(sidecarFile, csq.getGeneDictionary()))
+        {
+            int nrOfRecords = sidecar.getNrOfRecords();
+            long stageStart = metrics.extraction.start();
+            long stageAllocation = metrics.extraction.startAllocation();
+            boolean[] pass = new boolean[nrOfRecords];
+            sidecar.screen(loosestCapice, loosestGnomad, pass);
+            metrics.extraction.stop(stageStart, stageAllocation, nrOfRecords, 0);
+            for(int i = 0; i < nrOfRecords; i++)
             {
-                bw.write("## " + key + (variant.length() > 50 ?
-                        variant.substring(0, 50).replace("\t", " ") :
-                        variant.replace("\t", " ")) + "\n");
+                int flags = sidecar.getFlags(prefilter, i);
+                ScreenedRecord sr = pass[i] ? sidecar.getRecord(i, flags, genotypeDecoder) : ScreenedRecord.dropped(flags);
+                stageStart = metrics.genotypes.start();
+                stageAllocation = metrics.genotypes.startAllocation();
+                accept(sr, cohortFilter, csq);
+                metrics.genotypes.stop(stageStart, stageAllocation, 1, 0);
             }
         }
+    }
 
-        /*
-         * Print the VCF columns with sample names and then all variant data.
-         * By sorting the indices first, we maintain the same order used in
-         * retainIndices() to print the genotypes.
-         */
-        Collections.sort(allIndices);
-        StringBuilder sb = new StringBuilder();
-        for(int index : allIndices)
+    /**
+     * Evaluate a record for all sample sets, at once for a cohort.
+     */
+    private void accept(ScreenedRecord sr, CohortFilter cohortFilter, CsqExtractor csq) throws Exception
+    {
+        if(cohortFilter != null)
         {
-            sb.append("\t");
-            sb.append(sampleNames.get(index));
+            cohortFilter.accept(sr, csq);
+            return;
         }
-        bw.write("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT" + sb.toString() + "\n");
-        for(String key : reportedVariants.keySet())
+        for(SampleSetFilter filter : filters)
         {
-            for(String variant : reportedVariants.get(key))
-            {
-                bw.write(variant + "\n");
-            }
+            filter.accept(sr, csq);
         }
+    }
 
-        /*
-         * Flush and close file writer.
-         */
-        bw.flush();
-        bw.close();
+    /**
+     * Output of a threshold pair of a sweep: the thresholds are inserted
+     * before the .vcf extension of the output, if any.
+     */
+    static File getSweepOutput(File output, double capiceThreshold, double gnomadThreshold)
+    {
+        String name = output.getName();
+        String extension = name.endsWith(".vcf") ? ".vcf" : "";
+        String base = name.substring(0, name.length() - extension.length());
+        return new File(output.getParentFile(), base + ".capice" + capiceThreshold + ".gnomad" + gnomadThreshold + extension);
+    }
+
+    /**
+     * A threshold and the thresholds of a sweep, sorted without duplicates.
+     */
+    private static double[] distinctSorted(double threshold, double[] sweep) throws Exception
+    {
+        TreeSet<Double> thresholds = new TreeSet<>();
+        thresholds.add(threshold);
+        for(double t : sweep)
+        {
+            thresholds.add(t);
+        }
+        if(thresholds.size() > RecordPrefilter.MAX_THRESHOLDS)
+        {
+            throw new Exception("A sweep can have at most " + RecordPrefilter.MAX_THRESHOLDS + " CAPICE and GnomAD thresholds each");
+        }
+        double[] sorted = new double[thresholds.size()];
+        int i = 0;
+        for(double t : thresholds)
+        {
+            sorted[i++] = t;
+        }
+        return sorted;
     }
 }
@@ -0,0 +1,105 @@
+package org.molgenis.capice;
+
+import org.molgenis.capiceindex.CapiceScoreIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * CAPICE scores looked up in a precomputed CAPICE SNV scores file
+ * (bgzipped, tab-separated chromosome, position, ref, alt and score, in the
+ * layout checked by CapicePrecompValidator) by a merge-join with the input,
+ * see SortedTableJoin: as long as SNVs are asked for in the order of a
+ * coordinate-sorted input, the file is only read forward, and only the
+ * scores of the current position are kept. Scores are exact, unlike those
+ * of a CapiceScoreIndex.
+ */
+class CapiceScoreJoin extends SortedTableJoin implements CapiceScores {
+
+    /*
+     * Static variables
+     */
+    private static final int COLUMNS = 5;
+
+    /**
+     * Open a precomputed scores file, with its tabix index if there is one.
+     * The header is skipped as the validator does: data starts at the first
+     * line starting with '1'.
+     */
+    static CapiceScoreJoin open(File scores) throws IOException
+    {
+        CapiceScoreJoin join = new CapiceScoreJoin();
+        join.openTable(scores, "precomputed CAPICE scores", COLUMNS);
+        return join;
+    }
+
+    @Override
+    boolean isData(byte[] data, int start, int end)
+    {
+        return data[start] == '1';
+    }
+
+    @Override
+    Cursor newCursor(BgzfLineReader reader)
+    {
+        return new ScoreCursor(reader);
+    }
+
+    @Override
+    public double getScore(byte[] chrom, int chromStart, int chromEnd, long pos, byte ref, byte alt)
+    {
+        try {
+            ScoreCursor c = (ScoreCursor) cursor();
+            if(!c.moveTo(chrom, chromStart, chromEnd, pos))
+            {
+                return Double.NaN;
+            }
+            int refCode = CapiceScoreIndex.baseCode(ref);
+            int altCode = CapiceScoreIndex.baseCode(alt);
+            if(refCode == -1 || refCode != c.entryRef || altCode == -1)
+            {
+                return Double.NaN;
+            }
+            return c.entryScores[altCode];
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Cursor with the reference base and a score per alternative base of
+     * the current position.
+     */
+    private class ScoreCursor extends Cursor
+    {
+        int entryRef;
+        double[] entryScores = new double[4];
+
+        ScoreCursor(BgzfLineReader reader)
+        {
+            super(reader);
+        }
+
+        @Override
+        void clear()
+        {
+            entryRef = -1;
+            Arrays.fill(entryScores, Double.NaN);
+        }
+
+        @Override
+        void add(byte[] data, int start, int end)
+        {
+            if(entryRef == -1)
+            {
+                entryRef = tabs[2] - tabs[1] == 2 ? CapiceScoreIndex.baseCode(data[tabs[1] + 1]) : -1;
+            }
+            int altCode = tabs[3] - tabs[2] == 2 ? CapiceScoreIndex.baseCode(data[tabs[2] + 1]) : -1;
+            if(altCode != -1)
+            {
+                entryScores[altCode] = RecordPrefilter.parseDouble(data, tabs[3] + 1, end, null);
+            }
+        }
+    }
+}
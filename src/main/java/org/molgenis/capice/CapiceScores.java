@@ -0,0 +1,27 @@
+package org.molgenis.capice;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Source of CAPICE scores for single nucleotide variants, e.g. a binary
+ * index of the precomputed scores. Used to score SNVs while filtering,
+ * instead of reading the CAPICE INFO field annotated beforehand.
+ */
+public interface CapiceScores {
+
+    /**
+     * Score of the SNV with the chromosome name in chrom[chromStart] to
+     * chrom[chromEnd] (exclusive), or NaN if it is not known. Bases are
+     * the ASCII characters 'A', 'C', 'G' and 'T'.
+     */
+    double getScore(byte[] chrom, int chromStart, int chromEnd, long pos, byte ref, byte alt);
+
+    /**
+     * Score of an SNV, or NaN if it is not known.
+     */
+    default double getScore(String chrom, long pos, char ref, char alt)
+    {
+        byte[] name = chrom.getBytes(StandardCharsets.US_ASCII);
+        return getScore(name, 0, name.length, pos, (byte) ref, (byte) alt);
+    }
+}
@@ -0,0 +1,345 @@
+package org.molgenis.capice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checkpoint of a scan over the input VCF, written by CheckpointWriter,
+ * to resume an interrupted run instead of starting over: the virtual
+ * offset of the last line that was processed, with the state of all
+ * filters after that line, i.e. their counters, the candidates reported so
+ * far and the potential compound heterozygotes, and the gene dictionary
+ * that their gene IDs refer to. Candidates are virtual offsets, as in
+ * memory, written as differences to the previous one in variable-length
+ * numbers, so that they mostly take one or two bytes each.
+ * A checkpoint belongs to one input and one run: it stores the size and
+ * fingerprint of the input (see Sidecar) and a digest of the settings of
+ * the filters, and is only read back if they all match.
+ */
+class Checkpoint {
+
+    /*
+     * Static variables
+     */
+    static final byte[] MAGIC = {'C', 'Q', 'F', 'C', 'K', 'P', '0', '1'};
+    static final String EXTENSION = ".checkpoint";
+    private static final String[] CATEGORIES = {SampleSetFilter.DE_NOVO, SampleSetFilter.HOM_ALT, SampleSetFilter.NON_AUT, SampleSetFilter.COMPHET};
+    private static final int COUNTERS = 8;
+    private static final int COHORT_COUNTERS = 6;
+
+    /*
+     * Class variables
+     */
+    private long lastOffset;
+    private String[] geneSymbols;
+    private int[][] counters;
+    private LongList[][] reportedVariants;
+    private CompoundHetCandidates[] hetCandidates;
+    private int[] cohortCounters;
+    private int[] carriedVariantCount;
+
+    /**
+     * Checkpoint location of an output file or directory.
+     */
+    static File forOutput(File output)
+    {
+        return new File(output.getPath() + EXTENSION);
+    }
+
+    /**
+     * SHA-256 digest of the settings of a run.
+     */
+    static byte[] digest(String settings) throws IOException
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(settings.getBytes(StandardCharsets.UTF_8));
+        } catch(NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Capture the state of the filters after the line at this virtual
+     * offset. Everything is copied, so the filters can go on while the
+     * checkpoint is written.
+     */
+    static Checkpoint capture(long lastOffset, List<SampleSetFilter> filters, CohortFilter cohortFilter, GeneDictionary genes)
+    {
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.lastOffset = lastOffset;
+        checkpoint.geneSymbols = genes.getSymbols();
+        int n = filters.size();
+        checkpoint.counters = new int[n][];
+        checkpoint.reportedVariants = new LongList[n][CATEGORIES.length];
+        checkpoint.hetCandidates = new CompoundHetCandidates[n];
+        for(int i = 0; i < n; i++)
+        {
+            SampleSetFilter filter = filters.get(i);
+            checkpoint.counters[i] = new int[]{filter.totalVariantCount, filter.droppedByGnomAD, filter.droppedByCAPICE,
+                    filter.droppedByNullOrRefCaseGeno, filter.droppedByHomZygAltControlGeno, filter.droppedByHetZygAltNoHetComp,
+                    filter.variantWithoutGnomAD, filter.variantWithoutCAPICE};
+            for(int c = 0; c < CATEGORIES.length; c++)
+            {
+                checkpoint.reportedVariants[i][c] = filter.reportedVariants.get(CATEGORIES[c]).copy();
+            }
+            checkpoint.hetCandidates[i] = filter.geneToHetZyg.copy();
+        }
+        if(cohortFilter != null)
+        {
+            checkpoint.cohortCounters = new int[]{cohortFilter.totalVariantCount, cohortFilter.droppedByGnomAD, cohortFilter.droppedByCAPICE,
+                    cohortFilter.variantWithoutGnomAD, cohortFilter.variantWithoutCAPICE, cohortFilter.passedVariantCount};
+            checkpoint.carriedVariantCount = cohortFilter.carriedVariantCount.clone();
+        }
+        return checkpoint;
+    }
+
+    long getLastOffset()
+    {
+        return lastOffset;
+    }
+
+    /**
+     * Write the checkpoint for a run on this input. It is written to a
+     * temporary file and forced to disk first, so that an interruption
+     * while writing leaves the previous checkpoint in place.
+     */
+    void write(File checkpoint, File input, byte[] inputFingerprint, byte[] settingsDigest) throws IOException
+    {
+        File written = new File(checkpoint.getPath() + ".tmp");
+        try(FileOutputStream fos = new FileOutputStream(written))
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+            out.write(MAGIC);
+            out.writeLong(input.length());
+            out.write(inputFingerprint);
+            out.write(settingsDigest);
+            out.writeLong(lastOffset);
+            out.writeInt(geneSymbols.length);
+            for(String symbol : geneSymbols)
+            {
+                out.writeUTF(symbol);
+            }
+            out.writeInt(counters.length);
+            for(int i = 0; i < counters.length; i++)
+            {
+                for(int counter : counters[i])
+                {
+                    out.writeInt(counter);
+                }
+                for(LongList reported : reportedVariants[i])
+                {
+                    writeDeltas(out, reported);
+                }
+                hetCandidates[i].write(out);
+            }
+            out.writeBoolean(cohortCounters != null);
+            if(cohortCounters != null)
+            {
+                for(int counter : cohortCounters)
+                {
+                    out.writeInt(counter);
+                }
+                out.writeInt(carriedVariantCount.length);
+                for(int count : carriedVariantCount)
+                {
+                    writeVarLong(out, count);
+                }
+            }
+            out.flush();
+            fos.getChannel().force(true);
+        }
+        Files.move(written.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read a checkpoint written by a run on this input with the same
+     * settings, or throw an exception if it was not.
+     */
+    static Checkpoint read(File checkpoint, File input, byte[] settingsDigest) throws Exception
+    {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpoint), 1 << 16)))
+        {
+            byte[] magic = new byte[MAGIC.length];
+            byte[] fingerprint = new byte[Sidecar.DIGEST_SIZE];
+            byte[] settings = new byte[settingsDigest.length];
+            in.readFully(magic);
+            if(!Arrays.equals(magic, MAGIC))
+            {
+                throw new Exception("Not a CapiceQuickFilter checkpoint: " + checkpoint.getAbsolutePath());
+            }
+            long inputSize = in.readLong();
+            in.readFully(fingerprint);
+            in.readFully(settings);
+            if(inputSize != input.length() || !Arrays.equals(fingerprint, Sidecar.fingerprint(input)))
+            {
+                throw new Exception("Checkpoint " + checkpoint.getAbsolutePath() + " was written for a different input");
+            }
+            if(!Arrays.equals(settings, settingsDigest))
+            {
+                throw new Exception("Checkpoint " + checkpoint.getAbsolutePath() + " was written with different settings");
+            }
+
+            Checkpoint read = new Checkpoint();
+            read.lastOffset = in.readLong();
+            read.geneSymbols = new String[in.readInt()];
+            for(int g = 0; g < read.geneSymbols.length; g++)
+            {
+                read.geneSymbols[g] = in.readUTF();
+            }
+            int n = in.readInt();
+            read.counters = new int[n][COUNTERS];
+            read.reportedVariants = new LongList[n][CATEGORIES.length];
+            read.hetCandidates = new CompoundHetCandidates[n];
+            for(int i = 0; i < n; i++)
+            {
+                for(int c = 0; c < COUNTERS; c++)
+                {
+                    read.counters[i][c] = in.readInt();
+                }
+                for(int c = 0; c < CATEGORIES.length; c++)
+                {
+                    read.reportedVariants[i][c] = readDeltas(in);
+                }
+                read.hetCandidates[i] = CompoundHetCandidates.read(in);
+            }
+            if(in.readBoolean())
+            {
+                read.cohortCounters = new int[COHORT_COUNTERS];
+                for(int c = 0; c < COHORT_COUNTERS; c++)
+                {
+                    read.cohortCounters[c] = in.readInt();
+                }
+                read.carriedVariantCount = new int[in.readInt()];
+                for(int s = 0; s < read.carriedVariantCount.length; s++)
+                {
+                    read.carriedVariantCount[s] = (int) readVarLong(in);
+                }
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Put the state back into the filters of a new run, before any line is
+     * processed. The gene dictionary must still be empty, so that the genes
+     * get the same IDs as before.
+     */
+    void restore(List<SampleSetFilter> filters, CohortFilter cohortFilter, GeneDictionary genes) throws Exception
+    {
+        if(filters.size() != counters.length || (cohortFilter != null) != (cohortCounters != null))
+        {
+            throw new Exception("Checkpoint does not match the sample sets of this run");
+        }
+        for(int g = 0; g < geneSymbols.length; g++)
+        {
+            if(genes.intern(geneSymbols[g]) != g)
+            {
+                throw new Exception("Bad state: gene dictionary is not empty when restoring a checkpoint");
+            }
+        }
+        for(int i = 0; i < filters.size(); i++)
+        {
+            SampleSetFilter filter = filters.get(i);
+            int[] c = counters[i];
+            filter.totalVariantCount = c[0];
+            filter.droppedByGnomAD = c[1];
+            filter.droppedByCAPICE = c[2];
+            filter.droppedByNullOrRefCaseGeno = c[3];
+            filter.droppedByHomZygAltControlGeno = c[4];
+            filter.droppedByHetZygAltNoHetComp = c[5];
+            filter.variantWithoutGnomAD = c[6];
+            filter.variantWithoutCAPICE = c[7];
+            for(int k = 0; k < CATEGORIES.length; k++)
+            {
+                filter.reportedVariants.put(CATEGORIES[k], reportedVariants[i][k]);
+            }
+            filter.geneToHetZyg = hetCandidates[i];
+        }
+        if(cohortFilter != null)
+        {
+            if(carriedVariantCount.length != cohortFilter.carriedVariantCount.length)
+            {
+                throw new Exception("Checkpoint does not match the samples of this run");
+            }
+            cohortFilter.totalVariantCount = cohortCounters[0];
+            cohortFilter.droppedByGnomAD = cohortCounters[1];
+            cohortFilter.droppedByCAPICE = cohortCounters[2];
+            cohortFilter.variantWithoutGnomAD = cohortCounters[3];
+            cohortFilter.variantWithoutCAPICE = cohortCounters[4];
+            cohortFilter.passedVariantCount = cohortCounters[5];
+            System.arraycopy(carriedVariantCount, 0, cohortFilter.carriedVariantCount, 0, carriedVariantCount.length);
+        }
+    }
+
+    /**
+     * Write a list of values as its size and the difference of each value
+     * to the previous one. Differences are zigzag-encoded, so that values
+     * that are not in ascending order are written correctly too.
+     */
+    static void writeDeltas(DataOutputStream out, LongList values) throws IOException
+    {
+        writeVarLong(out, values.size());
+        long previous = 0;
+        for(int i = 0; i < values.size(); i++)
+        {
+            long delta = values.get(i) - previous;
+            writeVarLong(out, (delta << 1) ^ (delta >> 63));
+            previous = values.get(i);
+        }
+    }
+
+    static LongList readDeltas(DataInputStream in) throws IOException
+    {
+        LongList values = new LongList();
+        long size = readVarLong(in);
+        long value = 0;
+        for(long i = 0; i < size; i++)
+        {
+            long zigzag = readVarLong(in);
+            value += (zigzag >>> 1) ^ -(zigzag & 1);
+            values.add(value);
+        }
+        return values;
+    }
+
+    /**
+     * Write a non-negative number in 7 bits per byte, lowest bits first,
+     * with the high bit set on every byte but the last.
+     */
+    static void writeVarLong(DataOutputStream out, long value) throws IOException
+    {
+        while((value & ~0x7FL) != 0)
+        {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException
+    {
+        long value = 0;
+        for(int shift = 0; ; shift += 7)
+        {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if(b >= 0)
+            {
+                return value;
+            }
+        }
+    }
+}
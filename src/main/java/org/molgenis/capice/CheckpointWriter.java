@@ -0,0 +1,114 @@
+package org.molgenis.capice;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes a Checkpoint at an interval while the input VCF is filtered, so
+ * that a run that is interrupted can be resumed from the last one. The
+ * scanning thread only copies the state of the filters; encoding it and
+ * writing it to disk happen on a background thread. If the previous
+ * checkpoint is still being written when the next one is due, the next one
+ * waits for the first record after it is done, so scanning never waits for
+ * disk I/O.
+ */
+class CheckpointWriter implements Closeable {
+
+    /*
+     * Class variables
+     */
+    private File checkpoint;
+    private File input;
+    private byte[] inputFingerprint;
+    private byte[] settingsDigest;
+    private long intervalNanos;
+    private long due;
+    private ExecutorService executor;
+    private Future<?> pending;
+
+    /*
+     * Constructor, with the interval between checkpoints in seconds
+     */
+    CheckpointWriter(File checkpoint, File input, byte[] settingsDigest, long intervalSeconds) throws IOException {
+        this.checkpoint = checkpoint;
+        this.input = input;
+        this.inputFingerprint = Sidecar.fingerprint(input);
+        this.settingsDigest = settingsDigest;
+        this.intervalNanos = intervalSeconds * 1_000_000_000L;
+        this.due = System.nanoTime() + intervalNanos;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "capice-checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Whether a checkpoint is due and the previous one is written.
+     */
+    boolean isDue()
+    {
+        return System.nanoTime() - due >= 0 && (pending == null || pending.isDone());
+    }
+
+    /**
+     * Capture the state of the filters after the line at this virtual
+     * offset, and write it in the background. Throws the error of the
+     * previous checkpoint, if writing it failed.
+     */
+    void save(long lastOffset, List<SampleSetFilter> filters, CohortFilter cohortFilter, GeneDictionary genes) throws IOException
+    {
+        awaitPending();
+        Checkpoint captured = Checkpoint.capture(lastOffset, filters, cohortFilter, genes);
+        pending = executor.submit(() -> {
+            captured.write(checkpoint, input, inputFingerprint, settingsDigest);
+            return null;
+        });
+        due = System.nanoTime() + intervalNanos;
+    }
+
+    private void awaitPending() throws IOException
+    {
+        if(pending == null)
+        {
+            return;
+        }
+        try {
+            pending.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing checkpoint", e);
+        } catch(ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            pending = null;
+        }
+    }
+
+    /**
+     * Remove the checkpoint once the run is complete.
+     */
+    void delete()
+    {
+        checkpoint.delete();
+    }
+
+    /**
+     * Wait until the last checkpoint is written.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try {
+            awaitPending();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
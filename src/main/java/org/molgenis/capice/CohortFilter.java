@@ -0,0 +1,202 @@
+package org.molgenis.capice;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cohort mode: every sample that is not a control is a case, with its own
+ * SampleSetFilter for compound heterozygote tracking and output. Instead of
+ * asking each filter to look up its case and controls, the genotypes of all
+ * samples are decoded into two bit-planes (see GenotypeDecoder) and a record
+ * is classified for all cases at once: the control checks are a few word
+ * operations per record, after which only the cases that carry the variant
+ * are visited. This gives the same counts and candidates as a batch with one
+ * sample set per case, but without a pass over the controls for every case.
+ */
+class CohortFilter {
+
+    /*
+     * Class variables
+     */
+    private List<SampleSetFilter> filters;
+    private SampleSetFilter[] filterOfSample;
+    private long[] caseMask;
+    private long[] controlMask;
+    private int planeWords;
+    private int capiceLevel;
+    private int gnomadLevel;
+
+    /*
+     * Counters for the records, which are the same for all cases
+     */
+    int totalVariantCount = 0;
+    int droppedByGnomAD = 0;
+    int droppedByCAPICE = 0;
+    int variantWithoutGnomAD = 0;
+    int variantWithoutCAPICE = 0;
+    int passedVariantCount = 0;
+    int[] carriedVariantCount;
+
+    /*
+     * Constructor. The filters must all use the same thresholds and the
+     * same controls, and the decoder must select all samples and pack them
+     * into bit-planes, so that the slot of a sample is its index.
+     */
+    CohortFilter(List<SampleSetFilter> filters, List<Integer> controlSampleIndices, GenotypeDecoder decoder, int capiceLevel, int gnomadLevel) throws Exception {
+        if(!decoder.isPacked())
+        {
+            throw new Exception("Cohort mode needs a genotype decoder that packs bit-planes");
+        }
+        this.filters = filters;
+        this.planeWords = decoder.getPlaneWords();
+        this.capiceLevel = capiceLevel;
+        this.gnomadLevel = gnomadLevel;
+        int nrOfSamples = decoder.getSelectedSamples().length;
+        this.filterOfSample = new SampleSetFilter[nrOfSamples];
+        this.carriedVariantCount = new int[nrOfSamples];
+        this.caseMask = new long[planeWords];
+        this.controlMask = new long[planeWords];
+        for(int control : controlSampleIndices)
+        {
+            controlMask[control >>> 6] |= 1L << control;
+        }
+        for(SampleSetFilter filter : filters)
+        {
+            int caseIndex = filter.getCaseSampleIndex();
+            if(decoder.getSlot(caseIndex) != caseIndex)
+            {
+                throw new Exception("Cohort mode needs the genotypes of all samples");
+            }
+            filterOfSample[caseIndex] = filter;
+            caseMask[caseIndex >>> 6] |= 1L << caseIndex;
+        }
+    }
+
+    /**
+     * Evaluate the next record of the input VCF for all cases.
+     */
+    void accept(ScreenedRecord sr, CsqExtractor csq) throws Exception
+    {
+        totalVariantCount++;
+        if(sr.isMissingCapice())
+        {
+            variantWithoutCAPICE++;
+        }
+        if(sr.isMissingGnomAD())
+        {
+            variantWithoutGnomAD++;
+        }
+        if(sr.isDroppedByCapice(capiceLevel))
+        {
+            droppedByCAPICE++;
+            return;
+        }
+        if(sr.isDroppedByGnomAD(capiceLevel, gnomadLevel))
+        {
+            droppedByGnomAD++;
+            return;
+        }
+        passedVariantCount++;
+
+        /*
+         * Bit-planes hold the alternative allele count per sample as a 2-bit
+         * code, low bit in the first plane and high bit in the second. A
+         * homozygous control (code 2) drops the variant for every carrier,
+         * a heterozygous control (code 1) rules out de novo.
+         */
+        long[] planes = sr.altPlanes;
+        boolean anyControlHom = false;
+        boolean anyControlHet = false;
+        for(int w = 0; w < planeWords; w++)
+        {
+            long low = planes[w];
+            long high = planes[planeWords + w];
+            anyControlHom |= (high & ~low & controlMask[w]) != 0;
+            anyControlHet |= (low & ~high & controlMask[w]) != 0;
+        }
+
+        /*
+         * Visit the cases that carry at least one alternative allele, the
+         * others are dropped for a null or reference genotype at the end
+         */
+        int[] geneIds = null;
+        for(int w = 0; w < planeWords; w++)
+        {
+            long low = planes[w];
+            long high = planes[planeWords + w];
+            long carriers = (low | high) & caseMask[w];
+            while(carriers != 0)
+            {
+                int bit = Long.numberOfTrailingZeros(carriers);
+                carriers &= carriers - 1;
+                int sample = (w << 6) + bit;
+                carriedVariantCount[sample]++;
+                SampleSetFilter filter = filterOfSample[sample];
+                boolean hom = (high >>> bit & 1) != 0;
+                boolean het = (low >>> bit & 1) != 0;
+                if(anyControlHom)
+                {
+                    filter.droppedByHomZygAltControlGeno++;
+                }
+                else if(hom && het)
+                {
+                    throw new Exception("Bad state: all possibilities should be covered by now. Offending variant: " + sr.toString());
+                }
+                else if(hom)
+                {
+                    filter.report(sr.isAutosomal() ? SampleSetFilter.HOM_ALT : SampleSetFilter.NON_AUT, sr);
+                }
+                else if(!sr.isAutosomal())
+                {
+                    filter.report(SampleSetFilter.NON_AUT, sr);
+                }
+                else if(!anyControlHet)
+                {
+                    filter.report(SampleSetFilter.DE_NOVO, sr);
+                }
+                else
+                {
+                    if(geneIds == null)
+                    {
+                        geneIds = sr.getGeneIds(csq);
+                    }
+                    filter.geneToHetZyg.add(geneIds, sr.offset);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hand the counters of the records to the filter of each case, after
+     * all records are seen.
+     */
+    void finish()
+    {
+        for(SampleSetFilter filter : filters)
+        {
+            filter.totalVariantCount += totalVariantCount;
+            filter.droppedByCAPICE += droppedByCAPICE;
+            filter.droppedByGnomAD += droppedByGnomAD;
+            filter.variantWithoutCAPICE += variantWithoutCAPICE;
+            filter.variantWithoutGnomAD += variantWithoutGnomAD;
+            filter.droppedByNullOrRefCaseGeno += passedVariantCount - carriedVariantCount[filter.getCaseSampleIndex()];
+        }
+    }
+
+    /**
+     * The case samples of a cohort: all samples except the controls, in
+     * the order of the VCF.
+     */
+    static List<String> getCaseSampleIDs(List<String> sampleNames, List<String> controlSampleIDs)
+    {
+        List<String> cases = new ArrayList<>();
+        for(String sample : sampleNames)
+        {
+            if(!controlSampleIDs.contains(sample))
+            {
+                cases.add(sample);
+            }
+        }
+        return cases;
+    }
+}
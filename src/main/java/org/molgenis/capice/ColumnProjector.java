@@ -0,0 +1,155 @@
+package org.molgenis.capice;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Copies a raw VCF line with only the genotype columns of selected samples
+ * into a reusable buffer. The fixed columns up to and including FORMAT are
+ * copied as one range, sample columns are kept or skipped using a
+ * precomputed mask, and columns after the last selected sample are not
+ * looked at. The buffer is only valid until the next call to project().
+ */
+class ColumnProjector {
+
+    /*
+     * Static variables
+     */
+    private static final int FIXED_COLUMNS = 9;
+    private static final int INFO_COLUMN = 7;
+
+    /*
+     * Class variables
+     */
+    private boolean[] keep;
+    private int lastKept = -1;
+    private byte[] buffer = new byte[4096];
+    private int length = 0;
+
+    /*
+     * Constructor, with the indices of the samples to keep
+     */
+    ColumnProjector(Collection<Integer> sampleIndices) {
+        for(int index : sampleIndices)
+        {
+            lastKept = Math.max(lastKept, index);
+        }
+        keep = new boolean[lastKept + 1];
+        for(int index : sampleIndices)
+        {
+            keep[index] = true;
+        }
+    }
+
+    /**
+     * Project the line at data[start] to data[end] (exclusive) into the
+     * buffer and return the length of the result.
+     */
+    int project(byte[] data, int start, int end)
+    {
+        length = 0;
+
+        /*
+         * Fixed columns up to and including FORMAT, without the tab that
+         * follows. Lines without sample columns are copied as they are.
+         */
+        int pos = start;
+        int tabs = 0;
+        while(tabs < FIXED_COLUMNS)
+        {
+            pos = RecordPrefilter.indexOf(data, pos, end, (byte) '\t');
+            if(pos == end)
+            {
+                append(data, start, end);
+                return length;
+            }
+            tabs++;
+            pos++;
+        }
+        append(data, start, pos - 1);
+
+        /*
+         * Sample columns, each with their preceding tab
+         */
+        for(int sample = 0; sample <= lastKept && pos <= end; sample++)
+        {
+            int columnEnd = RecordPrefilter.indexOf(data, pos, end, (byte) '\t');
+            if(keep[sample])
+            {
+                append(data, pos - 1, columnEnd);
+            }
+            pos = columnEnd + 1;
+        }
+        return length;
+    }
+
+    private void append(byte[] data, int start, int end)
+    {
+        int n = end - start;
+        if(length + n > buffer.length)
+        {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + n));
+        }
+        System.arraycopy(data, start, buffer, length, n);
+        length += n;
+    }
+
+    /**
+     * The projected line, from position 0 to the length returned by
+     * project().
+     */
+    byte[] getBuffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * Write the projected line followed by a newline.
+     */
+    void writeLine(OutputStream out) throws IOException
+    {
+        out.write(buffer, 0, length);
+        out.write('\n');
+    }
+
+    /**
+     * Write the projected line followed by a newline, with an INFO entry
+     * ('KEY=value') added at the end of the INFO column, or replacing it if
+     * it is empty ('.').
+     */
+    void writeLine(OutputStream out, byte[] infoEntry) throws IOException
+    {
+        int infoStart = 0;
+        for(int column = 0; column < INFO_COLUMN && infoStart <= length; column++)
+        {
+            infoStart = RecordPrefilter.indexOf(buffer, infoStart, length, (byte) '\t') + 1;
+        }
+        if(infoStart > length)
+        {
+            writeLine(out);
+            return;
+        }
+        int infoEnd = RecordPrefilter.indexOf(buffer, infoStart, length, (byte) '\t');
+        boolean empty = infoEnd == infoStart || (infoEnd - infoStart == 1 && buffer[infoStart] == '.');
+        out.write(buffer, 0, empty ? infoStart : infoEnd);
+        if(!empty)
+        {
+            out.write(';');
+        }
+        out.write(infoEntry);
+        out.write(buffer, infoEnd, length - infoEnd);
+        out.write('\n');
+    }
+
+    /**
+     * Copy of the projected line followed by a newline.
+     */
+    byte[] copyLine()
+    {
+        byte[] line = Arrays.copyOf(buffer, length + 1);
+        line[length] = '\n';
+        return line;
+    }
+}
@@ -0,0 +1,200 @@
+package org.molgenis.capice;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Heterozygous variants of the case, per gene, that become compound
+ * heterozygotes if their gene has two or more of them. Each variant gets
+ * a dense candidate ID when it is added, which holds the virtual offset of
+ * its line. The candidates of a gene are kept in an array indexed by gene
+ * ID from the GeneDictionary, and the genes in the order in which they
+ * were first seen, so resolution does not hash any strings or offsets.
+ */
+class CompoundHetCandidates {
+
+    /*
+     * Class variables
+     */
+    private LongList offsets = new LongList();
+    private IntList genes = new IntList();
+    private IntList[] candidatesOfGene = new IntList[64];
+
+    /**
+     * Add a heterozygous variant, by the virtual offset of its line, for
+     * each of its genes. Variants without genes are not added.
+     */
+    void add(int[] geneIds, long offset)
+    {
+        if(geneIds.length == 0)
+        {
+            return;
+        }
+        int candidate = offsets.size();
+        offsets.add(offset);
+        for(int gene : geneIds)
+        {
+            candidatesOf(gene).add(candidate);
+        }
+    }
+
+    private IntList candidatesOf(int gene)
+    {
+        if(gene >= candidatesOfGene.length)
+        {
+            candidatesOfGene = Arrays.copyOf(candidatesOfGene, Math.max(candidatesOfGene.length * 2, gene + 1));
+        }
+        IntList candidates = candidatesOfGene[gene];
+        if(candidates == null)
+        {
+            candidates = new IntList();
+            candidatesOfGene[gene] = candidates;
+            genes.add(gene);
+        }
+        return candidates;
+    }
+
+    /**
+     * Append the candidates of another instance, which were found after
+     * the candidates of this one. Genes keep the order in which they were
+     * first seen, as if all candidates were added to this instance.
+     */
+    void addAll(CompoundHetCandidates other)
+    {
+        int base = offsets.size();
+        offsets.addAll(other.offsets);
+        for(int g = 0; g < other.genes.size(); g++)
+        {
+            int gene = other.genes.get(g);
+            IntList from = other.candidatesOfGene[gene];
+            IntList to = candidatesOf(gene);
+            for(int i = 0; i < from.size(); i++)
+            {
+                to.add(base + from.get(i));
+            }
+        }
+    }
+
+    /**
+     * Copy of the candidates so far, which does not change when candidates
+     * are added to this instance.
+     */
+    CompoundHetCandidates copy()
+    {
+        CompoundHetCandidates copy = new CompoundHetCandidates();
+        copy.offsets = offsets.copy();
+        copy.genes = genes.copy();
+        copy.candidatesOfGene = new IntList[candidatesOfGene.length];
+        for(int g = 0; g < genes.size(); g++)
+        {
+            int gene = genes.get(g);
+            copy.candidatesOfGene[gene] = candidatesOfGene[gene].copy();
+        }
+        return copy;
+    }
+
+    /**
+     * Write the candidates for a Checkpoint: the offsets, then per gene in
+     * the order first seen, its ID and its candidate IDs. Both offsets and
+     * candidate IDs are written as differences to the previous one.
+     */
+    void write(DataOutputStream out) throws IOException
+    {
+        Checkpoint.writeDeltas(out, offsets);
+        Checkpoint.writeVarLong(out, genes.size());
+        for(int g = 0; g < genes.size(); g++)
+        {
+            int gene = genes.get(g);
+            IntList candidates = candidatesOfGene[gene];
+            Checkpoint.writeVarLong(out, gene);
+            Checkpoint.writeVarLong(out, candidates.size());
+            int previous = 0;
+            for(int i = 0; i < candidates.size(); i++)
+            {
+                Checkpoint.writeVarLong(out, candidates.get(i) - previous);
+                previous = candidates.get(i);
+            }
+        }
+    }
+
+    /**
+     * Read candidates written by write().
+     */
+    static CompoundHetCandidates read(DataInputStream in) throws IOException
+    {
+        CompoundHetCandidates read = new CompoundHetCandidates();
+        read.offsets = Checkpoint.readDeltas(in);
+        int nrOfGenes = (int) Checkpoint.readVarLong(in);
+        for(int g = 0; g < nrOfGenes; g++)
+        {
+            IntList candidates = read.candidatesOf((int) Checkpoint.readVarLong(in));
+            int nrOfCandidates = (int) Checkpoint.readVarLong(in);
+            int candidate = 0;
+            for(int i = 0; i < nrOfCandidates; i++)
+            {
+                candidate += (int) Checkpoint.readVarLong(in);
+                candidates.add(candidate);
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Number of genes with candidates.
+     */
+    int getGeneCount()
+    {
+        return genes.size();
+    }
+
+    /**
+     * Add the candidates of genes with two or more of them to the compound
+     * heterozygotes, each once and in gene order. Returns the number of
+     * candidates that are alone in one of their genes and not reported for
+     * another, i.e. without a second hit.
+     */
+    int resolve(LongList compoundHets)
+    {
+        BitSet reported = new BitSet(offsets.size());
+        for(int g = 0; g < genes.size(); g++)
+        {
+            IntList candidates = candidatesOfGene[genes.get(g)];
+            if(candidates.size() > 1)
+            {
+                for(int i = 0; i < candidates.size(); i++)
+                {
+                    int candidate = candidates.get(i);
+                    if(!reported.get(candidate))
+                    {
+                        compoundHets.add(offsets.get(candidate));
+                        reported.set(candidate);
+                    }
+                }
+            }
+        }
+
+        /*
+         * Also count the leftovers, so that all numbers add up. Those
+         * already reported for a different gene do not count.
+         */
+        BitSet dropped = new BitSet(offsets.size());
+        int noSecondHit = 0;
+        for(int g = 0; g < genes.size(); g++)
+        {
+            IntList candidates = candidatesOfGene[genes.get(g)];
+            if(candidates.size() == 1)
+            {
+                int candidate = candidates.get(0);
+                if(!dropped.get(candidate) && !reported.get(candidate))
+                {
+                    noSecondHit++;
+                    dropped.set(candidate);
+                }
+            }
+        }
+        return noSecondHit;
+    }
+}
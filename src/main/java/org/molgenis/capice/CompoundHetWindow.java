@@ -0,0 +1,215 @@
+package org.molgenis.capice;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Potential compound heterozygotes of a coordinate-sorted input, grouped
+ * per gene. Once the input has moved to another chromosome, or more than
+ * a gene window past the last candidate of a gene, no further candidates
+ * are expected for that gene and it is resolved and forgotten. Only the
+ * genes around the current position are kept in memory.
+ * As in CompoundHetCandidates, genes are looked up by their ID from the
+ * GeneDictionary in arrays, and candidates are slots in primitive arrays,
+ * so nothing is boxed and no object is kept per candidate. The slot of a
+ * candidate is reused once all of its genes are resolved.
+ */
+class CompoundHetWindow {
+
+    /**
+     * Receives the outcome of resolved candidates, by the virtual offset of
+     * their line.
+     */
+    interface Resolver
+    {
+        /**
+         * A candidate with a second hit in one of its genes, called once.
+         */
+        void compoundHet(long offset) throws Exception;
+
+        /**
+         * A candidate without a second hit in any of its genes.
+         */
+        void noSecondHit(long offset);
+    }
+
+    /*
+     * Class variables. Per candidate slot, the virtual offset of its line,
+     * the number of its genes that are not resolved yet, and whether it
+     * was reported.
+     */
+    private long[] offsets = new long[64];
+    private int[] pendingGenes = new int[64];
+    private BitSet reported = new BitSet();
+    private int usedSlots;
+    private IntList freeSlots = new IntList();
+
+    /*
+     * Per gene ID, the slots of its candidates (null without candidates)
+     * and the position of the last one. Genes with candidates are linked
+     * from the one that has been without new candidates the longest to
+     * the one with the latest, so they are resolved in that order.
+     */
+    private IntList[] candidatesOfGene = new IntList[64];
+    private long[] lastPosOfGene = new long[64];
+    private int[] newerGene = new int[64];
+    private int[] olderGene = new int[64];
+    private int oldestGene = -1;
+    private int newestGene = -1;
+    private String chrom;
+    private long geneWindow;
+    private Resolver resolver;
+
+    /*
+     * Constructor
+     */
+    CompoundHetWindow(long geneWindow, Resolver resolver) {
+        this.geneWindow = geneWindow;
+        this.resolver = resolver;
+    }
+
+    /**
+     * Add a heterozygous variant at a position for each of its gene IDs,
+     * by the virtual offset of its line.
+     */
+    void add(String chrom, long pos, int[] geneIds, long offset) throws Exception
+    {
+        advance(chrom, pos);
+        if(geneIds.length == 0)
+        {
+            return;
+        }
+        int slot = freeSlots.size() > 0 ? freeSlots.removeLast() : usedSlots++;
+        if(slot == offsets.length)
+        {
+            offsets = Arrays.copyOf(offsets, slot * 2);
+            pendingGenes = Arrays.copyOf(pendingGenes, slot * 2);
+        }
+        offsets[slot] = offset;
+        pendingGenes[slot] = geneIds.length;
+        reported.clear(slot);
+        for(int gene : geneIds)
+        {
+            if(gene >= candidatesOfGene.length)
+            {
+                int length = Math.max(candidatesOfGene.length * 2, gene + 1);
+                candidatesOfGene = Arrays.copyOf(candidatesOfGene, length);
+                lastPosOfGene = Arrays.copyOf(lastPosOfGene, length);
+                newerGene = Arrays.copyOf(newerGene, length);
+                olderGene = Arrays.copyOf(olderGene, length);
+            }
+            IntList candidates = candidatesOfGene[gene];
+            if(candidates == null)
+            {
+                candidates = new IntList();
+                candidatesOfGene[gene] = candidates;
+            }
+            else
+            {
+                unlink(gene);
+            }
+            linkNewest(gene);
+            lastPosOfGene[gene] = pos;
+            candidates.add(slot);
+        }
+    }
+
+    /**
+     * Resolve the genes that are out of reach from a position.
+     */
+    void advance(String chrom, long pos) throws Exception
+    {
+        if(!chrom.equals(this.chrom))
+        {
+            resolveAll();
+            this.chrom = chrom;
+            return;
+        }
+        while(oldestGene != -1 && lastPosOfGene[oldestGene] + geneWindow < pos)
+        {
+            resolve(oldestGene);
+        }
+    }
+
+    /**
+     * Resolve all remaining genes, at the end of the input.
+     */
+    void resolveAll() throws Exception
+    {
+        while(oldestGene != -1)
+        {
+            resolve(oldestGene);
+        }
+    }
+
+    private void linkNewest(int gene)
+    {
+        olderGene[gene] = newestGene;
+        newerGene[gene] = -1;
+        if(newestGene != -1)
+        {
+            newerGene[newestGene] = gene;
+        }
+        else
+        {
+            oldestGene = gene;
+        }
+        newestGene = gene;
+    }
+
+    private void unlink(int gene)
+    {
+        if(olderGene[gene] != -1)
+        {
+            newerGene[olderGene[gene]] = newerGene[gene];
+        }
+        else
+        {
+            oldestGene = newerGene[gene];
+        }
+        if(newerGene[gene] != -1)
+        {
+            olderGene[newerGene[gene]] = olderGene[gene];
+        }
+        else
+        {
+            newestGene = olderGene[gene];
+        }
+    }
+
+    /**
+     * Report the candidates of a gene with two or more, count the
+     * candidates without a second hit once all their genes are resolved,
+     * and forget the gene.
+     */
+    private void resolve(int gene) throws Exception
+    {
+        IntList candidates = candidatesOfGene[gene];
+        candidatesOfGene[gene] = null;
+        unlink(gene);
+        if(candidates.size() > 1)
+        {
+            for(int i = 0; i < candidates.size(); i++)
+            {
+                int slot = candidates.get(i);
+                if(!reported.get(slot))
+                {
+                    reported.set(slot);
+                    resolver.compoundHet(offsets[slot]);
+                }
+            }
+        }
+        for(int i = 0; i < candidates.size(); i++)
+        {
+            int slot = candidates.get(i);
+            if(--pendingGenes[slot] == 0)
+            {
+                if(!reported.get(slot))
+                {
+                    resolver.noSecondHit(offsets[slot]);
+                }
+                freeSlots.add(slot);
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.molgenis.capice;
+
+import org.molgenis.vcf.meta.VcfMeta;
+import org.molgenis.vcf.meta.VcfMetaInfo;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Extracts fields from VEP CSQ annotations using the field layout declared
+ * in the '##INFO=<ID=CSQ,...,Description="... Format: A|B|C">' header line.
+ * All requested fields of all transcripts are pulled out in a single pass
+ * over the CSQ value, without splitting it into intermediate arrays.
+ */
+public class CsqExtractor {
+
+    /*
+     * Static variables
+     */
+    static final String SYMBOL = "SYMBOL";
+    static final String GNOMAD_AF = "gnomAD_AF";
+    private static final String CSQ_ID = "CSQ";
+    private static final String FORMAT_PREFIX = "Format: ";
+
+    /*
+     * Layout assumed when the input has no CSQ header, as produced by the
+     * VEP settings recommended in the README
+     */
+    static final List<String> DEFAULT_LAYOUT = Arrays.asList(("Allele|Consequence|IMPACT|SYMBOL|Gene|Feature_type|Feature|BIOTYPE|EXON|INTRON|HGVSc|HGVSp|cDNA_position|CDS_position|Protein_position|Amino_acids|Codons|Existing_variation|DISTANCE|STRAND|FLAGS|SYMBOL_SOURCE|HGNC_ID|REFSEQ_MATCH|SOURCE|HGVS_OFFSET|gnomAD_AF|gnomAD_AFR_AF|gnomAD_AMR_AF|gnomAD_ASJ_AF|gnomAD_EAS_AF|gnomAD_FIN_AF|gnomAD_NFE_AF|gnomAD_OTH_AF|gnomAD_SAS_AF|CLIN_SIG|SOMATIC|PHENO").split("\\|"));
+
+    /*
+     * Class variables
+     */
+    private List<String> layout;
+    private String[] requestedFields;
+    private int[] slotOfIndex;
+    private int lastRequestedIndex;
+    private GeneDictionary geneDictionary = new GeneDictionary();
+
+    /**
+     * Callback for each non-empty requested field, which is found at
+     * csq[start] to csq[end] (exclusive). The slot is the position of the
+     * field in the list of requested fields.
+     */
+    interface FieldHandler
+    {
+        void field(int slot, String csq, int start, int end);
+    }
+
+    /*
+     * Constructor
+     */
+    public CsqExtractor(List<String> layout, String... requestedFields) {
+        this.layout = layout;
+        this.requestedFields = requestedFields;
+        this.slotOfIndex = new int[layout.size()];
+        Arrays.fill(slotOfIndex, -1);
+        this.lastRequestedIndex = -1;
+        for(int slot = 0; slot < requestedFields.length; slot++)
+        {
+            int index = layout.indexOf(requestedFields[slot]);
+            if(index != -1)
+            {
+                slotOfIndex[index] = slot;
+                lastRequestedIndex = Math.max(lastRequestedIndex, index);
+            }
+        }
+    }
+
+    /**
+     * Create an extractor from the CSQ header of a VCF. Falls back to the
+     * default layout if the VCF does not declare one.
+     */
+    static CsqExtractor fromHeader(VcfMeta vm, String... requestedFields)
+    {
+        for(VcfMetaInfo info : vm.getInfoMeta())
+        {
+            if(CSQ_ID.equals(info.getId()) && info.getDescription() != null)
+            {
+                String description = info.getDescription();
+                int formatStart = description.indexOf(FORMAT_PREFIX);
+                if(formatStart != -1)
+                {
+                    String format = description.substring(formatStart + FORMAT_PREFIX.length()).trim();
+                    return new CsqExtractor(Arrays.asList(format.split("\\|", -1)), requestedFields);
+                }
+            }
+        }
+        System.out.println("No CSQ field layout found in VCF header, assuming default VEP layout.");
+        return new CsqExtractor(DEFAULT_LAYOUT, requestedFields);
+    }
+
+    /**
+     * 0-based position of a field within each CSQ entry, or -1 if absent.
+     */
+    int getIndex(String field)
+    {
+        return layout.indexOf(field);
+    }
+
+    /**
+     * Slot passed to the FieldHandler for a requested field, or -1 if the
+     * field was not requested.
+     */
+    int getSlot(String field)
+    {
+        return Arrays.asList(requestedFields).indexOf(field);
+    }
+
+    /**
+     * Dictionary in which the gene symbols of this input are interned.
+     */
+    GeneDictionary getGeneDictionary()
+    {
+        return geneDictionary;
+    }
+
+    /**
+     * Visit the requested fields of every comma-separated CSQ entry in a
+     * single scan. Scanning an entry stops after the last requested field.
+     */
+    void extract(String csq, FieldHandler handler)
+    {
+        if(lastRequestedIndex == -1)
+        {
+            return;
+        }
+        int length = csq.length();
+        int pos = 0;
+        while(pos <= length)
+        {
+            int fieldStart = pos;
+            int index = 0;
+            while(true)
+            {
+                int fieldEnd = fieldStart;
+                char c = 0;
+                while(fieldEnd < length && (c = csq.charAt(fieldEnd)) != '|' && c != ',')
+                {
+                    fieldEnd++;
+                }
+                if(index < slotOfIndex.length && slotOfIndex[index] != -1 && fieldEnd > fieldStart)
+                {
+                    handler.field(slotOfIndex[index], csq, fieldStart, fieldEnd);
+                }
+                if(fieldEnd == length || c == ',')
+                {
+                    if(index < lastRequestedIndex)
+                    {
+                        throw new IllegalArgumentException("CSQ entry has " + (index + 1) + " fields, fewer than the " + layout.size() + " declared in the header: " + csq);
+                    }
+                    pos = fieldEnd + 1;
+                    break;
+                }
+                if(index == lastRequestedIndex)
+                {
+                    /*
+                     * Nothing else requested in this entry, skip to the next
+                     */
+                    while(fieldEnd < length && csq.charAt(fieldEnd) != ',')
+                    {
+                        fieldEnd++;
+                    }
+                    pos = fieldEnd + 1;
+                    break;
+                }
+                index++;
+                fieldStart = fieldEnd + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.molgenis.capice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns gene symbols to dense int IDs, in the order in which they are
+ * first seen, so that genes can be tracked in primitive arrays instead of
+ * hashing their symbols over and over. Shared by all threads of a run:
+ * symbols seen before are looked up without locking.
+ */
+class GeneDictionary {
+
+    /*
+     * Class variables
+     */
+    private ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private List<String> symbols = new ArrayList<>();
+
+    /**
+     * ID of a gene symbol, assigning the next ID if it is new.
+     */
+    int intern(String symbol)
+    {
+        Integer id = ids.get(symbol);
+        if(id != null)
+        {
+            return id;
+        }
+        synchronized(this)
+        {
+            id = ids.get(symbol);
+            if(id == null)
+            {
+                id = symbols.size();
+                symbols.add(symbol);
+                ids.put(symbol, id);
+            }
+            return id;
+        }
+    }
+
+    synchronized String getSymbol(int id)
+    {
+        return symbols.get(id);
+    }
+
+    synchronized int size()
+    {
+        return symbols.size();
+    }
+
+    /**
+     * All symbols so far, in order of their IDs.
+     */
+    synchronized String[] getSymbols()
+    {
+        return symbols.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,229 @@
+package org.molgenis.capice;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * Projection-aware genotype decoder. Reads only the GT subfield of the
+ * selected sample columns from a raw VCF line, straight into alternative
+ * allele counts, and skips over the bytes of all other samples. Decoding
+ * stops after the last selected sample, so the cost per record depends on
+ * the selection rather than on the width of the cohort. The byte scans are
+ * done by a GenotypeScanner, vectorized when the JDK allows it.
+ */
+public class GenotypeDecoder {
+
+    /*
+     * Static variables
+     */
+    private static final int FORMAT_COLUMN = 8;
+    private static final byte[] GT_KEY = {'G', 'T'};
+
+    /*
+     * Class variables
+     */
+    private int[] slotOfSample;
+    private int[] selectedSamples;
+    private int lastSelectedSample;
+    private int nrOfSlots;
+    private boolean packed;
+    private GenotypeScanner scanner = GenotypeScanner.get();
+
+    /*
+     * Constructor
+     */
+    public GenotypeDecoder(int nrOfSamples, Collection<Integer> selectedSampleIndices) {
+        this.slotOfSample = new int[nrOfSamples];
+        Arrays.fill(slotOfSample, -1);
+        this.lastSelectedSample = -1;
+        TreeSet<Integer> sorted = new TreeSet<>(selectedSampleIndices);
+        this.selectedSamples = new int[sorted.size()];
+        for(int sampleIndex : sorted)
+        {
+            selectedSamples[nrOfSlots] = sampleIndex;
+            slotOfSample[sampleIndex] = nrOfSlots++;
+            lastSelectedSample = sampleIndex;
+        }
+    }
+
+    /**
+     * Position of a selected sample in the array returned by decode().
+     */
+    int getSlot(int sampleIndex)
+    {
+        return slotOfSample[sampleIndex];
+    }
+
+    /**
+     * Scan with this scanner instead of GenotypeScanner.get(), e.g. to
+     * compare it with another one.
+     */
+    void useScanner(GenotypeScanner scanner)
+    {
+        this.scanner = scanner;
+    }
+
+    GenotypeScanner getScanner()
+    {
+        return scanner;
+    }
+
+    /**
+     * Sample index of each slot.
+     */
+    int[] getSelectedSamples()
+    {
+        return selectedSamples;
+    }
+
+    /**
+     * Decode the alternative allele counts of the selected samples, in
+     * order of sample index. Missing ('.') and reference ('0') alleles do
+     * not count, a missing GT counts as no alternative alleles.
+     */
+    byte[] decode(byte[] data, int start, int end)
+    {
+        byte[] altCounts = new byte[nrOfSlots];
+        decode(data, start, end, altCounts, null);
+        return altCounts;
+    }
+
+    /**
+     * Decode the alternative allele counts of the selected samples into
+     * two bit-planes of getPlaneWords() words each: the count of the sample
+     * in a slot, capped at 3, has its low bit at that slot in the first
+     * plane and its high bit at that slot in the second.
+     */
+    long[] decodePlanes(byte[] data, int start, int end)
+    {
+        long[] planes = new long[2 * getPlaneWords()];
+        decode(data, start, end, null, planes);
+        return planes;
+    }
+
+    /**
+     * Number of words of one bit-plane, see decodePlanes().
+     */
+    int getPlaneWords()
+    {
+        return (nrOfSlots + 63) >>> 6;
+    }
+
+    /**
+     * Whether records are decoded into bit-planes instead of counts.
+     */
+    boolean isPacked()
+    {
+        return packed;
+    }
+
+    /**
+     * Decode records into bit-planes, e.g. for a cohort.
+     */
+    void pack()
+    {
+        this.packed = true;
+    }
+
+    /**
+     * Decode into either counts or bit-planes, the other one is NULL.
+     */
+    private void decode(byte[] data, int start, int end, byte[] altCounts, long[] planes)
+    {
+        if(nrOfSlots == 0)
+        {
+            return;
+        }
+
+        /*
+         * Find the FORMAT column and the position of GT within it
+         */
+        int pos = start;
+        for(int column = 0; column < FORMAT_COLUMN && pos < end; column++)
+        {
+            pos = RecordPrefilter.indexOf(data, pos, end, (byte) '\t') + 1;
+        }
+        int formatEnd = RecordPrefilter.indexOf(data, pos, end, (byte) '\t');
+        int gtIndex = -1;
+        int key = 0;
+        while(pos < formatEnd)
+        {
+            int keyEnd = RecordPrefilter.indexOf(data, pos, formatEnd, (byte) ':');
+            if(keyEnd - pos == GT_KEY.length && data[pos] == GT_KEY[0] && data[pos + 1] == GT_KEY[1])
+            {
+                gtIndex = key;
+                break;
+            }
+            key++;
+            pos = keyEnd + 1;
+        }
+        if(gtIndex == -1)
+        {
+            return;
+        }
+
+        /*
+         * Find the sample columns up to the last selected one, then the GT
+         * values of the selected samples that have a column, in slot order.
+         * A column without a GT value counts as no alternative alleles.
+         */
+        pos = formatEnd + 1;
+        int[] columnEnds = new int[lastSelectedSample + 1];
+        int columns = scanner.findColumnEnds(data, pos, end, columnEnds, columnEnds.length);
+        int[] gtStarts = new int[nrOfSlots];
+        int[] gtEnds = new int[nrOfSlots];
+        int present = 0;
+        while(present < nrOfSlots && selectedSamples[present] < columns)
+        {
+            int sampleIndex = selectedSamples[present];
+            int columnEnd = columnEnds[sampleIndex];
+            int fieldStart = sampleIndex == 0 ? pos : columnEnds[sampleIndex - 1] + 1;
+            for(int field = 0; field < gtIndex && fieldStart <= columnEnd; field++)
+            {
+                fieldStart = RecordPrefilter.indexOf(data, fieldStart, columnEnd, (byte) ':') + 1;
+            }
+            gtStarts[present] = Math.min(fieldStart, columnEnd);
+            gtEnds[present] = columnEnd;
+            present++;
+        }
+        byte[] counts = altCounts != null ? altCounts : new byte[nrOfSlots];
+        scanner.countAltAlleles(data, end, gtStarts, gtEnds, present, counts);
+        if(planes != null)
+        {
+            int planeWords = getPlaneWords();
+            for(int slot = 0; slot < present; slot++)
+            {
+                int code = Math.min(counts[slot], 3);
+                planes[slot >>> 6] |= (long) (code & 1) << slot;
+                planes[planeWords + (slot >>> 6)] |= (long) (code >>> 1) << slot;
+            }
+        }
+    }
+
+    /**
+     * Count the allele indices in a GT value (e.g. '0/1', '1|2', './.')
+     * that are neither missing nor reference.
+     */
+    static byte countAltAlleles(byte[] data, int start, int end)
+    {
+        int count = 0;
+        int alleleStart = start;
+        for(int i = start; i <= end; i++)
+        {
+            if(i == end || data[i] == '/' || data[i] == '|')
+            {
+                for(int j = alleleStart; j < i; j++)
+                {
+                    if(data[j] != '0' && data[j] != '.')
+                    {
+                        count++;
+                        break;
+                    }
+                }
+                alleleStart = i + 1;
+            }
+        }
+        return (byte) Math.min(count, Byte.MAX_VALUE);
+    }
+}
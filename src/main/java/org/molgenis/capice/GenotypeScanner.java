@@ -0,0 +1,116 @@
+package org.molgenis.capice;
+
+/**
+ * The byte scans of genotype evaluation: finding the sample columns of a
+ * raw VCF line, counting the alternative alleles of their GT values, and
+ * checking the counts of control samples. This is the scalar version, used
+ * everywhere the JDK Vector API is not available. VectorGenotypeScanner does
+ * the same in SIMD lanes and gives identical results, see get().
+ */
+class GenotypeScanner {
+
+    /*
+     * Static variables
+     */
+    static final int HOMOZYGOUS_CONTROL = 1;
+    static final int HETEROZYGOUS_CONTROL = 2;
+    private static final String VECTOR_SCANNER = "org.molgenis.capice.VectorGenotypeScanner";
+    private static GenotypeScanner instance;
+
+    /**
+     * The vectorized scanner when the Vector API module is present (i.e.
+     * with '--add-modules jdk.incubator.vector'), or the scalar one. The
+     * vectorized one is loaded by name, so that this class also compiles
+     * and runs on JDKs without the module: without it, or when it is not
+     * compiled in, loading it fails and the scalar one is kept. Set system
+     * property 'capice.scalar' to always get the scalar scanner.
+     */
+    static synchronized GenotypeScanner get()
+    {
+        if(instance == null)
+        {
+            instance = new GenotypeScanner();
+            if(!Boolean.getBoolean("capice.scalar"))
+            {
+                try {
+                    instance = (GenotypeScanner) Class.forName(VECTOR_SCANNER).getDeclaredConstructor().newInstance();
+                } catch(ReflectiveOperationException | LinkageError e) {
+                    // no Vector API module or not compiled in, keep the scalar scanner
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Whether this scanner uses SIMD lanes.
+     */
+    boolean isVectorized()
+    {
+        return false;
+    }
+
+    /**
+     * Find the ends of the tab-separated columns starting at data[from], up
+     * to data[end] (exclusive), for at most max columns. The last column
+     * ends at end, unless it would be empty. Returns the number of columns.
+     */
+    int findColumnEnds(byte[] data, int from, int end, int[] columnEnds, int max)
+    {
+        int columns = 0;
+        int pos = from;
+        while(columns < max && pos < end)
+        {
+            int columnEnd = RecordPrefilter.indexOf(data, pos, end, (byte) '\t');
+            columnEnds[columns++] = columnEnd;
+            pos = columnEnd + 1;
+        }
+        return columns;
+    }
+
+    /**
+     * Count the alternative alleles of the GT values at the first n starts
+     * into counts[0] to counts[n - 1]. A GT value ends at ':' or at the end
+     * of its column, columnEnds[i] for gtStarts[i], which is at most lineEnd,
+     * the end of the line.
+     */
+    void countAltAlleles(byte[] data, int lineEnd, int[] gtStarts, int[] columnEnds, int n, byte[] counts)
+    {
+        for(int i = 0; i < n; i++)
+        {
+            counts[i] = countAltAlleles(data, gtStarts[i], columnEnds[i]);
+        }
+    }
+
+    /**
+     * Count the alternative alleles of the GT value at data[start], within
+     * a column that ends at columnEnd.
+     */
+    static byte countAltAlleles(byte[] data, int start, int columnEnd)
+    {
+        int fieldEnd = RecordPrefilter.indexOf(data, start, columnEnd, (byte) ':');
+        return GenotypeDecoder.countAltAlleles(data, start, fieldEnd);
+    }
+
+    /**
+     * Whether any of the alternative allele counts at these slots is 2
+     * (HOMOZYGOUS_CONTROL) or 1 (HETEROZYGOUS_CONTROL), as flags.
+     */
+    int controlFlags(byte[] altCounts, int[] slots)
+    {
+        int flags = 0;
+        for(int slot : slots)
+        {
+            int count = altCounts[slot];
+            if(count == 2)
+            {
+                flags |= HOMOZYGOUS_CONTROL;
+            }
+            else if(count == 1)
+            {
+                flags |= HETEROZYGOUS_CONTROL;
+            }
+        }
+        return flags;
+    }
+}
@@ -0,0 +1,30 @@
+package org.molgenis.capice;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Source of GnomAD allele frequencies, e.g. a local table of them. Used to
+ * look up frequencies while filtering, instead of reading the gnomAD_AF
+ * field of the CSQ annotation by VEP.
+ */
+interface GnomadFrequencies {
+
+    /**
+     * Frequency of the variant at this position with the chromosome name in
+     * line[chromStart] to line[chromEnd] (exclusive), the reference allele
+     * in line[refStart] to line[refEnd] and the alternative allele in
+     * line[altStart] to line[altEnd], or NaN if it is not known.
+     */
+    double getFrequency(byte[] line, int chromStart, int chromEnd, long pos, int refStart, int refEnd, int altStart, int altEnd);
+
+    /**
+     * Frequency of a variant, or NaN if it is not known.
+     */
+    default double getFrequency(String chrom, long pos, String ref, String alt)
+    {
+        byte[] line = (chrom + ref + alt).getBytes(StandardCharsets.US_ASCII);
+        int chromEnd = chrom.length();
+        int refEnd = chromEnd + ref.length();
+        return getFrequency(line, 0, chromEnd, pos, chromEnd, refEnd, refEnd, line.length);
+    }
+}
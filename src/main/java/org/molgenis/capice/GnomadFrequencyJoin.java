@@ -0,0 +1,137 @@
+package org.molgenis.capice;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * GnomAD allele frequencies looked up in a local table by a merge-join
+ * with the input, see SortedTableJoin. The table is bgzipped and
+ * tab-separated, with chromosome, position, ref, alt and allele frequency
+ * in the first five columns, sorted by position within each chromosome,
+ * with one line per alternative allele and header lines starting with '#'.
+ * Alleles are matched exactly, so they must be represented as in the input,
+ * e.g. both split into one alternative allele per line and normalized.
+ */
+class GnomadFrequencyJoin extends SortedTableJoin implements GnomadFrequencies {
+
+    /*
+     * Static variables
+     */
+    private static final int COLUMNS = 5;
+
+    /**
+     * Open a table of frequencies, with its tabix index if there is one.
+     */
+    static GnomadFrequencyJoin open(File frequencies) throws IOException
+    {
+        GnomadFrequencyJoin join = new GnomadFrequencyJoin();
+        join.openTable(frequencies, "GnomAD frequencies", COLUMNS);
+        return join;
+    }
+
+    @Override
+    boolean isData(byte[] data, int start, int end)
+    {
+        return data[start] != '#';
+    }
+
+    @Override
+    Cursor newCursor(BgzfLineReader reader)
+    {
+        return new FrequencyCursor(reader);
+    }
+
+    @Override
+    public double getFrequency(byte[] line, int chromStart, int chromEnd, long pos, int refStart, int refEnd, int altStart, int altEnd)
+    {
+        try {
+            FrequencyCursor c = (FrequencyCursor) cursor();
+            if(!c.moveTo(line, chromStart, chromEnd, pos))
+            {
+                return Double.NaN;
+            }
+            return c.getFrequency(line, refStart, refEnd, altStart, altEnd);
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Cursor with the alleles and frequencies of the current position. The
+     * alleles of the n lines are stored one after the other, the reference
+     * allele of line i ending at alleleEnds[2 * i] and its alternative
+     * allele at alleleEnds[2 * i + 1].
+     */
+    private class FrequencyCursor extends Cursor
+    {
+        byte[] alleles = new byte[64];
+        int[] alleleEnds = new int[8];
+        double[] frequencies = new double[4];
+        int n;
+
+        FrequencyCursor(BgzfLineReader reader)
+        {
+            super(reader);
+        }
+
+        @Override
+        void clear()
+        {
+            n = 0;
+        }
+
+        @Override
+        void add(byte[] data, int start, int end)
+        {
+            if(n == frequencies.length)
+            {
+                frequencies = Arrays.copyOf(frequencies, 2 * n);
+                alleleEnds = Arrays.copyOf(alleleEnds, 4 * n);
+            }
+            int alleleStart = n == 0 ? 0 : alleleEnds[2 * n - 1];
+            int refLength = tabs[2] - tabs[1] - 1;
+            int altLength = tabs[3] - tabs[2] - 1;
+            if(alleleStart + refLength + altLength > alleles.length)
+            {
+                alleles = Arrays.copyOf(alleles, 2 * (alleleStart + refLength + altLength));
+            }
+            System.arraycopy(data, tabs[1] + 1, alleles, alleleStart, refLength);
+            System.arraycopy(data, tabs[2] + 1, alleles, alleleStart + refLength, altLength);
+            alleleEnds[2 * n] = alleleStart + refLength;
+            alleleEnds[2 * n + 1] = alleleStart + refLength + altLength;
+            int afEnd = RecordPrefilter.indexOf(data, tabs[3] + 1, end, (byte) '\t');
+            frequencies[n++] = RecordPrefilter.parseDouble(data, tabs[3] + 1, afEnd, null);
+        }
+
+        double getFrequency(byte[] line, int refStart, int refEnd, int altStart, int altEnd)
+        {
+            for(int i = 0; i < n; i++)
+            {
+                int alleleStart = i == 0 ? 0 : alleleEnds[2 * i - 1];
+                if(same(line, refStart, refEnd, alleleStart, alleleEnds[2 * i])
+                        && same(line, altStart, altEnd, alleleEnds[2 * i], alleleEnds[2 * i + 1]))
+                {
+                    return frequencies[i];
+                }
+            }
+            return Double.NaN;
+        }
+
+        private boolean same(byte[] line, int start, int end, int alleleStart, int alleleEnd)
+        {
+            if(end - start != alleleEnd - alleleStart)
+            {
+                return false;
+            }
+            for(int i = 0; i < end - start; i++)
+            {
+                if(line[start + i] != alleles[alleleStart + i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
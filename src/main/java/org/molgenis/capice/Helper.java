@@ -3,6 +3,7 @@ package org.molgenis.capice;
 import org.molgenis.vcf.VcfInfo;
 import org.molgenis.vcf.VcfRecord;
 
+import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -16,30 +17,90 @@ public class Helper {
     /**
      * Retrieve genes symbols are annoted by VEP.
      */
-    static Set<String> getGenes(Iterator<VcfInfo> infoIter)
+    static Set<String> getGenes(Iterator<VcfInfo> infoIter, CsqExtractor csq)
     {
         Set<String> genes = new HashSet<String>();
+        int symbolSlot = csq.getSlot(CsqExtractor.SYMBOL);
         while(infoIter.hasNext())
         {
             VcfInfo info = infoIter.next();
             String key = info.getKey();
             if(key.equals("CSQ"))
             {
-                String val = info.getValRaw();
-                String[] valSplit = val.split(",", -1);
-                for (String forEachAltAndTranscript : valSplit) {
-                    String[] csqField =
-                            forEachAltAndTranscript.split("\\|", -1);
-                    String gene = csqField[3];
-                    if (!gene.isEmpty()) {
-                        genes.add(gene);
+                csq.extract(info.getValRaw(), (slot, val, start, end) -> {
+                    if(slot == symbolSlot)
+                    {
+                        genes.add(val.substring(start, end));
                     }
-                }
+                });
             }
         }
         return genes;
     }
 
+    /**
+     * Retrieve the IDs of the gene symbols annotated by VEP, interned in the
+     * gene dictionary of the extractor, without duplicates and in order of
+     * first appearance. Consecutive transcripts of the same gene reuse the
+     * previous symbol without creating a String.
+     */
+    static int[] getGeneIds(Iterator<VcfInfo> infoIter, CsqExtractor csq)
+    {
+        GeneIdCollector collector = new GeneIdCollector(csq.getGeneDictionary(), csq.getSlot(CsqExtractor.SYMBOL));
+        while(infoIter.hasNext())
+        {
+            VcfInfo info = infoIter.next();
+            String key = info.getKey();
+            if(key.equals("CSQ"))
+            {
+                csq.extract(info.getValRaw(), collector);
+            }
+        }
+        return collector.ids.toArray();
+    }
+
+    /**
+     * Collects the gene IDs of the symbol fields of a CSQ value for
+     * getGeneIds, remembering the last symbol and its ID.
+     */
+    private static class GeneIdCollector implements CsqExtractor.FieldHandler
+    {
+        /*
+         * Class variables
+         */
+        private final GeneDictionary dictionary;
+        private final int symbolSlot;
+        private final IntList ids = new IntList();
+        private String previous;
+        private int previousId = -1;
+
+        /*
+         * Constructor
+         */
+        GeneIdCollector(GeneDictionary dictionary, int symbolSlot) {
+            this.dictionary = dictionary;
+            this.symbolSlot = symbolSlot;
+        }
+
+        @Override
+        public void field(int slot, String csq, int start, int end)
+        {
+            if(slot != symbolSlot)
+            {
+                return;
+            }
+            if(previous == null || previous.length() != end - start || !csq.regionMatches(start, previous, 0, end - start))
+            {
+                previous = csq.substring(start, end);
+                previousId = dictionary.intern(previous);
+            }
+            if(!ids.contains(previousId))
+            {
+                ids.add(previousId);
+            }
+        }
+    }
+
     /**
      * Get highest CAPICE score, or NULL if CAPICE is not present.
      * Note that we are not matching exact alt allele here. If one variant
@@ -73,52 +134,41 @@ public class Helper {
      * Note that we are not matching exact alt allele here. If one variant is
      * rare enough, it passes for further interpretation.
      */
-    static Double getLowestGnomAD(Iterator<VcfInfo> infoIter)
+    static Double getLowestGnomAD(Iterator<VcfInfo> infoIter, CsqExtractor csq)
     {
-        Double lowestGnomAD = null;
+        Double[] lowestGnomAD = new Double[1];
+        int gnomadSlot = csq.getSlot(CsqExtractor.GNOMAD_AF);
         while(infoIter.hasNext())
         {
             VcfInfo info = infoIter.next();
             String key = info.getKey();
             if(key.equals("CSQ"))
             {
-                String val = info.getValRaw();
-                String[] valSplit = val.split(",", -1);
-                for (String forEachAltAndTranscript : valSplit) {
-                    String[] csqField =
-                            forEachAltAndTranscript.split("\\|", -1);
-                    String gnomadAFStr = csqField[26];
-                    if (!gnomadAFStr.isEmpty()) {
-                        double gnomadAF = Double.parseDouble(gnomadAFStr);
-                        if (lowestGnomAD == null || gnomadAF < lowestGnomAD) {
-                            lowestGnomAD = gnomadAF;
+                csq.extract(info.getValRaw(), (slot, val, start, end) -> {
+                    if(slot == gnomadSlot)
+                    {
+                        double gnomadAF = Double.parseDouble(val.substring(start, end));
+                        if (lowestGnomAD[0] == null || gnomadAF < lowestGnomAD[0]) {
+                            lowestGnomAD[0] = gnomadAF;
                         }
                     }
-                }
+                });
             }
         }
-        return lowestGnomAD;
+        return lowestGnomAD[0];
     }
 
     /**
-     * Return a VCF line but only genotypes for selected indices.
+     * Return a VCF line but only genotypes for selected indices. For many
+     * lines, use a ColumnProjector on the raw bytes instead.
      */
     static String retainIndices(String variant,
                                           List<Integer> indices)
     {
-        StringBuilder out = new StringBuilder();
-        String[] split = variant.split("\t", -1);
-        for(int i = 0; i < split.length; i++)
-        {
-            if(i < 9 || indices.contains(i-9))
-            {
-                out.append(split[i]);
-                out.append("\t");
-            }
-
-        }
-        out.deleteCharAt(out.length()-1);
-        return out.toString();
+        byte[] data = variant.getBytes(StandardCharsets.UTF_8);
+        ColumnProjector projector = new ColumnProjector(indices);
+        int length = projector.project(data, 0, data.length);
+        return new String(projector.getBuffer(), 0, length, StandardCharsets.UTF_8);
     }
 
     /**
@@ -126,6 +176,11 @@ public class Helper {
      */
     static boolean isAutosomal(VcfRecord vr)
     {
-        return vr.getChromosome().matches("\\d+(\\.\\d+)?");
+        return isAutosomal(vr.getChromosome());
+    }
+
+    static boolean isAutosomal(String chromosome)
+    {
+        return chromosome.matches("\\d+(\\.\\d+)?");
     }
 }
@@ -0,0 +1,83 @@
+package org.molgenis.capice;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints, e.g. gene or candidate IDs, without
+ * boxing every value.
+ */
+class IntList {
+
+    /*
+     * Class variables
+     */
+    private int[] values = new int[4];
+    private int size = 0;
+
+    void add(int value)
+    {
+        if(size == values.length)
+        {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    int get(int index)
+    {
+        if(index >= size)
+        {
+            throw new IndexOutOfBoundsException("Index " + index + " for size " + size);
+        }
+        return values[index];
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    boolean contains(int value)
+    {
+        for(int i = 0; i < size; i++)
+        {
+            if(values[i] == value)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy of the values as an array of exactly their number.
+     */
+    int[] toArray()
+    {
+        return Arrays.copyOf(values, size);
+    }
+
+    /**
+     * Remove the last value and return it, to use the list as a stack.
+     */
+    int removeLast()
+    {
+        if(size == 0)
+        {
+            throw new IndexOutOfBoundsException("Empty list");
+        }
+        return values[--size];
+    }
+
+    /**
+     * Copy of the values so far, which does not change when values are
+     * added to this list.
+     */
+    IntList copy()
+    {
+        IntList copy = new IntList();
+        copy.values = Arrays.copyOf(values, Math.max(size, 4));
+        copy.size = size;
+        return copy;
+    }
+}
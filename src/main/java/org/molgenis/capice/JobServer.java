@@ -0,0 +1,555 @@
+package org.molgenis.capice;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Daemon mode: keeps one JVM running, so class loading and JIT warm-up are
+ * paid once instead of per input, and accepts jobs over HTTP on the
+ * loopback interface only. Jobs run concurrently on a bounded pool of
+ * workers; when all workers are busy and the queue is full, new jobs are
+ * refused. Requests and responses are JSON:
+ * - POST /jobs with a JSON object of input, output, capice, gnomad, case
+ *   and optionally controls (comma-separated) and threads: submit a job.
+ * - GET /jobs: status of all jobs.
+ * - GET /jobs/ID: status of one job, with counters per sample set and the
+ *   StageMetrics of the run, also while it is running.
+ * A finished job only keeps its status and counters, and only the last
+ * DEFAULT_HISTORY_SIZE finished jobs are kept.
+ * Listening on loopback alone does not keep out web pages open in a browser
+ * on the same host, which may send simple cross-origin POSTs, e.g. of a
+ * form. Jobs read and write local files, so requests with an Origin header
+ * or a Host that is not a loopback name are refused, and jobs are only
+ * accepted with Content-Type application/json, which a browser does not
+ * send cross-origin without asking first.
+ */
+class JobServer {
+
+    /*
+     * Static variables
+     */
+    static final int DEFAULT_QUEUE_SIZE = 100;
+    static final int DEFAULT_HISTORY_SIZE = 1000;
+    private static final String QUEUED = "queued";
+    private static final String RUNNING = "running";
+    private static final String DONE = "done";
+    private static final String FAILED = "failed";
+
+    /**
+     * A submitted run of CapiceQuickFilter and its status. Once the run has
+     * ended, its counters are kept as JSON and the filter, with all of its
+     * candidates, is let go.
+     */
+    private static class Job implements Runnable
+    {
+        final int id;
+        final File input;
+        final File output;
+        final int threads;
+        final long submitted = System.currentTimeMillis();
+        volatile CapiceQuickFilter cqf;
+        volatile StageMetrics metrics = new StageMetrics(true);
+        volatile String counters;
+        volatile long started;
+        volatile long finished;
+        volatile String status = QUEUED;
+        volatile String error;
+
+        Job(int id, File input, File output, int threads, CapiceQuickFilter cqf)
+        {
+            this.id = id;
+            this.input = input;
+            this.output = output;
+            this.threads = threads;
+            this.cqf = cqf;
+            cqf.setThreads(threads);
+            cqf.setMetrics(metrics);
+        }
+
+        @Override
+        public void run()
+        {
+            started = System.currentTimeMillis();
+            status = RUNNING;
+            try {
+                cqf.run();
+                status = DONE;
+            } catch(Throwable e) {
+                error = e.getMessage() != null ? e.getMessage() : e.toString();
+                status = FAILED;
+            }
+            finished = System.currentTimeMillis();
+
+            /*
+             * Counters are set before the filter is let go, so a reader
+             * that finds no filter finds the counters
+             */
+            StringBuilder sb = new StringBuilder();
+            appendCounters(sb, cqf, metrics);
+            counters = sb.toString();
+            cqf = null;
+            metrics = null;
+        }
+
+        /**
+         * Status as JSON, with counters and stages if requested.
+         */
+        void appendJson(StringBuilder sb, boolean counters)
+        {
+            String status = this.status;
+            sb.append("{\"id\": " + id);
+            sb.append(", \"status\": \"" + status + "\"");
+            sb.append(", \"input\": \"" + StageMetrics.escape(input.getAbsolutePath()) + "\"");
+            sb.append(", \"output\": \"" + StageMetrics.escape(output.getAbsolutePath()) + "\"");
+            sb.append(", \"submitted\": " + submitted);
+            sb.append(", \"started\": " + (status.equals(QUEUED) ? "null" : String.valueOf(started)));
+            sb.append(", \"finished\": " + (status.equals(DONE) || status.equals(FAILED) ? String.valueOf(finished) : "null"));
+            sb.append(", \"error\": " + (error == null ? "null" : "\"" + StageMetrics.escape(error) + "\""));
+            if(counters)
+            {
+                CapiceQuickFilter cqf = this.cqf;
+                StageMetrics metrics = this.metrics;
+                if(cqf != null && metrics != null)
+                {
+                    appendCounters(sb, cqf, metrics);
+                }
+                else
+                {
+                    sb.append(this.counters);
+                }
+            }
+            sb.append("}");
+        }
+
+        /**
+         * Counters per sample set and stages of a run, as JSON fields.
+         */
+        private static void appendCounters(StringBuilder sb, CapiceQuickFilter cqf, StageMetrics metrics)
+        {
+            sb.append(",\n  \"sampleSets\": [");
+            List<SampleSetFilter> filters = cqf.getFilters();
+            String separator = "\n";
+            for(SampleSetFilter filter : filters == null ? new ArrayList<SampleSetFilter>() : filters)
+            {
+                sb.append(separator);
+                sb.append("    {\"case\": \"" + StageMetrics.escape(filter.getSampleSet().getCaseSampleID()) + "\"");
+                sb.append(", \"output\": \"" + StageMetrics.escape(filter.getOutput().getAbsolutePath()) + "\"");
+                sb.append(", \"variants\": " + filter.totalVariantCount);
+                sb.append(", \"candidates\": " + filter.getTotalReportedCount());
+                sb.append(", \"dropped\": " + filter.getTotalDroppedCount() + "}");
+                separator = ",\n";
+            }
+            sb.append("\n  ],\n  \"stages\": ");
+            metrics.appendJson(sb, "  ");
+            sb.append("\n");
+        }
+    }
+
+    /*
+     * Class variables
+     */
+    private HttpServer server;
+    private ThreadPoolExecutor workers;
+    private Map<Integer, Job> jobs = new ConcurrentSkipListMap<>();
+    private Queue<Integer> finishedJobIds = new ArrayDeque<>();
+    private AtomicInteger jobIds = new AtomicInteger();
+
+    /*
+     * Constructor, binds to the loopback interface. Port 0 picks a free port.
+     */
+    JobServer(int port, int workerCount, int queueSize) throws IOException {
+        AtomicInteger workerIds = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), r -> new Thread(r, "CapiceQuickFilter-job-" + workerIds.incrementAndGet()));
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext("/jobs", this::handle);
+    }
+
+    /**
+     * Start accepting jobs. Returns right away, the server keeps the JVM
+     * running until stop() is called or the process is ended.
+     */
+    void start()
+    {
+        server.start();
+        System.out.println("Accepting jobs at http://" + server.getAddress().getHostString() + ":" + getPort() + "/jobs using " + workers.getMaximumPoolSize() + " workers.");
+    }
+
+    int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stop accepting jobs and let the submitted jobs finish.
+     */
+    void stop()
+    {
+        server.stop(0);
+        workers.shutdown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if(exchange.getRequestHeaders().containsKey("Origin") || !isLoopbackHost(exchange.getRequestHeaders().getFirst("Host")))
+            {
+                respond(exchange, 403, error("Only accepting requests from local clients that are not web pages"));
+                return;
+            }
+            if(path.equals("/jobs") || path.equals("/jobs/"))
+            {
+                if(method.equals("POST"))
+                {
+                    submit(exchange);
+                }
+                else if(method.equals("GET"))
+                {
+                    StringBuilder sb = new StringBuilder("[");
+                    String separator = "\n";
+                    for(Job job : jobs.values())
+                    {
+                        sb.append(separator);
+                        job.appendJson(sb, false);
+                        separator = ",\n";
+                    }
+                    sb.append("\n]\n");
+                    respond(exchange, 200, sb.toString());
+                }
+                else
+                {
+                    respond(exchange, 405, error("Use GET or POST for /jobs"));
+                }
+                return;
+            }
+            Job job = null;
+            try {
+                job = jobs.get(Integer.parseInt(path.substring("/jobs/".length())));
+            } catch(NumberFormatException | StringIndexOutOfBoundsException e) {
+                // not a job ID
+            }
+            if(job == null)
+            {
+                respond(exchange, 404, error("No such job: " + path));
+            }
+            else if(!method.equals("GET"))
+            {
+                respond(exchange, 405, error("Use GET for " + path));
+            }
+            else
+            {
+                StringBuilder sb = new StringBuilder();
+                job.appendJson(sb, true);
+                sb.append("\n");
+                respond(exchange, 200, sb.toString());
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Validate the parameters of a new job and queue it.
+     */
+    private void submit(HttpExchange exchange) throws IOException
+    {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if(contentType == null || !contentType.toLowerCase().startsWith("application/json"))
+        {
+            respond(exchange, 415, error("Submit a job as a JSON object with Content-Type application/json"));
+            return;
+        }
+        Map<String, String> params;
+        try {
+            params = new JsonObjectParser(readBody(exchange.getRequestBody())).parse();
+        } catch(IOException e) {
+            respond(exchange, 400, error("Not a JSON object of strings and numbers: " + e.getMessage()));
+            return;
+        }
+        for(String name : Arrays.asList("input", "output", "capice", "gnomad", "case"))
+        {
+            if(!params.containsKey(name) || params.get(name).isEmpty())
+            {
+                respond(exchange, 400, error("Missing parameter: " + name));
+                return;
+            }
+        }
+        File input = new File(params.get("input"));
+        File output = new File(params.get("output"));
+        if(!input.exists())
+        {
+            respond(exchange, 400, error("Input GZipped VCF file not found at " + input.getAbsolutePath()));
+            return;
+        }
+        if(output.exists())
+        {
+            respond(exchange, 400, error("Output VCF file already exists at " + output.getAbsolutePath()));
+            return;
+        }
+        for(Job other : jobs.values())
+        {
+            if((other.status.equals(QUEUED) || other.status.equals(RUNNING)) && other.output.getAbsoluteFile().equals(output.getAbsoluteFile()))
+            {
+                respond(exchange, 400, error("Output VCF file is already used by job " + other.id));
+                return;
+            }
+        }
+        double capiceThreshold;
+        double gnomadThreshold;
+        int threads;
+        try {
+            capiceThreshold = Double.parseDouble(params.get("capice"));
+            gnomadThreshold = Double.parseDouble(params.get("gnomad"));
+            threads = params.containsKey("threads") ? Integer.parseInt(params.get("threads")) : 1;
+        } catch(NumberFormatException e) {
+            respond(exchange, 400, error("Not a number: " + e.getMessage()));
+            return;
+        }
+        if(capiceThreshold < 0.0 || capiceThreshold > 1.0 || gnomadThreshold < 0.0 || gnomadThreshold > 1.0)
+        {
+            respond(exchange, 400, error("CAPICE and GnomAD thresholds must be between 0.0 and 1.0"));
+            return;
+        }
+        if(threads < 1)
+        {
+            respond(exchange, 400, error("Number of threads must be 1 or more instead of " + threads));
+            return;
+        }
+        List<String> controlSampleIDs = new ArrayList<>();
+        if(params.containsKey("controls") && !params.get("controls").isEmpty())
+        {
+            controlSampleIDs = Arrays.asList(params.get("controls").split(",", -1));
+            if(controlSampleIDs.contains(""))
+            {
+                respond(exchange, 400, error("Control sample ID may not be empty."));
+                return;
+            }
+        }
+
+        CapiceQuickFilter cqf = new CapiceQuickFilter(input, output, capiceThreshold, gnomadThreshold, params.get("case"), controlSampleIDs);
+        Job job = new Job(jobIds.incrementAndGet(), input, output, threads, cqf);
+        jobs.put(job.id, job);
+        try {
+            workers.execute(() -> {
+                job.run();
+                finished(job);
+            });
+        } catch(RejectedExecutionException e) {
+            jobs.remove(job.id);
+            respond(exchange, 503, error("All workers are busy and the queue is full, try again later"));
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        job.appendJson(sb, false);
+        sb.append("\n");
+        respond(exchange, 202, sb.toString());
+    }
+
+    /**
+     * Remember that a job has ended, and forget the oldest ended jobs
+     * beyond the history size.
+     */
+    private synchronized void finished(Job job)
+    {
+        finishedJobIds.add(job.id);
+        while(finishedJobIds.size() > DEFAULT_HISTORY_SIZE)
+        {
+            jobs.remove(finishedJobIds.remove());
+        }
+    }
+
+    private static String error(String message)
+    {
+        return "{\"error\": \"" + StageMetrics.escape(message) + "\"}\n";
+    }
+
+    private static void respond(HttpExchange exchange, int code, String json) throws IOException
+    {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(code, body.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(body);
+        os.close();
+    }
+
+    private static String readBody(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while((n = in.read(buffer)) != -1)
+        {
+            bytes.write(buffer, 0, n);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Whether the Host header names the loopback interface, so the request
+     * was not sent to a name that resolves to it, as in DNS rebinding.
+     */
+    private static boolean isLoopbackHost(String host)
+    {
+        if(host == null)
+        {
+            return false;
+        }
+        String name = host.startsWith("[") ? host.substring(0, host.indexOf(']') + 1) : host.split(":", -1)[0];
+        return name.equals("127.0.0.1") || name.equalsIgnoreCase("localhost") || name.equals("[::1]");
+    }
+
+    /**
+     * Parser of a JSON object of which all values are strings or numbers,
+     * such as the parameters of a job. Numbers are kept as written.
+     */
+    private static class JsonObjectParser
+    {
+        private String json;
+        private int pos;
+
+        JsonObjectParser(String json)
+        {
+            this.json = json;
+        }
+
+        Map<String, String> parse() throws IOException
+        {
+            Map<String, String> values = new HashMap<>();
+            expect('{');
+            if(peek() == '}')
+            {
+                pos++;
+            }
+            else
+            {
+                do
+                {
+                    String name = readString();
+                    expect(':');
+                    values.put(name, peek() == '"' ? readString() : readNumber());
+                }
+                while(next() == ',');
+                pos--;
+                expect('}');
+            }
+            if(peek() != 0)
+            {
+                throw new IOException("unexpected content after the object at " + pos);
+            }
+            return values;
+        }
+
+        /**
+         * Next character that is not whitespace, without consuming it, or
+         * 0 at the end.
+         */
+        private char peek()
+        {
+            while(pos < json.length() && Character.isWhitespace(json.charAt(pos)))
+            {
+                pos++;
+            }
+            return pos < json.length() ? json.charAt(pos) : 0;
+        }
+
+        private char next()
+        {
+            char c = peek();
+            pos++;
+            return c;
+        }
+
+        private void expect(char c) throws IOException
+        {
+            if(next() != c)
+            {
+                throw new IOException("expected '" + c + "' at " + (pos - 1));
+            }
+        }
+
+        private String readString() throws IOException
+        {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while(pos < json.length())
+            {
+                char c = json.charAt(pos++);
+                if(c == '"')
+                {
+                    return sb.toString();
+                }
+                if(c != '\\')
+                {
+                    sb.append(c);
+                    continue;
+                }
+                if(pos >= json.length())
+                {
+                    break;
+                }
+                char escaped = json.charAt(pos++);
+                switch(escaped)
+                {
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if(pos + 4 > json.length())
+                        {
+                            throw new IOException("incomplete escape at " + pos);
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                        } catch(NumberFormatException e) {
+                            throw new IOException("invalid escape at " + pos);
+                        }
+                        pos += 4;
+                        break;
+                    default: sb.append(escaped);
+                }
+            }
+            throw new IOException("unterminated string");
+        }
+
+        private String readNumber() throws IOException
+        {
+            int start = pos;
+            while(pos < json.length() && "+-0123456789.eE".indexOf(json.charAt(pos)) != -1)
+            {
+                pos++;
+            }
+            if(pos == start)
+            {
+                throw new IOException("expected a string or number at " + pos);
+            }
+            return json.substring(start, pos);
+        }
+    }
+}
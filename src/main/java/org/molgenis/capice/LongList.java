@@ -0,0 +1,67 @@
+package org.molgenis.capice;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive longs, e.g. virtual offsets of VCF lines,
+ * without boxing every value.
+ */
+class LongList {
+
+    /*
+     * Class variables
+     */
+    private long[] values = new long[4];
+    private int size = 0;
+
+    void add(long value)
+    {
+        if(size == values.length)
+        {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    void addAll(LongList other)
+    {
+        for(int i = 0; i < other.size; i++)
+        {
+            add(other.values[i]);
+        }
+    }
+
+    long get(int index)
+    {
+        if(index >= size)
+        {
+            throw new IndexOutOfBoundsException("Index " + index + " for size " + size);
+        }
+        return values[index];
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Copy of the values so far, which does not change when values are
+     * added to this list.
+     */
+    LongList copy()
+    {
+        LongList copy = new LongList();
+        copy.values = Arrays.copyOf(values, Math.max(size, 4));
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * Sort the values in ascending order.
+     */
+    void sort()
+    {
+        Arrays.sort(values, 0, size);
+    }
+}
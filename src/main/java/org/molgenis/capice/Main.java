@@ -3,21 +3,72 @@ package org.molgenis.capice;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Main class for running CapiceQuickFilter from command-line.
  */
 public class Main
 {
+    /*
+     * Default gene window for streaming output, in bases. Longer than the
+     * longest human autosomal genes.
+     */
+    private static final long DEFAULT_GENE_WINDOW = 5000000;
+
+    /*
+     * Default interval between checkpoints, in seconds
+     */
+    private static final long DEFAULT_CHECKPOINT_INTERVAL = 600;
+
     public static void main(String args[]) throws Exception
     {
         /*
-         * Print help if incorrect number of arguments are given
+         * Separate optional '--name=value' settings from the positional
+         * arguments, these may be given anywhere on the command-line
+         */
+        List<String> positional = new ArrayList<>();
+        Map<String, String> options = new HashMap<>();
+        for(String arg : args)
+        {
+            if(arg.startsWith("--"))
+            {
+                int eq = arg.indexOf('=');
+                options.put(eq == -1 ? arg.substring(2) : arg.substring(2, eq), eq == -1 ? "" : arg.substring(eq + 1));
+            }
+            else
+            {
+                positional.add(arg);
+            }
+        }
+
+        /*
+         * Daemon mode, jobs are submitted over HTTP instead of given here
          */
-        if(args.length != 5 && args.length != 6)
+        if(options.containsKey("serve") && positional.isEmpty())
         {
-            System.out.println("Please supply 5 or 6 arguments:");
+            serve(options);
+            return;
+        }
+
+        /*
+         * Print help if incorrect number of arguments are given. In batch
+         * mode, the case and control samples come from the batch file. In
+         * cohort mode, all samples except the optional controls are cases.
+         */
+        boolean batch = options.containsKey("batch");
+        boolean cohort = options.containsKey("cohort");
+        boolean wrongArguments = batch ? positional.size() != 4 :
+                cohort ? positional.size() != 4 && positional.size() != 5 :
+                positional.size() != 5 && positional.size() != 6;
+        if(wrongArguments || batch && cohort)
+        {
+            System.out.println(batch && cohort ? "Please use either --batch or --cohort, not both." :
+                    batch ? "Please supply 4 arguments with --batch, without case and control sample IDs:" :
+                    cohort ? "Please supply 4 or 5 arguments with --cohort, with an output directory and without a case sample ID:" :
+                    "Please supply 5 or 6 arguments:");
             System.out.println("- File location of your input .VCF.GZ file.");
             System.out.println("- Output file location. May not exist yet.");
             System.out.println("- CAPICE score threshold. Lower scoring " +
@@ -27,13 +78,63 @@ public class Main
             System.out.println("- Case sample ID (ie. proband,index).");
             System.out.println("- [optional] Control sample ID(s), " +
                     "comma-separated if multiple.");
+            System.out.println("Optional settings:");
+            System.out.println("- --threads=N : decompress and parse the " +
+                    "input on N threads (default 1).");
+            System.out.println("- --batch=FILE : evaluate many case/control " +
+                    "sets in one pass, read from a PED file (*.ped) or a " +
+                    "tab-separated job list. Give only the first 4 arguments, " +
+                    "with an output directory instead of an output file.");
+            System.out.println("- --cohort : evaluate every sample that is " +
+                    "not a control as a case in one pass. Give the first 4 " +
+                    "arguments, with an output directory, and optionally the " +
+                    "control sample ID(s) as 5th.");
+            System.out.println("- --regions=chromosome|N : process the input " +
+                    "by region in parallel, one region per chromosome or " +
+                    "shards of N bases. Needs a tabix (.tbi) or CSI (.csi) index.");
+            System.out.println("- --capice-index=FILE : score SNVs with a " +
+                    "binary index of the precomputed CAPICE scores instead of " +
+                    "the CAPICE annotation.");
+            System.out.println("- --capice-scores=FILE : score SNVs with " +
+                    "the precomputed CAPICE scores file (.tsv.gz), joined with " +
+                    "the sorted input while filtering, instead of the CAPICE annotation.");
+            System.out.println("- --gnomad-frequencies=FILE : look up GnomAD " +
+                    "frequencies in a sorted table (.tsv.gz) of chromosome, position, " +
+                    "ref, alt and AF, joined with the sorted input while filtering, " +
+                    "instead of the CSQ annotation.");
+            System.out.println("- --stream[=N] : write candidates as soon as " +
+                    "they are found and counts to a summary file. Needs sorted " +
+                    "input; genes are resolved N bases (default " + DEFAULT_GENE_WINDOW +
+                    ") after their last candidate.");
+            System.out.println("- --sorted : write the candidates in input " +
+                    "order, i.e. by position for sorted input, as a VCF with " +
+                    "the type of candidate in the INFO column.");
+            System.out.println("- --sweep=C,C,.../G,G,... : also evaluate " +
+                    "all combinations of these CAPICE (C) and GnomAD (G) " +
+                    "thresholds with the given ones in the same pass, with a " +
+                    "report per pair named after the output.");
+            System.out.println("- --sidecar : also write a columnar sidecar " +
+                    "next to the input (<input>" + Sidecar.EXTENSION + "). Later runs " +
+                    "on the same input run from it, for any samples and thresholds.");
+            System.out.println("- --checkpoint[=N] : write a checkpoint of " +
+                    "the scan every N seconds (default " + DEFAULT_CHECKPOINT_INTERVAL +
+                    ") to <output>" + Checkpoint.EXTENSION + ", removed when done.");
+            System.out.println("- --resume : continue from the checkpoint of an " +
+                    "interrupted run with the same arguments, and keep writing checkpoints.");
+            System.out.println("- --report=FILE : measure time, throughput " +
+                    "and allocations per processing stage, available over JMX " +
+                    "while running, and write them to this JSON file.");
+            System.out.println("Or, without arguments, run as a daemon:");
+            System.out.println("- --serve=PORT : accept jobs over HTTP on " +
+                    "127.0.0.1 at this port, see the README. Use --workers=N " +
+                    "to run up to N jobs at the same time (default 2).");
             System.exit(0);
         }
 
         /*
          * Input .VCF.GZ file
          */
-        File input = new File(args[0]);
+        File input = new File(positional.get(0));
         if(!input.getName().endsWith(".vcf.gz"))
         {
             System.out.println("Input GZipped VCF file name '" + input.getName() + "' does not end in '.vcf.gz'. Are you sure this is a valid input?");
@@ -46,10 +147,16 @@ public class Main
         }
 
         /*
-         * Output file
+         * Output file, or output directory in batch mode
          */
-        File output = new File(args[1]);
-        if(output.exists())
+        File output = new File(positional.get(1));
+        if((batch || cohort) && output.exists() && !output.isDirectory())
+        {
+            System.out.println("Output location " + output.getAbsolutePath()+" must be a directory in " + (batch ? "batch" : "cohort") + " mode.");
+            System.exit(0);
+        }
+        boolean resumable = options.containsKey("resume") && Checkpoint.forOutput(output).exists();
+        if(!batch && !cohort && output.exists() && !resumable)
         {
             System.out.println("Output VCF file already exists at " + output.getAbsolutePath()+". Please delete it first, or supply a different output file name.");
             System.exit(0);
@@ -58,7 +165,7 @@ public class Main
         /*
          * CAPICE threshold
          */
-        String capiceThresholdStr = args[2];
+        String capiceThresholdStr = positional.get(2);
         try {
             Double.parseDouble(capiceThresholdStr);
         } catch(NumberFormatException e){
@@ -76,7 +183,7 @@ public class Main
         /*
          * GnomAD threshold
          */
-        String gnomadThresholdStr = args[3];
+        String gnomadThresholdStr = positional.get(3);
         try {
             Double.parseDouble(gnomadThresholdStr);
         } catch(NumberFormatException e){
@@ -91,11 +198,25 @@ public class Main
             System.exit(0);
         }
 
+        /*
+         * Batch file with sample sets, replaces case and control sample IDs
+         */
+        File batchFile = null;
+        if(batch)
+        {
+            batchFile = new File(options.get("batch"));
+            if(!batchFile.exists())
+            {
+                System.out.println("Batch file not found at " + batchFile.getAbsolutePath()+".");
+                System.exit(0);
+            }
+        }
+
         /*
          * Case sample ID within input VCF
          */
-        String caseSampleID = args[4];
-        if(caseSampleID.isEmpty())
+        String caseSampleID = batch || cohort ? null : positional.get(4);
+        if(caseSampleID != null && caseSampleID.isEmpty())
         {
             System.out.println("Case sample ID may not be empty.");
             System.exit(0);
@@ -105,9 +226,10 @@ public class Main
          * Control sample ID(s) within input VCF
          */
         List<String> controlSampleIDs;
-        if(args.length == 6)
+        int controlArgument = cohort ? 4 : 5;
+        if(positional.size() == controlArgument + 1)
         {
-            String controlSampleIDsStr = args[5];
+            String controlSampleIDsStr = positional.get(controlArgument);
             String[] controlSampleIDsArr = controlSampleIDsStr.split(",", -1);
             for(String controlID : controlSampleIDsArr)
             {
@@ -124,14 +246,336 @@ public class Main
             controlSampleIDs = new ArrayList<>();
         }
 
+        /*
+         * Number of threads
+         */
+        int threads = 1;
+        if(options.containsKey("threads"))
+        {
+            try {
+                threads = Integer.parseInt(options.get("threads"));
+            } catch(NumberFormatException e){
+                System.out.println("Number of threads is not a whole number: " + options.get("threads"));
+                System.exit(0);
+            }
+            if(threads < 1)
+            {
+                System.out.println("Number of threads must be 1 or more " +
+                        "instead of " + threads);
+                System.exit(0);
+            }
+        }
+
+        /*
+         * Process by region, per chromosome or in shards of N bases
+         */
+        long regionShardSize = -1;
+        if(options.containsKey("regions"))
+        {
+            String regions = options.get("regions");
+            if(regions.equals("chromosome"))
+            {
+                regionShardSize = 0;
+            }
+            else
+            {
+                try {
+                    regionShardSize = Long.parseLong(regions);
+                } catch(NumberFormatException e){
+                    System.out.println("Regions must be 'chromosome' or a shard size in bases: " + regions);
+                    System.exit(0);
+                }
+                if(regionShardSize < 1)
+                {
+                    System.out.println("Region shard size must be 1 or more " +
+                            "instead of " + regionShardSize);
+                    System.exit(0);
+                }
+            }
+        }
+
+        /*
+         * Streaming output, with the gene window in bases
+         */
+        long geneWindow = -1;
+        if(options.containsKey("stream"))
+        {
+            String stream = options.get("stream");
+            try {
+                geneWindow = stream.isEmpty() ? DEFAULT_GENE_WINDOW : Long.parseLong(stream);
+            } catch(NumberFormatException e){
+                System.out.println("Gene window is not a whole number: " + stream);
+                System.exit(0);
+            }
+            if(geneWindow < 0)
+            {
+                System.out.println("Gene window must be 0 or more " +
+                        "instead of " + geneWindow);
+                System.exit(0);
+            }
+            if(regionShardSize >= 0)
+            {
+                System.out.println("Streaming output can not be combined with --regions.");
+                System.exit(0);
+            }
+        }
+
+        /*
+         * Output in input order instead of by category
+         */
+        boolean sorted = options.containsKey("sorted");
+        if(sorted && geneWindow >= 0)
+        {
+            System.out.println("Sorted output can not be combined with --stream.");
+            System.exit(0);
+        }
+
+        /*
+         * Binary CAPICE score index
+         */
+        File capiceIndex = null;
+        if(options.containsKey("capice-index"))
+        {
+            capiceIndex = new File(options.get("capice-index"));
+            if(!capiceIndex.exists())
+            {
+                System.out.println("CAPICE score index not found at " + capiceIndex.getAbsolutePath()+".");
+                System.exit(0);
+            }
+        }
+
+        /*
+         * Precomputed CAPICE scores, joined with the input
+         */
+        File precomputedScores = null;
+        if(options.containsKey("capice-scores"))
+        {
+            precomputedScores = new File(options.get("capice-scores"));
+            if(!precomputedScores.exists())
+            {
+                System.out.println("Precomputed CAPICE scores not found at " + precomputedScores.getAbsolutePath()+".");
+                System.exit(0);
+            }
+            if(capiceIndex != null)
+            {
+                System.out.println("Precomputed CAPICE scores can not be combined with --capice-index.");
+                System.exit(0);
+            }
+        }
+
+        /*
+         * GnomAD frequencies from a table, joined with the input
+         */
+        File gnomadFrequencies = null;
+        if(options.containsKey("gnomad-frequencies"))
+        {
+            gnomadFrequencies = new File(options.get("gnomad-frequencies"));
+            if(!gnomadFrequencies.exists())
+            {
+                System.out.println("GnomAD frequencies not found at " + gnomadFrequencies.getAbsolutePath()+".");
+                System.exit(0);
+            }
+        }
+
+        /*
+         * Threshold sweep, CAPICE and GnomAD thresholds separated by '/'
+         */
+        double[] sweepCapiceThresholds = null;
+        double[] sweepGnomadThresholds = null;
+        if(options.containsKey("sweep"))
+        {
+            String sweep = options.get("sweep");
+            int slash = sweep.indexOf('/');
+            if(slash == -1)
+            {
+                System.out.println("Sweep must be comma-separated CAPICE thresholds, a '/' and comma-separated GnomAD thresholds: " + sweep);
+                System.exit(0);
+            }
+            sweepCapiceThresholds = parseThresholds("CAPICE", sweep.substring(0, slash));
+            sweepGnomadThresholds = parseThresholds("GnomAD", sweep.substring(slash + 1));
+        }
+
+        /*
+         * Columnar sidecar, can not be written while processing by region
+         */
+        boolean sidecar = options.containsKey("sidecar");
+        if(sidecar && regionShardSize >= 0)
+        {
+            System.out.println("A sidecar can not be written with --regions.");
+            System.exit(0);
+        }
+        if(sidecar && (capiceIndex != null || precomputedScores != null || gnomadFrequencies != null))
+        {
+            System.out.println("A sidecar can not be written with --capice-index, --capice-scores or --gnomad-frequencies.");
+            System.exit(0);
+        }
+
+        /*
+         * Cohort mode evaluates all cases at once in a single pass
+         */
+        if(cohort && (regionShardSize >= 0 || geneWindow >= 0 || sweepCapiceThresholds != null))
+        {
+            System.out.println("Cohort mode can not be combined with --regions, --stream or --sweep.");
+            System.exit(0);
+        }
+
+        /*
+         * Checkpoints of the scan, and resuming from the last one
+         */
+        long checkpointInterval = -1;
+        boolean resume = options.containsKey("resume");
+        if(options.containsKey("checkpoint") || resume)
+        {
+            String checkpoint = options.getOrDefault("checkpoint", "");
+            try {
+                checkpointInterval = checkpoint.isEmpty() ? DEFAULT_CHECKPOINT_INTERVAL : Long.parseLong(checkpoint);
+            } catch(NumberFormatException e){
+                System.out.println("Checkpoint interval is not a whole number: " + checkpoint);
+                System.exit(0);
+            }
+            if(checkpointInterval < 1)
+            {
+                System.out.println("Checkpoint interval must be 1 second or more " +
+                        "instead of " + checkpointInterval);
+                System.exit(0);
+            }
+            if(regionShardSize >= 0 || geneWindow >= 0 || sidecar)
+            {
+                System.out.println("Checkpoints can not be combined with --regions, --stream or --sidecar.");
+                System.exit(0);
+            }
+        }
+
+        /*
+         * JSON report with the stage metrics
+         */
+        File report = null;
+        if(options.containsKey("report"))
+        {
+            report = new File(options.get("report"));
+            if(report.exists())
+            {
+                System.out.println("Report file already exists at " + report.getAbsolutePath()+". Please delete it first, or supply a different report file name.");
+                System.exit(0);
+            }
+        }
+
         /*
          * Argument parsing done, start CapiceQuickFilter
          */
         System.out.println("Arguments OK. Starting...");
         long start = System.nanoTime();
-        CapiceQuickFilter cqf = new CapiceQuickFilter(input, output,
-                capiceThreshold, gnomadThreshold, caseSampleID, controlSampleIDs);
+        CapiceQuickFilter cqf = batch ?
+                new CapiceQuickFilter(input, output, capiceThreshold, gnomadThreshold, batchFile) :
+                cohort ?
+                new CapiceQuickFilter(input, output, capiceThreshold, gnomadThreshold, controlSampleIDs) :
+                new CapiceQuickFilter(input, output, capiceThreshold, gnomadThreshold, caseSampleID, controlSampleIDs);
+        cqf.setThreads(threads);
+        if(regionShardSize >= 0)
+        {
+            cqf.setRegions(regionShardSize);
+        }
+        if(geneWindow >= 0)
+        {
+            cqf.setStreaming(geneWindow);
+        }
+        if(sorted)
+        {
+            cqf.setSortedOutput(true);
+        }
+        if(capiceIndex != null)
+        {
+            cqf.setCapiceIndex(capiceIndex);
+        }
+        if(precomputedScores != null)
+        {
+            cqf.setPrecomputedScores(precomputedScores);
+        }
+        if(gnomadFrequencies != null)
+        {
+            cqf.setGnomadFrequencies(gnomadFrequencies);
+        }
+        if(sweepCapiceThresholds != null)
+        {
+            cqf.setSweep(sweepCapiceThresholds, sweepGnomadThresholds);
+        }
+        if(sidecar)
+        {
+            cqf.setSidecar(true);
+        }
+        if(checkpointInterval >= 0)
+        {
+            cqf.setCheckpoints(checkpointInterval);
+        }
+        if(resume)
+        {
+            cqf.setResume(true);
+        }
+        if(report != null)
+        {
+            cqf.setReport(report);
+        }
         cqf.run();
         System.out.println("...completed in " + ((System.nanoTime()-start)/1000000)+"ms.");
     }
+
+    /**
+     * Comma-separated thresholds between 0.0 and 1.0, may be empty.
+     */
+    private static double[] parseThresholds(String name, String thresholds)
+    {
+        if(thresholds.isEmpty())
+        {
+            return new double[0];
+        }
+        String[] split = thresholds.split(",", -1);
+        double[] parsed = new double[split.length];
+        for(int i = 0; i < split.length; i++)
+        {
+            try {
+                parsed[i] = Double.parseDouble(split[i]);
+            } catch(NumberFormatException e){
+                System.out.println(name + " sweep threshold is not a number: " + split[i]);
+                System.exit(0);
+            }
+            if(parsed[i] < 0.0 || parsed[i] > 1.0)
+            {
+                System.out.println(name + " sweep threshold must be between 0.0 and 1.0 " +
+                        "instead of " + parsed[i]);
+                System.exit(0);
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Run the job server until the process is ended.
+     */
+    private static void serve(Map<String, String> options) throws Exception
+    {
+        int port = -1;
+        int workers = 2;
+        try {
+            port = Integer.parseInt(options.get("serve"));
+            if(options.containsKey("workers"))
+            {
+                workers = Integer.parseInt(options.get("workers"));
+            }
+        } catch(NumberFormatException e){
+            System.out.println("Port and number of workers must be whole numbers: " + e.getMessage());
+            System.exit(0);
+        }
+        if(port < 0 || port > 65535)
+        {
+            System.out.println("Port must be between 0 and 65535 instead of " + port);
+            System.exit(0);
+        }
+        if(workers < 1)
+        {
+            System.out.println("Number of workers must be 1 or more " +
+                    "instead of " + workers);
+            System.exit(0);
+        }
+        new JobServer(port, workers, JobServer.DEFAULT_QUEUE_SIZE).start();
+    }
 }
@@ -0,0 +1,401 @@
+package org.molgenis.capice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Inflater;
+
+/**
+ * Replacement for iterating a VcfReader. A reader thread splits the input at
+ * BGZF block boundaries into chunks, worker threads inflate the chunks and
+ * screen the lines they contain with the RecordScreener, and the outcomes
+ * are handed out in the original file order. Lines that cross a chunk
+ * boundary are stitched together and screened by the consuming thread.
+ * With a single thread, all work is done by the consuming thread.
+ * A pipeline can also resume after a line at a virtual offset, e.g. from a
+ * Checkpoint, starting in the BGZF block of that line.
+ */
+public class RecordPipeline implements Iterator<ScreenedRecord>, Closeable {
+
+    /*
+     * Static variables
+     */
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int CHUNKS_IN_FLIGHT_PER_THREAD = 4;
+    private static final Chunk END = new Chunk();
+
+    /*
+     * Class variables
+     */
+    private RecordScreener screener;
+    private BgzfBlockReader blockReader;
+    private ExecutorService workers;
+    private Thread readerThread;
+    private BlockingQueue<Future<Chunk>> chunks;
+    private ByteArrayOutputStream carry = new ByteArrayOutputStream();
+    private long carryOffset = -1;
+    private int firstChunkSkip = 0;
+    private boolean skipFirstLine = false;
+    private List<ScreenedRecord> buffer = Collections.emptyList();
+    private int bufferIndex = 0;
+    private boolean finished = false;
+
+    /**
+     * Inflated and parsed content of a run of consecutive BGZF blocks.
+     * Bytes before the first and after the last newline are kept as
+     * fragments because they belong to lines shared with neighbouring chunks.
+     * The start position and address of each block in the data are kept to
+     * calculate virtual offsets.
+     */
+    private static class Chunk
+    {
+        byte[] data;
+        int headEnd;
+        int tailStart;
+        boolean hasNewline;
+        List<ScreenedRecord> records;
+        int[] blockStarts;
+        long[] blockAddresses;
+
+        /**
+         * Virtual offset of a position in the data.
+         */
+        long offsetOf(int pos)
+        {
+            int block = 0;
+            while(block + 1 < blockStarts.length && blockStarts[block + 1] <= pos)
+            {
+                block++;
+            }
+            return (blockAddresses[block] << 16) | (pos - blockStarts[block]);
+        }
+    }
+
+    /*
+     * Constructor
+     */
+    public RecordPipeline(File input, RecordScreener screener, int threads) throws IOException {
+        this(input, screener, threads, -1);
+    }
+
+    /*
+     * Constructor to resume after the line at this virtual offset, or to
+     * start at the beginning if it is -1. The line at the offset itself is
+     * skipped, it has been processed before.
+     */
+    public RecordPipeline(File input, RecordScreener screener, int threads, long resumeAfter) throws IOException {
+        this.screener = screener;
+        this.blockReader = new BgzfBlockReader(input);
+        if(resumeAfter != -1)
+        {
+            blockReader.seek(resumeAfter >>> 16);
+            firstChunkSkip = (int) (resumeAfter & 0xFFFF);
+            skipFirstLine = true;
+        }
+        if(threads > 1)
+        {
+            this.workers = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "CapiceQuickFilter-worker");
+                t.setDaemon(true);
+                return t;
+            });
+            this.chunks = new ArrayBlockingQueue<>(threads * CHUNKS_IN_FLIGHT_PER_THREAD);
+            this.readerThread = new Thread(this::readChunks, "CapiceQuickFilter-reader");
+            this.readerThread.setDaemon(true);
+            this.readerThread.start();
+        }
+    }
+
+    /**
+     * Reader thread: group blocks into chunks and submit them in file order.
+     */
+    private void readChunks()
+    {
+        try {
+            while(true)
+            {
+                List<BgzfBlockReader.Block> blocks = readBlocks();
+                if(blocks == null)
+                {
+                    chunks.put(completed(END));
+                    return;
+                }
+                chunks.put(workers.submit(new ChunkTask(blocks, takeFirstChunkSkip())));
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch(Exception e) {
+
+            /*
+             * Wait for room in the queue, so the error always reaches the
+             * consumer instead of leaving it waiting for the next chunk
+             */
+            FutureTask<Chunk> failed = new FutureTask<>(() -> { throw e; });
+            failed.run();
+            try {
+                chunks.put(failed);
+            } catch(InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Read blocks until roughly CHUNK_SIZE uncompressed bytes are collected.
+     * Returns NULL when the input is exhausted.
+     */
+    private List<BgzfBlockReader.Block> readBlocks() throws IOException
+    {
+        List<BgzfBlockReader.Block> blocks = new ArrayList<>();
+        long size = 0;
+        while(size < CHUNK_SIZE)
+        {
+            BgzfBlockReader.Block block = blockReader.next();
+            if(block == null)
+            {
+                break;
+            }
+            if(block.uncompressedSize > 0)
+            {
+                blocks.add(block);
+                size += block.uncompressedSize;
+            }
+        }
+        return blocks.isEmpty() ? null : blocks;
+    }
+
+    /**
+     * Retrieve the next chunk in file order, or NULL at the end.
+     */
+    private Chunk nextChunk() throws Exception
+    {
+        if(workers == null)
+        {
+            List<BgzfBlockReader.Block> blocks = readBlocks();
+            return blocks == null ? null : new ChunkTask(blocks, takeFirstChunkSkip()).call();
+        }
+        Chunk chunk;
+        try {
+            chunk = chunks.take().get();
+        } catch(ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+        return chunk == END ? null : chunk;
+    }
+
+    /**
+     * Bytes to skip at the start of the next chunk: those before the line
+     * to resume after in its block, for the first chunk only.
+     */
+    private int takeFirstChunkSkip()
+    {
+        int skip = firstChunkSkip;
+        firstChunkSkip = 0;
+        return skip;
+    }
+
+    /**
+     * Worker task: inflate the blocks of one chunk and parse all lines that
+     * lie completely within it.
+     */
+    private class ChunkTask implements Callable<Chunk>
+    {
+        private List<BgzfBlockReader.Block> blocks;
+        private int skip;
+
+        ChunkTask(List<BgzfBlockReader.Block> blocks, int skip)
+        {
+            this.blocks = blocks;
+            this.skip = skip;
+        }
+
+        @Override
+        public Chunk call() throws Exception
+        {
+            int size = 0;
+            for(BgzfBlockReader.Block block : blocks)
+            {
+                size += block.uncompressedSize;
+            }
+            StageMetrics.Stage decompression = screener.getMetrics().decompression;
+            long inflateStart = decompression.start();
+            long inflateAllocation = decompression.startAllocation();
+            Chunk chunk = new Chunk();
+            chunk.data = new byte[size];
+            chunk.blockStarts = new int[blocks.size()];
+            chunk.blockAddresses = new long[blocks.size()];
+            Inflater inflater = new Inflater(true);
+            try {
+                int offset = 0;
+                for(int i = 0; i < blocks.size(); i++)
+                {
+                    BgzfBlockReader.Block block = blocks.get(i);
+                    chunk.blockStarts[i] = offset;
+                    chunk.blockAddresses[i] = block.address;
+                    BgzfBlockReader.inflate(block, inflater, chunk.data, offset);
+                    offset += block.uncompressedSize;
+                }
+            } finally {
+                inflater.end();
+            }
+            decompression.stop(inflateStart, inflateAllocation, blocks.size(), size);
+
+            /*
+             * Locate the first and last newline and parse what is in between
+             */
+            chunk.headEnd = indexOf(chunk.data, skip, size);
+            chunk.hasNewline = chunk.headEnd < size;
+            chunk.records = new ArrayList<>();
+            if(!chunk.hasNewline)
+            {
+                return chunk;
+            }
+            int start = chunk.headEnd + 1;
+            int end;
+            int block = 0;
+            while((end = indexOf(chunk.data, start, size)) < size)
+            {
+                while(block + 1 < chunk.blockStarts.length && chunk.blockStarts[block + 1] <= start)
+                {
+                    block++;
+                }
+                long offset = (chunk.blockAddresses[block] << 16) | (start - chunk.blockStarts[block]);
+                ScreenedRecord sr = screener.screen(chunk.data, start, end, offset);
+                if(sr != null)
+                {
+                    chunk.records.add(sr);
+                }
+                start = end + 1;
+            }
+            chunk.tailStart = start;
+            return chunk;
+        }
+    }
+
+    /**
+     * Position of the next newline, or 'end' if there is none.
+     */
+    private static int indexOf(byte[] data, int start, int end)
+    {
+        for(int i = start; i < end; i++)
+        {
+            if(data[i] == '\n')
+            {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static Future<Chunk> completed(Chunk chunk)
+    {
+        FutureTask<Chunk> f = new FutureTask<>(() -> chunk);
+        f.run();
+        return f;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        try {
+            while(bufferIndex >= buffer.size())
+            {
+                if(finished)
+                {
+                    return false;
+                }
+                Chunk chunk = nextChunk();
+                if(chunk == null)
+                {
+                    /*
+                     * Input ended without a final newline
+                     */
+                    finished = true;
+                    byte[] last = carry.toByteArray();
+                    carry.reset();
+                    ScreenedRecord sr = screener.screen(last, 0, last.length, carryOffset);
+                    buffer = sr == null ? Collections.<ScreenedRecord>emptyList() : Collections.singletonList(sr);
+                    bufferIndex = 0;
+                    continue;
+                }
+                if(carryOffset == -1)
+                {
+                    carryOffset = chunk.offsetOf(0);
+                }
+                if(!chunk.hasNewline)
+                {
+                    if(!skipFirstLine)
+                    {
+                        carry.write(chunk.data, 0, chunk.data.length);
+                    }
+                    continue;
+                }
+
+                /*
+                 * Complete the line shared with the previous chunk, it
+                 * precedes the records parsed by the worker. When resuming,
+                 * this is the line that was processed before.
+                 */
+                if(skipFirstLine)
+                {
+                    skipFirstLine = false;
+                }
+                else
+                {
+                    carry.write(chunk.data, 0, chunk.headEnd);
+                    byte[] stitched = carry.toByteArray();
+                    carry.reset();
+                    ScreenedRecord sr = screener.screen(stitched, 0, stitched.length, carryOffset);
+                    if(sr != null)
+                    {
+                        chunk.records.add(0, sr);
+                    }
+                }
+                carry.write(chunk.data, chunk.tailStart, chunk.data.length - chunk.tailStart);
+                carryOffset = chunk.tailStart < chunk.data.length ? chunk.offsetOf(chunk.tailStart) : -1;
+                buffer = chunk.records;
+                bufferIndex = 0;
+            }
+            return true;
+        } catch(RuntimeException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public ScreenedRecord next()
+    {
+        if(!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        return buffer.get(bufferIndex++);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if(workers != null)
+        {
+            readerThread.interrupt();
+            workers.shutdownNow();
+        }
+        blockReader.close();
+    }
+}
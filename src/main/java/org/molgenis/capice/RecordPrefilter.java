@@ -0,0 +1,576 @@
+package org.molgenis.capice;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fast-reject prefilter that decides on the CAPICE and GnomAD thresholds by
+ * scanning the raw bytes of a VCF line, so that records which are dropped
+ * anyway never have to be materialized. Gives the same outcome as
+ * Helper.getHighestCapice and Helper.getLowestGnomAD followed by the
+ * threshold checks in CapiceQuickFilter.
+ * For a threshold sweep, a line is screened against a grid of thresholds
+ * at once. The outcome flags then refer to the loosest thresholds, and the
+ * rank of the line among the sorted thresholds tells whether it is dropped
+ * at any of the others, see ScreenedRecord.
+ */
+public class RecordPrefilter {
+
+    /*
+     * Outcome flags returned by screen()
+     */
+    static final int MISSING_CAPICE = 1;
+    static final int MISSING_GNOMAD = 2;
+    static final int DROP_CAPICE = 4;
+    static final int DROP_GNOMAD = 8;
+    static final int RANKED = 16;
+
+    /*
+     * For a grid of thresholds, the CAPICE rank is the number of CAPICE
+     * thresholds that the highest score reaches, and the GnomAD rank the
+     * number of GnomAD thresholds that the lowest frequency exceeds. Lines
+     * without a usable value get the rank at which they are never dropped.
+     */
+    static final int CAPICE_RANK_SHIFT = 8;
+    static final int GNOMAD_RANK_SHIFT = 16;
+    static final int RANK_MASK = 0xFF;
+    static final int MAX_THRESHOLDS = RANK_MASK;
+
+    /*
+     * Static variables
+     */
+    private static final int INFO_COLUMN = 7;
+    private static final int NOT_INDEXED = -1;
+    private static final byte[] CAPICE_KEY = "CAPICE".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CSQ_KEY = "CSQ".getBytes(StandardCharsets.US_ASCII);
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for(int i = 1; i < POWERS_OF_TEN.length; i++)
+        {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+        }
+    }
+
+    /*
+     * Class variables
+     */
+    private double[] capiceThresholds;
+    private double[] gnomadThresholds;
+    private boolean ranked;
+    private int gnomadCsqIndex;
+    private CapiceScores capiceScores;
+    private GnomadFrequencies gnomadFrequencies;
+
+    /*
+     * Constructor. The position of gnomAD_AF within each CSQ entry is taken
+     * from the CSQ header, if absent (-1) no GnomAD values are found.
+     */
+    public RecordPrefilter(double capiceThreshold, double gnomadThreshold, int gnomadCsqIndex) {
+        this(new double[]{capiceThreshold}, new double[]{gnomadThreshold}, gnomadCsqIndex);
+    }
+
+    /*
+     * Constructor for a threshold sweep, with the distinct CAPICE and
+     * GnomAD thresholds in ascending order, at most MAX_THRESHOLDS each.
+     */
+    public RecordPrefilter(double[] capiceThresholds, double[] gnomadThresholds, int gnomadCsqIndex) {
+        this.capiceThresholds = capiceThresholds;
+        this.gnomadThresholds = gnomadThresholds;
+        this.ranked = capiceThresholds.length > 1 || gnomadThresholds.length > 1;
+        this.gnomadCsqIndex = gnomadCsqIndex;
+    }
+
+    /**
+     * Score SNVs with these CAPICE scores instead of the CAPICE INFO field.
+     * Other variants, and SNVs without a score, still use the INFO field.
+     */
+    public void setCapiceScores(CapiceScores capiceScores) {
+        this.capiceScores = capiceScores;
+    }
+
+    /**
+     * Look up GnomAD frequencies here instead of in the CSQ annotation, for
+     * the lines that pass the CAPICE thresholds. Variants that are not
+     * found still use the CSQ annotation.
+     */
+    void setGnomadFrequencies(GnomadFrequencies gnomadFrequencies) {
+        this.gnomadFrequencies = gnomadFrequencies;
+    }
+
+    /**
+     * Screen one VCF data line, located at data[start] to data[end]
+     * (exclusive). Returns a combination of the outcome flags.
+     */
+    int screen(byte[] data, int start, int end) throws Exception
+    {
+        return screen(data, start, end, null);
+    }
+
+    /**
+     * Screen one VCF data line, and if values is not NULL, store the
+     * highest CAPICE score and lowest GnomAD frequency in it, exactly
+     * parsed, or NaN if they do not decide. Not for scores from an index.
+     */
+    int screen(byte[] data, int start, int end, double[] values) throws Exception
+    {
+        /*
+         * Skip to the INFO column
+         */
+        int infoStart = start;
+        for(int column = 0; column < INFO_COLUMN; column++)
+        {
+            infoStart = indexOf(data, infoStart, end, (byte) '\t') + 1;
+            if(infoStart > end)
+            {
+                throw new Exception("Not enough columns in VCF line: " + new String(data, start, end - start, StandardCharsets.ISO_8859_1));
+            }
+        }
+        int infoEnd = indexOf(data, infoStart, end, (byte) '\t');
+
+        /*
+         * Track the same state as the Helper functions: whether a value was
+         * found, whether the first one found was NaN, and the rank of the
+         * others among the thresholds. With a single threshold, a CAPICE
+         * rank of 0 means all scores are below it, and a GnomAD rank of 1
+         * that all frequencies are above it.
+         */
+        boolean capiceFound = false;
+        boolean capiceNaN = false;
+        int capiceRank = 0;
+        boolean gnomadFound = false;
+        boolean gnomadNaN = false;
+        int gnomadRank = gnomadThresholds.length;
+        double highestCapice = Double.NEGATIVE_INFINITY;
+        double lowestGnomad = Double.POSITIVE_INFINITY;
+        double[] capiceParseThresholds = values == null ? capiceThresholds : null;
+        double[] gnomadParseThresholds = values == null ? gnomadThresholds : null;
+
+        /*
+         * Look up the CAPICE scores in the index or precomputed scores, if
+         * there are any
+         */
+        boolean capiceFromIndex = false;
+        if(capiceScores != null)
+        {
+            int indexed = screenIndexedCapice(data, start, end);
+            if(indexed != NOT_INDEXED)
+            {
+                capiceFromIndex = true;
+                capiceFound = true;
+                capiceRank = indexed;
+            }
+        }
+
+        int entryStart = infoStart;
+        while(entryStart < infoEnd)
+        {
+            int entryEnd = indexOf(data, entryStart, infoEnd, (byte) ';');
+            int eq = indexOf(data, entryStart, entryEnd, (byte) '=');
+            if(!capiceFromIndex && eq < entryEnd && matches(data, entryStart, eq, CAPICE_KEY))
+            {
+                int valueStart = eq + 1;
+                while(true)
+                {
+                    int valueEnd = indexOf(data, valueStart, entryEnd, (byte) ',');
+                    double score = parseDouble(data, valueStart, valueEnd, capiceParseThresholds);
+                    if(Double.isNaN(score))
+                    {
+                        capiceNaN |= !capiceFound;
+                    }
+                    else
+                    {
+                        capiceRank = Math.max(capiceRank, capiceRank(score));
+                        highestCapice = Math.max(highestCapice, score);
+                    }
+                    capiceFound = true;
+                    if(valueEnd == entryEnd)
+                    {
+                        break;
+                    }
+                    valueStart = valueEnd + 1;
+                }
+            }
+            else if(gnomadCsqIndex != -1 && eq < entryEnd && matches(data, entryStart, eq, CSQ_KEY))
+            {
+                int csqStart = eq + 1;
+                while(true)
+                {
+                    int csqEnd = indexOf(data, csqStart, entryEnd, (byte) ',');
+                    int fieldStart = csqStart;
+                    for(int field = 0; field < gnomadCsqIndex; field++)
+                    {
+                        fieldStart = indexOf(data, fieldStart, csqEnd, (byte) '|') + 1;
+                        if(fieldStart > csqEnd)
+                        {
+                            throw new Exception("CSQ annotation has no gnomAD_AF at index " + gnomadCsqIndex + ": " + new String(data, csqStart, csqEnd - csqStart, StandardCharsets.ISO_8859_1));
+                        }
+                    }
+                    int fieldEnd = indexOf(data, fieldStart, csqEnd, (byte) '|');
+                    if(fieldEnd > fieldStart)
+                    {
+                        double af = parseDouble(data, fieldStart, fieldEnd, gnomadParseThresholds);
+                        if(Double.isNaN(af))
+                        {
+                            gnomadNaN |= !gnomadFound;
+                        }
+                        else
+                        {
+                            gnomadRank = Math.min(gnomadRank, gnomadRank(af));
+                            lowestGnomad = Math.min(lowestGnomad, af);
+                        }
+                        gnomadFound = true;
+                    }
+                    if(csqEnd == entryEnd)
+                    {
+                        break;
+                    }
+                    csqStart = csqEnd + 1;
+                }
+            }
+            entryStart = entryEnd + 1;
+        }
+
+        int flags = 0;
+        if(!capiceFound)
+        {
+            flags |= MISSING_CAPICE;
+        }
+        if(!gnomadFound)
+        {
+            flags |= MISSING_GNOMAD;
+        }
+        if(!capiceFound || capiceNaN)
+        {
+            capiceRank = capiceThresholds.length;
+            highestCapice = Double.NaN;
+        }
+        if(!gnomadFound || gnomadNaN)
+        {
+            gnomadRank = 0;
+            lowestGnomad = Double.NaN;
+        }
+
+        /*
+         * Frequencies of the GnomAD table are only looked up for lines that
+         * are not dropped by CAPICE anyway, so that the table is only read
+         * around those
+         */
+        if(gnomadFrequencies != null && capiceRank > 0)
+        {
+            double af = lowestJoinedGnomad(data, start, end);
+            if(!Double.isNaN(af))
+            {
+                flags &= ~MISSING_GNOMAD;
+                gnomadRank = gnomadRank(af);
+                lowestGnomad = af;
+            }
+        }
+        if(values != null)
+        {
+            values[0] = highestCapice;
+            values[1] = lowestGnomad;
+        }
+        return outcome(flags, capiceRank, gnomadRank);
+    }
+
+    /**
+     * Screen a line by its highest CAPICE score and lowest GnomAD
+     * frequency as stored by screen(), with its MISSING flags.
+     */
+    int screen(double highestCapice, double lowestGnomad, int missingFlags)
+    {
+        int capiceRank = Double.isNaN(highestCapice) ? capiceThresholds.length : capiceRank(highestCapice);
+        int gnomadRank = Double.isNaN(lowestGnomad) ? 0 : gnomadRank(lowestGnomad);
+        return outcome(missingFlags, capiceRank, gnomadRank);
+    }
+
+    /**
+     * Add the outcome of the ranks to the MISSING flags.
+     */
+    private int outcome(int flags, int capiceRank, int gnomadRank)
+    {
+        /*
+         * Drop when dropped at the loosest thresholds: the lowest CAPICE and
+         * the highest GnomAD threshold
+         */
+        if(capiceRank == 0)
+        {
+            flags |= DROP_CAPICE;
+        }
+        else if(gnomadRank == gnomadThresholds.length)
+        {
+            flags |= DROP_GNOMAD;
+        }
+        if(ranked)
+        {
+            flags |= RANKED | capiceRank << CAPICE_RANK_SHIFT | gnomadRank << GNOMAD_RANK_SHIFT;
+        }
+        return flags;
+    }
+
+    /**
+     * Number of CAPICE thresholds that a score reaches.
+     */
+    private int capiceRank(double score)
+    {
+        int rank = 0;
+        while(rank < capiceThresholds.length && score >= capiceThresholds[rank])
+        {
+            rank++;
+        }
+        return rank;
+    }
+
+    /**
+     * Number of GnomAD thresholds that a frequency exceeds.
+     */
+    private int gnomadRank(double af)
+    {
+        int rank = 0;
+        while(rank < gnomadThresholds.length && af > gnomadThresholds[rank])
+        {
+            rank++;
+        }
+        return rank;
+    }
+
+    /**
+     * Rank the highest CAPICE score of all alternative alleles of an SNV,
+     * taken from the score index, among the thresholds. Returns NOT_INDEXED
+     * if the line is not an SNV or any of its alleles has no score.
+     */
+    private int screenIndexedCapice(byte[] data, int start, int end)
+    {
+        int chromEnd = indexOf(data, start, end, (byte) '\t');
+        int posEnd = indexOf(data, chromEnd + 1, end, (byte) '\t');
+        int idEnd = indexOf(data, posEnd + 1, end, (byte) '\t');
+        int refEnd = indexOf(data, idEnd + 1, end, (byte) '\t');
+        int altEnd = indexOf(data, refEnd + 1, end, (byte) '\t');
+        if(refEnd - idEnd != 2 || altEnd == refEnd + 1 || altEnd >= end)
+        {
+            return NOT_INDEXED;
+        }
+        long pos = 0;
+        for(int i = chromEnd + 1; i < posEnd; i++)
+        {
+            if(data[i] < '0' || data[i] > '9')
+            {
+                return NOT_INDEXED;
+            }
+            pos = pos * 10 + (data[i] - '0');
+        }
+        byte ref = data[idEnd + 1];
+        int rank = 0;
+        for(int alt = refEnd + 1; alt < altEnd; alt += 2)
+        {
+            if(alt + 1 < altEnd && data[alt + 1] != ',')
+            {
+                return NOT_INDEXED;
+            }
+            double score = capiceScores.getScore(data, start, chromEnd, pos, ref, data[alt]);
+            if(Double.isNaN(score))
+            {
+                return NOT_INDEXED;
+            }
+            rank = Math.max(rank, capiceRank(score));
+        }
+        return rank;
+    }
+
+    /**
+     * Lowest frequency of the alternative alleles of a line in the GnomAD
+     * table, or NaN if none of them is found.
+     */
+    private double lowestJoinedGnomad(byte[] data, int start, int end)
+    {
+        int chromEnd = indexOf(data, start, end, (byte) '\t');
+        int posEnd = indexOf(data, chromEnd + 1, end, (byte) '\t');
+        int idEnd = indexOf(data, posEnd + 1, end, (byte) '\t');
+        int refEnd = indexOf(data, idEnd + 1, end, (byte) '\t');
+        int altEnd = indexOf(data, refEnd + 1, end, (byte) '\t');
+        if(altEnd >= end)
+        {
+            return Double.NaN;
+        }
+        long pos = 0;
+        for(int i = chromEnd + 1; i < posEnd; i++)
+        {
+            if(data[i] < '0' || data[i] > '9')
+            {
+                return Double.NaN;
+            }
+            pos = pos * 10 + (data[i] - '0');
+        }
+        double lowest = Double.NaN;
+        int altStart = refEnd + 1;
+        while(altStart < altEnd)
+        {
+            int alleleEnd = indexOf(data, altStart, altEnd, (byte) ',');
+            double af = gnomadFrequencies.getFrequency(data, start, chromEnd, pos, idEnd + 1, refEnd, altStart, alleleEnd);
+            if(!Double.isNaN(af) && (Double.isNaN(lowest) || af < lowest))
+            {
+                lowest = af;
+            }
+            altStart = alleleEnd + 1;
+        }
+        return lowest;
+    }
+
+    /**
+     * Parse a decimal number without creating a String. The result is only
+     * guaranteed to be exact when it is compared against the thresholds it
+     * was parsed for: values that are approximated and land close to one of
+     * the thresholds are parsed again by Double.parseDouble, as are all
+     * forms not handled here (e.g. 'NaN', hexadecimal). Without thresholds
+     * (NULL), all approximated values are parsed again.
+     */
+    static double parseDouble(byte[] data, int start, int end, double[] thresholds)
+    {
+        int i = start;
+        boolean negative = false;
+        if(i < end && (data[i] == '-' || data[i] == '+'))
+        {
+            negative = data[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean anyDigit = false;
+        boolean truncated = false;
+        boolean dot = false;
+        for(; i < end; i++)
+        {
+            byte b = data[i];
+            if(b >= '0' && b <= '9')
+            {
+                anyDigit = true;
+                if(mantissa == 0 && b == '0')
+                {
+                    if(dot)
+                    {
+                        scale--;
+                    }
+                    continue;
+                }
+                if(digits < 18)
+                {
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                    if(dot)
+                    {
+                        scale--;
+                    }
+                }
+                else
+                {
+                    truncated = true;
+                    if(!dot)
+                    {
+                        scale++;
+                    }
+                }
+            }
+            else if(b == '.' && !dot)
+            {
+                dot = true;
+            }
+            else
+            {
+                break;
+            }
+        }
+        if(i < end && anyDigit && (data[i] == 'e' || data[i] == 'E'))
+        {
+            i++;
+            boolean negativeExponent = false;
+            if(i < end && (data[i] == '-' || data[i] == '+'))
+            {
+                negativeExponent = data[i] == '-';
+                i++;
+            }
+            int exponent = 0;
+            int exponentStart = i;
+            for(; i < end && data[i] >= '0' && data[i] <= '9' && exponent < 10000; i++)
+            {
+                exponent = exponent * 10 + (data[i] - '0');
+            }
+            if(i == exponentStart)
+            {
+                return exactDouble(data, start, end);
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+        if(i != end || !anyDigit || scale < -300 || scale > 300)
+        {
+            return exactDouble(data, start, end);
+        }
+
+        /*
+         * Exact when the mantissa and power of ten are both exactly
+         * representable, otherwise approximate
+         */
+        double value = mantissa;
+        boolean exact = mantissa < (1L << 53) && !truncated;
+        int power = Math.abs(scale);
+        while(power > 22)
+        {
+            value = scale < 0 ? value / POWERS_OF_TEN[22] : value * POWERS_OF_TEN[22];
+            power -= 22;
+            exact = false;
+        }
+        value = scale < 0 ? value / POWERS_OF_TEN[power] : value * POWERS_OF_TEN[power];
+        value = negative ? -value : value;
+        if(!exact && thresholds == null)
+        {
+            return exactDouble(data, start, end);
+        }
+        if(!exact)
+        {
+            for(double threshold : thresholds)
+            {
+                if(Math.abs(value - threshold) <= Math.abs(threshold) * 1e-12 + Double.MIN_NORMAL)
+                {
+                    return exactDouble(data, start, end);
+                }
+            }
+        }
+        return value;
+    }
+
+    private static double exactDouble(byte[] data, int start, int end)
+    {
+        return Double.parseDouble(new String(data, start, end - start, StandardCharsets.ISO_8859_1));
+    }
+
+    private static boolean matches(byte[] data, int start, int end, byte[] key)
+    {
+        if(end - start != key.length)
+        {
+            return false;
+        }
+        for(int i = 0; i < key.length; i++)
+        {
+            if(data[start + i] != key[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Position of the next occurrence of b, or 'end' if there is none.
+     */
+    static int indexOf(byte[] data, int start, int end, byte b)
+    {
+        for(int i = start; i < end; i++)
+        {
+            if(data[i] == b)
+            {
+                return i;
+            }
+        }
+        return end;
+    }
+}
@@ -0,0 +1,118 @@
+package org.molgenis.capice;
+
+import org.molgenis.vcf.VcfRecord;
+import org.molgenis.vcf.meta.VcfMeta;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Turns a raw VCF line into a ScreenedRecord: screens it with the
+ * RecordPrefilter and, only if it passes, parses it into a VcfRecord and
+ * decodes the genotypes of the selected samples. The VcfRecord only holds
+ * the fixed columns up to INFO, the sample columns are left to the
+ * GenotypeDecoder, so parsing does not grow with the number of samples.
+ * Safe to share between threads. Both steps are measured as stages of the
+ * StageMetrics.
+ */
+class RecordScreener {
+
+    /*
+     * Static variables
+     */
+    private static final int FIXED_COLUMNS = 8;
+
+    /*
+     * Class variables
+     */
+    private VcfMeta vcfMeta;
+    private RecordPrefilter prefilter;
+    private GenotypeDecoder genotypeDecoder;
+    private StageMetrics metrics;
+    private boolean keepAll;
+
+    /*
+     * Constructor
+     */
+    RecordScreener(VcfMeta vcfMeta, RecordPrefilter prefilter, GenotypeDecoder genotypeDecoder, StageMetrics metrics) {
+        this.vcfMeta = vcfMeta;
+        this.prefilter = prefilter;
+        this.genotypeDecoder = genotypeDecoder;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Parse all lines, also those that are dropped, and keep their highest
+     * CAPICE score and lowest GnomAD frequency, to write a sidecar.
+     */
+    void keepAll()
+    {
+        this.keepAll = true;
+    }
+
+    StageMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Screen the line at data[start] to data[end] (exclusive), found at a
+     * BGZF virtual offset. Returns NULL for header and empty lines.
+     */
+    ScreenedRecord screen(byte[] data, int start, int end, long offset) throws Exception
+    {
+        if(end > start && data[end - 1] == '\r')
+        {
+            end--;
+        }
+        if(end == start || data[start] == '#')
+        {
+            return null;
+        }
+        StageMetrics.Stage stage = metrics.extraction;
+        long stageStart = stage.start();
+        long stageAllocation = stage.startAllocation();
+        double[] values = keepAll ? new double[2] : null;
+        int flags = prefilter.screen(data, start, end, values);
+        stage.stop(stageStart, stageAllocation, 1, end - start);
+        if(!keepAll && (flags & (RecordPrefilter.DROP_CAPICE | RecordPrefilter.DROP_GNOMAD)) != 0)
+        {
+            return ScreenedRecord.dropped(flags);
+        }
+        stage = metrics.parsing;
+        stageStart = stage.start();
+        stageAllocation = stage.startAllocation();
+        byte[] altCounts = genotypeDecoder.isPacked() ? null : genotypeDecoder.decode(data, start, end);
+        ScreenedRecord sr = new ScreenedRecord(flags, new VcfRecord(vcfMeta, splitFixedColumns(data, start, end)), altCounts, offset);
+        if(altCounts == null)
+        {
+            sr.altPlanes = genotypeDecoder.decodePlanes(data, start, end);
+        }
+        if(keepAll)
+        {
+            sr.highestCapice = values[0];
+            sr.lowestGnomad = values[1];
+        }
+        stage.stop(stageStart, stageAllocation, 1, end - start);
+        return sr;
+    }
+
+    /**
+     * The columns CHROM to INFO of a line.
+     */
+    private static String[] splitFixedColumns(byte[] data, int start, int end) throws Exception
+    {
+        String[] tokens = new String[FIXED_COLUMNS];
+        int pos = start;
+        for(int i = 0; i < FIXED_COLUMNS; i++)
+        {
+            if(pos > end)
+            {
+                throw new Exception("Expected at least " + FIXED_COLUMNS + " columns at line: " + new String(data, start, end - start, StandardCharsets.ISO_8859_1));
+            }
+            int tab = RecordPrefilter.indexOf(data, pos, end, (byte) '\t');
+            tokens[i] = new String(data, pos, tab - pos, StandardCharsets.ISO_8859_1);
+            pos = tab + 1;
+        }
+        return tokens;
+    }
+}
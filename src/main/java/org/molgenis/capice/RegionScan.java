@@ -0,0 +1,236 @@
+package org.molgenis.capice;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Region-parallel execution. The genome is split into regions using the
+ * tabix/CSI index of the input, either one per chromosome or fixed-size
+ * shards. Each region is scanned on a fork-join worker into its own set
+ * of SampleSetFilters, which are merged back in file order, so the result
+ * is identical to a serial run. Compound heterozygote resolution happens
+ * after merging, so genes spanning shard boundaries are handled correctly.
+ */
+class RegionScan extends RecursiveTask<List<SampleSetFilter>> {
+
+    /**
+     * A part of the genome and the virtual offsets between which its
+     * records are found. Records are assigned to a region by chromosome and
+     * by POS within [beginPos, endPos).
+     */
+    static class Region
+    {
+        String chrom;
+        long startOffset;
+        long endOffset;
+        long beginPos;
+        long endPos;
+
+        Region(String chrom, long startOffset, long endOffset, long beginPos, long endPos)
+        {
+            this.chrom = chrom;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.beginPos = beginPos;
+            this.endPos = endPos;
+        }
+    }
+
+    /*
+     * Class variables
+     */
+    private static final long serialVersionUID = 1L;
+    private File input;
+    private List<Region> regions;
+    private int from;
+    private int to;
+    private RecordScreener screener;
+    private List<SampleSetFilter> templates;
+    private CsqExtractor csq;
+
+    /*
+     * Constructor, to scan regions[from] up to regions[to] (exclusive)
+     */
+    RegionScan(File input, List<Region> regions, int from, int to, RecordScreener screener, List<SampleSetFilter> templates, CsqExtractor csq) {
+        this.input = input;
+        this.regions = regions;
+        this.from = from;
+        this.to = to;
+        this.screener = screener;
+        this.templates = templates;
+        this.csq = csq;
+    }
+
+    /**
+     * Split the indexed chromosomes into regions. With a shard size of 0,
+     * each chromosome is one region. Otherwise, chromosomes are split into
+     * shards of this many bases, which needs the linear index of a .tbi.
+     */
+    static List<Region> plan(TabixIndex index, File input, long shardSize) throws Exception
+    {
+        List<Region> regions = new ArrayList<>();
+        for(TabixIndex.Reference reference : index.getReferences())
+        {
+            String chrom = reference.name != null ? reference.name : firstChrom(input, reference.startOffset);
+            if(shardSize <= 0 || reference.linearIndex.length == 0)
+            {
+                regions.add(new Region(chrom, reference.startOffset, reference.endOffset, 0, Long.MAX_VALUE));
+                continue;
+            }
+            long extent = (long) reference.linearIndex.length << TabixIndex.LINEAR_WINDOW_SHIFT;
+            for(long begin = 0; begin < extent; begin += shardSize)
+            {
+                /*
+                 * The linear index is 0-based, so the record at POS begin
+                 * is found in the window of 0-based position begin - 1
+                 */
+                long window = reference.linearIndex[begin == 0 ? 0 : (int) ((begin - 1) >> TabixIndex.LINEAR_WINDOW_SHIFT)];
+                long startOffset = Math.max(window, reference.startOffset);
+                long endPos = begin + shardSize >= extent ? Long.MAX_VALUE : begin + shardSize;
+                regions.add(new Region(chrom, startOffset, reference.endOffset, begin, endPos));
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Chromosome of the record at a virtual offset, for indices without
+     * sequence names.
+     */
+    private static String firstChrom(File input, long offset) throws Exception
+    {
+        try(BgzfLineReader reader = new BgzfLineReader(input))
+        {
+            reader.seek(offset);
+            if(!reader.next())
+            {
+                throw new Exception("No record found at indexed offset " + offset);
+            }
+            byte[] data = reader.getLineData();
+            int end = RecordPrefilter.indexOf(data, reader.getLineStart(), reader.getLineEnd(), (byte) '\t');
+            return new String(data, reader.getLineStart(), end - reader.getLineStart(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    @Override
+    protected List<SampleSetFilter> compute()
+    {
+        try {
+            if(to - from == 1)
+            {
+                return scan(regions.get(from));
+            }
+
+            /*
+             * Split in halves and merge left before right to keep file order
+             */
+            int middle = (from + to) >>> 1;
+            RegionScan left = new RegionScan(input, regions, from, middle, screener, templates, csq);
+            RegionScan right = new RegionScan(input, regions, middle, to, screener, templates, csq);
+            right.fork();
+            List<SampleSetFilter> merged = left.compute();
+            List<SampleSetFilter> rightResult = right.join();
+            for(int i = 0; i < merged.size(); i++)
+            {
+                merged.get(i).merge(rightResult.get(i));
+            }
+            return merged;
+        } catch(RuntimeException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Scan the records of a single region into fresh filters.
+     */
+    private List<SampleSetFilter> scan(Region region) throws Exception
+    {
+        List<SampleSetFilter> filters = new ArrayList<>();
+        for(SampleSetFilter template : templates)
+        {
+            filters.add(template.newPartition());
+        }
+        byte[] chrom = region.chrom.getBytes(StandardCharsets.ISO_8859_1);
+        boolean chromSeen = false;
+        StageMetrics.Stage genotypes = screener.getMetrics().genotypes;
+        try(BgzfLineReader reader = new BgzfLineReader(input))
+        {
+            reader.measure(screener.getMetrics().decompression);
+            reader.seek(region.startOffset);
+            while(reader.next() && reader.getLineOffset() < region.endOffset)
+            {
+                byte[] data = reader.getLineData();
+                int start = reader.getLineStart();
+                int end = reader.getLineEnd();
+                if(end == start || data[start] == '#')
+                {
+                    continue;
+                }
+
+                /*
+                 * Check that the record belongs to this region
+                 */
+                int chromEnd = RecordPrefilter.indexOf(data, start, end, (byte) '\t');
+                if(!equals(data, start, chromEnd, chrom))
+                {
+                    if(chromSeen)
+                    {
+                        break;
+                    }
+                    continue;
+                }
+                chromSeen = true;
+                long pos = parsePos(data, chromEnd + 1, end);
+                if(pos < region.beginPos)
+                {
+                    continue;
+                }
+                if(pos >= region.endPos)
+                {
+                    break;
+                }
+
+                ScreenedRecord sr = screener.screen(data, start, end, reader.getLineOffset());
+                long stageStart = genotypes.start();
+                long stageAllocation = genotypes.startAllocation();
+                for(SampleSetFilter filter : filters)
+                {
+                    filter.accept(sr, csq);
+                }
+                genotypes.stop(stageStart, stageAllocation, 1, 0);
+            }
+        }
+        return filters;
+    }
+
+    private static boolean equals(byte[] data, int start, int end, byte[] value)
+    {
+        if(end - start != value.length)
+        {
+            return false;
+        }
+        for(int i = 0; i < value.length; i++)
+        {
+            if(data[start + i] != value[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parsePos(byte[] data, int start, int end)
+    {
+        long pos = 0;
+        for(int i = start; i < end && data[i] >= '0' && data[i] <= '9'; i++)
+        {
+            pos = pos * 10 + (data[i] - '0');
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,170 @@
+package org.molgenis.capice;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One case sample with its control samples, and the output file for the
+ * report of this set. Batch mode reads any number of these from a PED file
+ * or a job list and evaluates all of them in one pass over the VCF.
+ */
+public class SampleSet {
+
+    /*
+     * Class variables
+     */
+    private String caseSampleID;
+    private List<String> controlSampleIDs;
+    private File output;
+
+    /*
+     * Static variables
+     */
+    private static final String PED_AFFECTED = "2";
+    private static final String PED_UNAFFECTED = "1";
+    private static final String OUTPUT_EXTENSION = ".vcf";
+
+    /*
+     * Constructor
+     */
+    public SampleSet(String caseSampleID, List<String> controlSampleIDs, File output) {
+        this.caseSampleID = caseSampleID;
+        this.controlSampleIDs = controlSampleIDs;
+        this.output = output;
+    }
+
+    public String getCaseSampleID() {
+        return caseSampleID;
+    }
+
+    public List<String> getControlSampleIDs() {
+        return controlSampleIDs;
+    }
+
+    public File getOutput() {
+        return output;
+    }
+
+    /**
+     * Read sample sets from a batch file. Files ending in '.ped' are read as
+     * a pedigree, anything else as a job list.
+     */
+    static List<SampleSet> read(File batchFile, List<String> sampleNames, File outputDir) throws Exception
+    {
+        List<SampleSet> sets = batchFile.getName().endsWith(".ped") ?
+                readPedigree(batchFile, sampleNames, outputDir) :
+                readJobList(batchFile, outputDir);
+        if(sets.isEmpty())
+        {
+            throw new Exception("No case samples found in batch file: " + batchFile.getAbsolutePath());
+        }
+
+        /*
+         * Two sets with the same output, e.g. a case listed twice or an
+         * affected individual in two families, would overwrite each other
+         */
+        Map<File, String> caseOfOutput = new HashMap<>();
+        for(SampleSet set : sets)
+        {
+            String other = caseOfOutput.put(set.getOutput().getAbsoluteFile(), set.getCaseSampleID());
+            if(other != null)
+            {
+                throw new Exception("Output file " + set.getOutput().getAbsolutePath() + " is used by more than one set in batch file " + batchFile.getAbsolutePath() + ", for cases " + other + " and " + set.getCaseSampleID());
+            }
+        }
+        return sets;
+    }
+
+    /**
+     * Read a PED file (family, individual, father, mother, sex, phenotype).
+     * Every affected individual present in the VCF becomes a case, with the
+     * unaffected members of the same family that are present as controls.
+     */
+    static List<SampleSet> readPedigree(File ped, List<String> sampleNames, File outputDir) throws Exception
+    {
+        Map<String, List<String>> affectedPerFamily = new LinkedHashMap<>();
+        Map<String, List<String>> unaffectedPerFamily = new LinkedHashMap<>();
+        BufferedReader br = new BufferedReader(new FileReader(ped));
+        String line;
+        while((line = br.readLine()) != null)
+        {
+            if(line.trim().isEmpty() || line.startsWith("#"))
+            {
+                continue;
+            }
+            String[] split = line.trim().split("\\s+");
+            if(split.length < 6)
+            {
+                br.close();
+                throw new Exception("Expected 6 columns in PED file but found " + split.length + " for line: " + line);
+            }
+            String family = split[0];
+            String individual = split[1];
+            if(!sampleNames.contains(individual))
+            {
+                System.out.println("Skipping PED individual not present in VCF: " + individual);
+                continue;
+            }
+            if(split[5].equals(PED_AFFECTED))
+            {
+                affectedPerFamily.computeIfAbsent(family, k -> new ArrayList<>()).add(individual);
+            }
+            else if(split[5].equals(PED_UNAFFECTED))
+            {
+                unaffectedPerFamily.computeIfAbsent(family, k -> new ArrayList<>()).add(individual);
+            }
+        }
+        br.close();
+
+        List<SampleSet> sets = new ArrayList<>();
+        for(String family : affectedPerFamily.keySet())
+        {
+            List<String> controls = unaffectedPerFamily.getOrDefault(family, new ArrayList<>());
+            for(String affected : affectedPerFamily.get(family))
+            {
+                sets.add(new SampleSet(affected, controls, new File(outputDir, affected + OUTPUT_EXTENSION)));
+            }
+        }
+        return sets;
+    }
+
+    /**
+     * Read a tab-separated job list with on each line a case sample ID,
+     * optionally followed by comma-separated control sample IDs and an
+     * output file name. Lines starting with '#' are ignored.
+     */
+    static List<SampleSet> readJobList(File jobList, File outputDir) throws Exception
+    {
+        List<SampleSet> sets = new ArrayList<>();
+        BufferedReader br = new BufferedReader(new FileReader(jobList));
+        String line;
+        while((line = br.readLine()) != null)
+        {
+            if(line.trim().isEmpty() || line.startsWith("#"))
+            {
+                continue;
+            }
+            String[] split = line.split("\t", -1);
+            String caseSampleID = split[0];
+            List<String> controls = split.length > 1 && !split[1].isEmpty() ?
+                    Arrays.asList(split[1].split(",", -1)) : new ArrayList<>();
+            String outputName = split.length > 2 && !split[2].isEmpty() ?
+                    split[2] : caseSampleID + OUTPUT_EXTENSION;
+            if(caseSampleID.isEmpty() || controls.contains(""))
+            {
+                br.close();
+                throw new Exception("Case or control sample ID may not be empty in job list line: " + line);
+            }
+            sets.add(new SampleSet(caseSampleID, controls, new File(outputDir, outputName)));
+        }
+        br.close();
+        return sets;
+    }
+}
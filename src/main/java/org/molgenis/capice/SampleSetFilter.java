@@ -0,0 +1,674 @@
+package org.molgenis.capice;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Genotype classification, bookkeeping and reporting for one SampleSet.
+ * Records are screened for CAPICE and GnomAD once, after which every
+ * SampleSetFilter evaluates them for its own case and control samples.
+ */
+class SampleSetFilter {
+
+    /*
+     * Static variables
+     */
+    static final String DE_NOVO = "Potential de novo/uncontrolled hetzygote: ";
+    static final String HOM_ALT = "Potential homozygous                    : ";
+    static final String NON_AUT = "Potential non-autosomal                 : ";
+    static final String COMPHET = "Potential compound heterozygote         : ";
+    static final String CATEGORY_KEY = "CANDIDATE_TYPE";
+    private static final Map<String, String> CATEGORY_VALUES = new HashMap<>();
+    static {
+        CATEGORY_VALUES.put(DE_NOVO, "DE_NOVO");
+        CATEGORY_VALUES.put(HOM_ALT, "HOMOZYGOUS");
+        CATEGORY_VALUES.put(NON_AUT, "NON_AUTOSOMAL");
+        CATEGORY_VALUES.put(COMPHET, "COMPOUND_HET");
+    }
+
+    /*
+     * Class variables
+     */
+    private SampleSet sampleSet;
+    private List<String> sampleNames;
+    private int caseSampleIndex;
+    private List<Integer> controlSampleIndices;
+    private List<Integer> allIndices;
+    private int caseSlot;
+    private int[] controlSlots;
+    private GenotypeScanner scanner;
+    private ColumnProjector projector;
+    private double capiceThreshold;
+    private double gnomadThreshold;
+    private int capiceLevel;
+    private int gnomadLevel;
+    private boolean sorted;
+
+    /*
+     * Counters for reporting
+     */
+    int totalVariantCount = 0;
+    int droppedByGnomAD = 0;
+    int droppedByCAPICE = 0;
+    int droppedByNullOrRefCaseGeno = 0;
+    int droppedByHomZygAltControlGeno = 0;
+    int droppedByHetZygAltNoHetComp = 0;
+    int variantWithoutGnomAD = 0;
+    int variantWithoutCAPICE = 0;
+
+    /*
+     * Objects to store output. Variants are stored as the BGZF virtual
+     * offsets of their lines, which are only read again when the output is
+     * written.
+     */
+    CompoundHetCandidates geneToHetZyg = new CompoundHetCandidates();
+    HashMap<String, LongList> reportedVariants = new HashMap<>();
+
+    /*
+     * When streaming, candidates are written as soon as they are known and
+     * only counted, and compound heterozygotes are resolved per gene
+     */
+    private BackgroundWriter writer;
+    private OutputStream streamOutput;
+    private CompoundHetWindow hetWindow;
+    private BgzfLineReader streamReader;
+    private HashMap<String, Integer> streamedCounts = new HashMap<>();
+
+    /*
+     * Constructor
+     */
+    SampleSetFilter(SampleSet sampleSet, List<String> sampleNames) throws Exception {
+        this.sampleSet = sampleSet;
+        this.sampleNames = sampleNames;
+        reportedVariants.put(DE_NOVO, new LongList());
+        reportedVariants.put(HOM_ALT, new LongList());
+        reportedVariants.put(NON_AUT, new LongList());
+        reportedVariants.put(COMPHET, new LongList());
+        for(String key : reportedVariants.keySet())
+        {
+            streamedCounts.put(key, 0);
+        }
+
+        /*
+         * Sanity checks: are the sample and control IDs present in the VCF?
+         * Also, store indices of case and control samples for later use and
+         * a list of all indices for convenience. A case that is also listed
+         * as a control is only evaluated as the case.
+         */
+        if(!sampleNames.contains(sampleSet.getCaseSampleID()))
+        {
+            throw new Exception("index sample id not found: " + sampleSet.getCaseSampleID());
+        }
+        caseSampleIndex = sampleNames.indexOf(sampleSet.getCaseSampleID());
+        controlSampleIndices = new ArrayList<Integer>();
+        for(String control : sampleSet.getControlSampleIDs())
+        {
+            if(!sampleNames.contains(control))
+            {
+                throw new Exception("control sample id not found: " + control);
+            }
+            if(sampleNames.indexOf(control) != caseSampleIndex)
+            {
+                controlSampleIndices.add(sampleNames.indexOf(control));
+            }
+        }
+        allIndices = new ArrayList<>(controlSampleIndices);
+        allIndices.add(caseSampleIndex);
+        Collections.sort(allIndices);
+        projector = new ColumnProjector(allIndices);
+    }
+
+    /**
+     * An empty filter for the same sample set and decoder slots, to
+     * evaluate part of the input independently. See merge().
+     */
+    SampleSetFilter newPartition() throws Exception
+    {
+        SampleSetFilter partition = new SampleSetFilter(sampleSet, sampleNames);
+        partition.caseSlot = caseSlot;
+        partition.controlSlots = controlSlots;
+        partition.scanner = scanner;
+        partition.useThresholds(capiceThreshold, capiceLevel, gnomadThreshold, gnomadLevel);
+        return partition;
+    }
+
+    /**
+     * Append the results of a filter that evaluated the records directly
+     * following the records seen by this filter. Genes keep the order in
+     * which they were first seen, as in a single pass.
+     */
+    void merge(SampleSetFilter other)
+    {
+        totalVariantCount += other.totalVariantCount;
+        droppedByGnomAD += other.droppedByGnomAD;
+        droppedByCAPICE += other.droppedByCAPICE;
+        droppedByNullOrRefCaseGeno += other.droppedByNullOrRefCaseGeno;
+        droppedByHomZygAltControlGeno += other.droppedByHomZygAltControlGeno;
+        droppedByHetZygAltNoHetComp += other.droppedByHetZygAltNoHetComp;
+        variantWithoutGnomAD += other.variantWithoutGnomAD;
+        variantWithoutCAPICE += other.variantWithoutCAPICE;
+        for(String key : other.reportedVariants.keySet())
+        {
+            reportedVariants.get(key).addAll(other.reportedVariants.get(key));
+        }
+        geneToHetZyg.addAll(other.geneToHetZyg);
+    }
+
+    SampleSet getSampleSet()
+    {
+        return sampleSet;
+    }
+
+    int getCaseSampleIndex()
+    {
+        return caseSampleIndex;
+    }
+
+    /**
+     * Indices of the case and control samples in the VCF, sorted.
+     */
+    List<Integer> getSampleIndices()
+    {
+        return allIndices;
+    }
+
+    /**
+     * Look up where the genotypes of the case and control samples are found
+     * in the alternative allele counts produced by the decoder.
+     */
+    void useDecoder(GenotypeDecoder decoder)
+    {
+        caseSlot = decoder.getSlot(caseSampleIndex);
+        controlSlots = new int[controlSampleIndices.size()];
+        for(int i = 0; i < controlSlots.length; i++)
+        {
+            controlSlots[i] = decoder.getSlot(controlSampleIndices.get(i));
+        }
+        scanner = decoder.getScanner();
+    }
+
+    /**
+     * Drop variants at these thresholds. For a threshold sweep, the levels
+     * are their indices among the ascending thresholds of the sweep, see
+     * ScreenedRecord. Without a sweep, the levels are 0.
+     */
+    void useThresholds(double capiceThreshold, int capiceLevel, double gnomadThreshold, int gnomadLevel)
+    {
+        this.capiceThreshold = capiceThreshold;
+        this.capiceLevel = capiceLevel;
+        this.gnomadThreshold = gnomadThreshold;
+        this.gnomadLevel = gnomadLevel;
+    }
+
+    /**
+     * Write the report as one VCF in file order, i.e. sorted by position
+     * for a coordinate-sorted input, see writeSortedReport().
+     */
+    void sortOutput()
+    {
+        this.sorted = true;
+    }
+
+    /**
+     * Evaluate the next record of the input VCF for this sample set.
+     */
+    void accept(ScreenedRecord sr, CsqExtractor csq) throws Exception
+    {
+        totalVariantCount++;
+
+        /*
+         * Keep track of missing GnomAD and CAPICE values
+         */
+        if(sr.isMissingCapice())
+        {
+            variantWithoutCAPICE++;
+        }
+        if(sr.isMissingGnomAD())
+        {
+            variantWithoutGnomAD++;
+        }
+
+        /*
+         * If not missing, we have reasons to drop variants
+         */
+        if(sr.isDroppedByCapice(capiceLevel))
+        {
+            droppedByCAPICE++;
+            return;
+        }
+        if(sr.isDroppedByGnomAD(capiceLevel, gnomadLevel))
+        {
+            droppedByGnomAD++;
+            return;
+        }
+        if(hetWindow != null)
+        {
+            hetWindow.advance(sr.getChromosome(), sr.getPosition());
+        }
+
+        /*
+         * Now we need to investigate genotypes. These were decoded into
+         * alternative allele counts for the selected samples only.
+         * Drop variant if case genotype consists of only reference
+         * alleles and/or missing alleles
+         */
+        int caseAltCount = sr.altCounts[caseSlot];
+        if(caseAltCount == 0)
+        {
+            droppedByNullOrRefCaseGeno++;
+            return;
+        }
+
+        /*
+         * Analyse further. If one control sample is homozygous, drop the
+         * variant. If not, track if 1+ control(s) are heterozygous.
+         */
+        int controlFlags = scanner.controlFlags(sr.altCounts, controlSlots);
+        if((controlFlags & GenotypeScanner.HOMOZYGOUS_CONTROL) != 0)
+        {
+            droppedByHomZygAltControlGeno++;
+            return;
+        }
+        boolean atLeastOneCtrlWithOneAlt = (controlFlags & GenotypeScanner.HETEROZYGOUS_CONTROL) != 0;
+
+        /*
+         * There are no homozygous controls. So if the case is homozygous
+         * alternative, report it and continue.
+         */
+        if(caseAltCount == 2)
+        {
+            report(sr.isAutosomal() ? HOM_ALT : NON_AUT, sr);
+            return;
+        }
+
+        /*
+         * If case has 1 alt, and there are no controls with alt alleles,
+         * it is either de novo (controls present), or an 'uncontrolled'
+         * heterozygote (controls not present). Report and continue.
+         */
+        if(caseAltCount == 1 && !atLeastOneCtrlWithOneAlt)
+        {
+            report(sr.isAutosomal() ? DE_NOVO : NON_AUT, sr);
+            return;
+        }
+
+        /*
+         * If case has 1 alt but there are also controls with 1 alt, it
+         * could still be compound heterozygous. But we can only tell
+         * after we have seen all variants from this gene. Save for later.
+         * Exception is variants on allosomes, always report these.
+         */
+        if(caseAltCount == 1)
+        {
+            if(!sr.isAutosomal())
+            {
+                report(NON_AUT, sr);
+                return;
+            }
+            else if(hetWindow != null)
+            {
+                hetWindow.add(sr.getChromosome(), sr.getPosition(), sr.getGeneIds(csq), sr.offset);
+                return;
+            }
+            else
+            {
+                geneToHetZyg.add(sr.getGeneIds(csq), sr.offset);
+                return;
+            }
+        }
+
+        /*
+         * We should have covered all states when looping over all
+         * variants in the input VCF. If not, crash the program.
+         */
+        throw new Exception("Bad state: all possibilities should be covered by now. Offending variant: " + sr.toString());
+    }
+
+    /**
+     * Report a candidate, or write it right away when streaming. The
+     * VcfRecord only has the fixed columns, so the line is read again.
+     */
+    void report(String category, ScreenedRecord sr) throws Exception
+    {
+        if(writer != null)
+        {
+            readVariant(streamReader, sr.offset);
+            stream(category);
+        }
+        else
+        {
+            reportedVariants.get(category).add(sr.offset);
+        }
+    }
+
+    /**
+     * Queue the projected line for writing and count it.
+     */
+    private void stream(String category) throws Exception
+    {
+        writer.write(streamOutput, projector.copyLine());
+        streamedCounts.put(category, streamedCounts.get(category) + 1);
+    }
+
+    /**
+     * Read the line at a virtual offset again and keep only the columns of
+     * the case and control samples. Returns the length of the projected
+     * line in the buffer of the projector.
+     */
+    private int readVariant(BgzfLineReader reader, long offset) throws Exception
+    {
+        reader.seek(offset);
+        if(!reader.next())
+        {
+            throw new Exception("No variant found at offset " + offset);
+        }
+        return projector.project(reader.getLineData(), reader.getLineStart(), reader.getLineEnd());
+    }
+
+    private int getReportedCount(String category)
+    {
+        return reportedVariants.get(category).size() + streamedCounts.get(category);
+    }
+
+    /**
+     * Number of candidates of all categories, reported or streamed.
+     */
+    int getTotalReportedCount()
+    {
+        return getReportedCount(HOM_ALT) + getReportedCount(DE_NOVO) + getReportedCount(COMPHET) + getReportedCount(NON_AUT);
+    }
+
+    /**
+     * Number of variants dropped for any reason.
+     */
+    int getTotalDroppedCount()
+    {
+        return droppedByGnomAD + droppedByCAPICE + droppedByNullOrRefCaseGeno + droppedByHomZygAltControlGeno + droppedByHetZygAltNoHetComp;
+    }
+
+    /**
+     * Write candidates to the output file as soon as they are classified,
+     * using a background writer. Potential compound heterozygotes are
+     * resolved once the sorted input has moved more than the gene window
+     * past the last candidate of their gene. The counters are written to a
+     * summary file at the end, see finishStreaming().
+     */
+    void startStreaming(BackgroundWriter writer, long geneWindow, File input) throws Exception
+    {
+        this.writer = writer;
+        this.streamOutput = new BufferedOutputStream(new FileOutputStream(sampleSet.getOutput()));
+        this.streamReader = new BgzfLineReader(input);
+        this.hetWindow = new CompoundHetWindow(geneWindow, new CompoundHetWindow.Resolver() {
+            @Override
+            public void compoundHet(long offset) throws Exception {
+                readVariant(streamReader, offset);
+                stream(COMPHET);
+            }
+
+            @Override
+            public void noSecondHit(long offset) {
+                droppedByHetZygAltNoHetComp++;
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        appendSettings(sb, input, sampleSet.getOutput());
+        sb.append("## Counts and breakdown of candidates: " + getSummaryFile().getAbsolutePath() + "\n");
+        appendColumnHeader(sb);
+        writer.write(streamOutput, sb.toString().getBytes());
+    }
+
+    /**
+     * Settings that decide the results of this filter, to recognize a
+     * Checkpoint of the same run.
+     */
+    String getSettingsKey()
+    {
+        return sampleSet.getCaseSampleID() + "\t" + sampleSet.getControlSampleIDs() + "\t" + capiceThreshold + "\t" + gnomadThreshold + "\t" + sampleSet.getOutput().getAbsolutePath();
+    }
+
+    File getOutput()
+    {
+        return sampleSet.getOutput();
+    }
+
+    /**
+     * Summary file with the counters of a streaming run, next to the output.
+     */
+    File getSummaryFile()
+    {
+        return new File(sampleSet.getOutput().getPath() + ".summary.txt");
+    }
+
+    /**
+     * Resolve the remaining compound heterozygotes, close the streamed
+     * output and write the summary file.
+     */
+    void finishStreaming(File input) throws Exception
+    {
+        hetWindow.resolveAll();
+        streamReader.close();
+        writer.close(streamOutput);
+        StringBuilder sb = new StringBuilder();
+        appendSettings(sb, input, sampleSet.getOutput());
+        appendCounts(sb);
+        BufferedWriter bw = new BufferedWriter(new FileWriter(getSummaryFile()));
+        bw.write(sb.toString());
+        bw.flush();
+        bw.close();
+    }
+
+    /**
+     * After all records are seen, report the heterozygous variants that
+     * have a second hit in the same gene.
+     */
+    void resolveCompoundHets()
+    {
+        droppedByHetZygAltNoHetComp += geneToHetZyg.resolve(reportedVariants.get(COMPHET));
+    }
+
+    /**
+     * Write the report with settings, counters and candidates to the output
+     * file of this sample set.
+     */
+    void writeReport(File input) throws Exception
+    {
+        if(sorted)
+        {
+            writeSortedReport(input);
+            return;
+        }
+        File output = sampleSet.getOutput();
+        OutputStream bw = new BufferedOutputStream(new FileOutputStream(output));
+        BgzfLineReader reader = new BgzfLineReader(input);
+
+        /*
+         * Print the header with information in theo utput VCF file.
+         * TODO: retain original header for proper meta-data
+         * TODO: assign VCF version
+         */
+        StringBuilder header = new StringBuilder();
+        appendSettings(header, input, output);
+        appendCounts(header);
+        header.append("## Potential candidates categorized by type (full info below, can be copy-pasted side by side):" + "\n");
+        bw.write(header.toString().getBytes());
+        for(String key : reportedVariants.keySet())
+        {
+            byte[] prefix = ("## " + key).getBytes();
+            LongList offsets = reportedVariants.get(key);
+            for(int i = 0; i < offsets.size(); i++)
+            {
+                int length = Math.min(readVariant(reader, offsets.get(i)), 50);
+                byte[] variant = projector.getBuffer();
+                for(int j = 0; j < length; j++)
+                {
+                    if(variant[j] == '\t')
+                    {
+                        variant[j] = ' ';
+                    }
+                }
+                bw.write(prefix);
+                bw.write(variant, 0, length);
+                bw.write('\n');
+            }
+        }
+
+        /*
+         * Print the VCF columns with sample names and then all variant data.
+         */
+        header = new StringBuilder();
+        appendColumnHeader(header);
+        bw.write(header.toString().getBytes());
+        for(String key : reportedVariants.keySet())
+        {
+            LongList offsets = reportedVariants.get(key);
+            for(int i = 0; i < offsets.size(); i++)
+            {
+                readVariant(reader, offsets.get(i));
+                projector.writeLine(bw);
+            }
+        }
+
+        /*
+         * Flush and close output stream and input reader.
+         */
+        bw.flush();
+        bw.close();
+        reader.close();
+    }
+
+    /**
+     * Write the report as a VCF with all candidates in file order, each
+     * with its category in the INFO column. The candidates of a category
+     * are already in file order, except for the compound heterozygotes,
+     * which are collected per gene and sorted first. The categories are
+     * then merged by virtual offset, writing a variant that is a candidate
+     * for several genes only once.
+     */
+    private void writeSortedReport(File input) throws Exception
+    {
+        File output = sampleSet.getOutput();
+        OutputStream bw = new BufferedOutputStream(new FileOutputStream(output));
+        BgzfLineReader reader = new BgzfLineReader(input);
+
+        StringBuilder header = new StringBuilder();
+        header.append("##fileformat=VCFv4.2\n");
+        header.append("##INFO=<ID=" + CATEGORY_KEY + ",Number=1,Type=String,Description=\"Type of potential candidate reported by CapiceQuickFilter: " + String.join(", ", new TreeSet<>(CATEGORY_VALUES.values())) + "\">\n");
+        appendSettings(header, input, output);
+        appendCounts(header);
+        appendColumnHeader(header);
+        bw.write(header.toString().getBytes());
+
+        /*
+         * K-way merge of the categories, each with the position of its next
+         * candidate and the INFO entry to add
+         */
+        List<String> categories = new ArrayList<>(reportedVariants.keySet());
+        int k = categories.size();
+        LongList[] offsets = new LongList[k];
+        byte[][] infoEntries = new byte[k][];
+        int[] next = new int[k];
+        for(int c = 0; c < k; c++)
+        {
+            offsets[c] = reportedVariants.get(categories.get(c));
+            if(categories.get(c).equals(COMPHET))
+            {
+                offsets[c].sort();
+            }
+            infoEntries[c] = (CATEGORY_KEY + "=" + CATEGORY_VALUES.get(categories.get(c))).getBytes(StandardCharsets.US_ASCII);
+        }
+        long lastWritten = -1;
+        while(true)
+        {
+            int smallest = -1;
+            for(int c = 0; c < k; c++)
+            {
+                if(next[c] < offsets[c].size() && (smallest == -1 || offsets[c].get(next[c]) < offsets[smallest].get(next[smallest])))
+                {
+                    smallest = c;
+                }
+            }
+            if(smallest == -1)
+            {
+                break;
+            }
+            long offset = offsets[smallest].get(next[smallest]++);
+            if(offset == lastWritten)
+            {
+                continue;
+            }
+            readVariant(reader, offset);
+            projector.writeLine(bw, infoEntries[smallest]);
+            lastWritten = offset;
+        }
+
+        bw.flush();
+        bw.close();
+        reader.close();
+    }
+
+    /**
+     * Settings of the run, as written at the top of the output.
+     */
+    private void appendSettings(StringBuilder sb, File input, File output)
+    {
+        sb.append("## Output of CapiceQuickFilter " + CapiceQuickFilter.version + "\n");
+        sb.append("## Settings:\n");
+        sb.append("## - Input file: " + input.getAbsolutePath() + "\n");
+        sb.append("## - Output file: " + output.getAbsolutePath() + "\n");
+        sb.append("## - CAPICE threshold: " + capiceThreshold + "\n");
+        sb.append("## - GnomAD threshold: " + gnomadThreshold + "\n");
+        sb.append("## - Case sample ID: " + sampleSet.getCaseSampleID() + "\n");
+        sb.append("## - Control sample IDs: " + sampleSet.getControlSampleIDs() + "\n");
+    }
+
+    /**
+     * Counters with the breakdown of candidates and dropped variants.
+     */
+    private void appendCounts(StringBuilder sb)
+    {
+        /*
+         * Count total reported and total dropped
+         */
+        int totalRep = getTotalReportedCount();
+        int totalDrop = getTotalDroppedCount();
+
+        sb.append("## Total number of variants processed: " + totalVariantCount + "\n");
+        sb.append("## Total number of potential candidates found: " + totalRep + "\n");
+        sb.append("## Breakdown of potential candidates by type:" + "\n");
+        sb.append("## - " + HOM_ALT + getReportedCount(HOM_ALT) + "\n");
+        sb.append("## - " + DE_NOVO + getReportedCount(DE_NOVO) + "\n");
+        sb.append("## - " + COMPHET + getReportedCount(COMPHET) + "\n");
+        sb.append("## - " + NON_AUT + getReportedCount(NON_AUT) + "\n");
+        sb.append("## Total number of variants dropped: " + totalDrop + "\n");
+        sb.append("## Breakdown of dropped variants by reason:" + "\n");
+        sb.append("## - CAPICE score below threshold = " + droppedByCAPICE + "\n");
+        sb.append("## - GnomAD allele frequency over threshold = " + droppedByGnomAD + "\n");
+        sb.append("## - Case genotype null or reference = " + droppedByNullOrRefCaseGeno + "\n");
+        sb.append("## - Homozygous control was present = " + droppedByHomZygAltControlGeno + "\n");
+        sb.append("## - Flagged for compound but no second hit: " + droppedByHetZygAltNoHetComp + "\n");
+        sb.append("## Additional information:" + "\n");
+        sb.append("## - Variants without GnomAD annotation: " + variantWithoutGnomAD + "\n");
+        sb.append("## - Variants without CAPICE annotation: " + variantWithoutCAPICE + "\n");
+    }
+
+    /**
+     * The VCF columns with sample names. The indices are sorted, so this is
+     * the same order used in retainIndices() to print the genotypes.
+     */
+    private void appendColumnHeader(StringBuilder sb)
+    {
+        sb.append("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+        for(int index : allIndices)
+        {
+            sb.append("\t");
+            sb.append(sampleNames.get(index));
+        }
+        sb.append("\n");
+    }
+}
@@ -0,0 +1,160 @@
+package org.molgenis.capice;
+
+import org.molgenis.vcf.VcfRecord;
+
+/**
+ * Outcome of the RecordPrefilter for one VCF line. Only records that pass
+ * the CAPICE and GnomAD thresholds are materialized. Dropped lines share a
+ * single instance per outcome, so they cost no allocation, except for a
+ * threshold sweep where the outcome includes the ranks of the line.
+ */
+class ScreenedRecord {
+
+    /*
+     * Shared instances for dropped lines, indexed by outcome flags
+     */
+    private static final ScreenedRecord[] DROPPED = new ScreenedRecord[16];
+    static {
+        for(int flags = 0; flags < DROPPED.length; flags++)
+        {
+            DROPPED[flags] = new ScreenedRecord(flags, null, null, -1);
+        }
+    }
+
+    /*
+     * Class variables
+     */
+    final int flags;
+    final VcfRecord record;
+    final byte[] altCounts;
+    final long offset;
+    private int[] geneIds;
+    private String chromosome;
+    private int position;
+
+    /*
+     * Alternative allele counts as bit-planes instead of altCounts, when
+     * the GenotypeDecoder packs them, see GenotypeDecoder.decodePlanes()
+     */
+    long[] altPlanes;
+
+    /*
+     * Highest CAPICE score and lowest GnomAD frequency as used by the
+     * RecordPrefilter, NaN when missing or when they do not decide, kept
+     * only while writing a sidecar
+     */
+    double highestCapice = Double.NaN;
+    double lowestGnomad = Double.NaN;
+
+    /*
+     * Constructor. The alternative allele counts are those of the samples
+     * selected in the GenotypeDecoder. The offset is the BGZF virtual offset
+     * of the line, to read it again later with a BgzfLineReader.
+     */
+    ScreenedRecord(int flags, VcfRecord record, byte[] altCounts, long offset) {
+        this.flags = flags;
+        this.record = record;
+        this.altCounts = altCounts;
+        this.offset = offset;
+    }
+
+    /*
+     * Constructor for a record read from a sidecar, of which the VCF line
+     * is only read again for the output
+     */
+    ScreenedRecord(int flags, String chromosome, int position, int[] geneIds, byte[] altCounts, long offset) {
+        this(flags, null, altCounts, offset);
+        this.chromosome = chromosome;
+        this.position = position;
+        this.geneIds = geneIds;
+    }
+
+    static ScreenedRecord dropped(int flags)
+    {
+        return flags < DROPPED.length ? DROPPED[flags] : new ScreenedRecord(flags, null, null, -1);
+    }
+
+    /**
+     * IDs of the gene symbols of a record that passed, see GeneDictionary,
+     * retrieved once and shared by all sample sets that need them.
+     */
+    int[] getGeneIds(CsqExtractor csq)
+    {
+        if(geneIds == null)
+        {
+            geneIds = Helper.getGeneIds(record.getInformation().iterator(), csq);
+        }
+        return geneIds;
+    }
+
+    String getChromosome()
+    {
+        return record != null ? record.getChromosome() : chromosome;
+    }
+
+    int getPosition()
+    {
+        return record != null ? record.getPosition() : position;
+    }
+
+    boolean isAutosomal()
+    {
+        return Helper.isAutosomal(getChromosome());
+    }
+
+    /**
+     * The record, or where to find it for records read from a sidecar.
+     */
+    @Override
+    public String toString()
+    {
+        return record != null ? record.toString() : "line at virtual offset " + offset;
+    }
+
+    boolean isMissingCapice()
+    {
+        return (flags & RecordPrefilter.MISSING_CAPICE) != 0;
+    }
+
+    boolean isMissingGnomAD()
+    {
+        return (flags & RecordPrefilter.MISSING_GNOMAD) != 0;
+    }
+
+    boolean isDroppedByCapice()
+    {
+        return (flags & RecordPrefilter.DROP_CAPICE) != 0;
+    }
+
+    boolean isDroppedByGnomAD()
+    {
+        return (flags & RecordPrefilter.DROP_GNOMAD) != 0;
+    }
+
+    /**
+     * Whether dropped for its CAPICE score at the CAPICE threshold with
+     * this index among the ascending thresholds of a sweep. Without a
+     * sweep, the index is 0.
+     */
+    boolean isDroppedByCapice(int capiceLevel)
+    {
+        if((flags & RecordPrefilter.RANKED) == 0)
+        {
+            return isDroppedByCapice();
+        }
+        return capiceLevel >= ((flags >>> RecordPrefilter.CAPICE_RANK_SHIFT) & RecordPrefilter.RANK_MASK);
+    }
+
+    /**
+     * Whether dropped for its GnomAD frequency, and not already for its
+     * CAPICE score, at the thresholds with these indices.
+     */
+    boolean isDroppedByGnomAD(int capiceLevel, int gnomadLevel)
+    {
+        if((flags & RecordPrefilter.RANKED) == 0)
+        {
+            return isDroppedByGnomAD();
+        }
+        return !isDroppedByCapice(capiceLevel) && gnomadLevel < ((flags >>> RecordPrefilter.GNOMAD_RANK_SHIFT) & RecordPrefilter.RANK_MASK);
+    }
+}
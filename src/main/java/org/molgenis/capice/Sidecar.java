@@ -0,0 +1,337 @@
+package org.molgenis.capice;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Columnar sidecar of an input VCF, written by SidecarWriter on a first
+ * run, with everything needed to filter the input again for any case,
+ * controls and thresholds: per record the highest CAPICE score, lowest
+ * GnomAD frequency, MISSING flags, chromosome, position, gene IDs, virtual
+ * offset of the line, and the alternative allele counts of all samples
+ * packed in 2 bits each. The score columns are loaded into primitive
+ * arrays and screened in one scan, the genotypes are memory-mapped and only
+ * read for records that pass. The input is only read again for the lines
+ * that are written to the output.
+ * A sidecar belongs to one input: it stores the size of the input and a
+ * SHA-256 digest of its modification time and its first and last
+ * megabyte, see isValidFor().
+ */
+class Sidecar implements Closeable {
+
+    /*
+     * Static variables, shared with SidecarWriter
+     */
+    static final byte[] MAGIC = {'C', 'Q', 'F', 'S', 'C', 'R', '0', '1'};
+    static final String EXTENSION = ".sidecar";
+    static final int CAPICE = 0;
+    static final int GNOMAD = 1;
+    static final int FLAGS = 2;
+    static final int CHROMOSOME = 3;
+    static final int POSITION = 4;
+    static final int OFFSET = 5;
+    static final int GENE_ENDS = 6;
+    static final int GENE_IDS = 7;
+    static final int GENOTYPES = 8;
+    static final int COLUMNS = 9;
+    static final int GENOTYPE_MASK = 3;
+    static final int DIGEST_SIZE = 32;
+    static final int HEADER_SIZE = 64;
+    private static final int FINGERPRINT_RANGE = 1 << 20;
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    /*
+     * Class variables
+     */
+    private RandomAccessFile file;
+    private int nrOfSamples;
+    private int nrOfRecords;
+    private int wordsPerRecord;
+    private String[] chromosomes;
+    private int[] geneIdOfSidecar;
+    private double[] highestCapice;
+    private double[] lowestGnomad;
+    private byte[] missingFlags;
+    private int[] chromosomeIds;
+    private int[] positions;
+    private long[] offsets;
+    private int[] geneEnds;
+    private int[] geneIds;
+    private MappedByteBuffer[] genotypeSegments;
+    private int recordsPerSegment;
+
+    /**
+     * Sidecar location of an input.
+     */
+    static File forInput(File input)
+    {
+        return new File(input.getPath() + EXTENSION);
+    }
+
+    /**
+     * Number of 64-bit words holding the 2-bit genotypes of one record.
+     */
+    static int wordsPerRecord(int nrOfSamples)
+    {
+        return (nrOfSamples + 31) >>> 5;
+    }
+
+    /**
+     * SHA-256 digest of the modification time and the first and last
+     * megabyte of a file. Reading all of the input would cost as much as a
+     * good part of parsing it, so the modification time catches a file
+     * that was changed in the middle, e.g. annotated again with other
+     * scores, while keeping its size.
+     */
+    static byte[] fingerprint(File input) throws IOException
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        long lastModified = input.lastModified();
+        for(int shift = 56; shift >= 0; shift -= 8)
+        {
+            digest.update((byte) (lastModified >>> shift));
+        }
+        try(RandomAccessFile raf = new RandomAccessFile(input, "r"))
+        {
+            long length = raf.length();
+            byte[] buffer = new byte[(int) Math.min(length, FINGERPRINT_RANGE)];
+            raf.readFully(buffer);
+            digest.update(buffer);
+            raf.seek(length - buffer.length);
+            raf.readFully(buffer);
+            digest.update(buffer);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Whether a sidecar was written for this input with this number of
+     * samples, as far as the size and digest of the input tell.
+     */
+    static boolean isValidFor(File sidecar, File input, int nrOfSamples) throws IOException
+    {
+        if(!sidecar.isFile())
+        {
+            return false;
+        }
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar))))
+        {
+            byte[] magic = new byte[MAGIC.length];
+            byte[] digest = new byte[DIGEST_SIZE];
+            if(sidecar.length() < HEADER_SIZE)
+            {
+                return false;
+            }
+            in.readFully(magic);
+            long inputSize = in.readLong();
+            in.readFully(digest);
+            return Arrays.equals(magic, MAGIC) && inputSize == input.length()
+                    && in.readInt() == nrOfSamples && Arrays.equals(digest, fingerprint(input));
+        }
+    }
+
+    /**
+     * Open a sidecar and load its columns, after checking isValidFor().
+     * Its gene symbols are interned in the dictionary of this run.
+     */
+    static Sidecar open(File sidecarFile, GeneDictionary genes) throws IOException
+    {
+        Sidecar sidecar = new Sidecar();
+        sidecar.file = new RandomAccessFile(sidecarFile, "r");
+        FileChannel channel = sidecar.file.getChannel();
+
+        /*
+         * Header and the chromosome and gene dictionaries
+         */
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if(!Arrays.equals(magic, MAGIC))
+        {
+            throw new IOException("Not a CapiceQuickFilter sidecar: " + sidecarFile.getAbsolutePath());
+        }
+        in.readLong();
+        in.readFully(new byte[DIGEST_SIZE]);
+        sidecar.nrOfSamples = in.readInt();
+        sidecar.nrOfRecords = in.readInt();
+        int nrOfGeneIds = in.readInt();
+        int dictionarySize = in.readInt();
+        sidecar.chromosomes = new String[in.readInt()];
+        for(int i = 0; i < sidecar.chromosomes.length; i++)
+        {
+            sidecar.chromosomes[i] = in.readUTF();
+        }
+        sidecar.geneIdOfSidecar = new int[in.readInt()];
+        for(int i = 0; i < sidecar.geneIdOfSidecar.length; i++)
+        {
+            sidecar.geneIdOfSidecar[i] = genes.intern(in.readUTF());
+        }
+
+        /*
+         * Columns, one after the other, in the order of their constants
+         */
+        int n = sidecar.nrOfRecords;
+        long position = HEADER_SIZE + dictionarySize;
+        sidecar.highestCapice = new double[n];
+        map(channel, position, 8L * n).asDoubleBuffer().get(sidecar.highestCapice);
+        position += 8L * n;
+        sidecar.lowestGnomad = new double[n];
+        map(channel, position, 8L * n).asDoubleBuffer().get(sidecar.lowestGnomad);
+        position += 8L * n;
+        sidecar.missingFlags = new byte[n];
+        map(channel, position, n).get(sidecar.missingFlags);
+        position += n;
+        sidecar.chromosomeIds = new int[n];
+        map(channel, position, 4L * n).asIntBuffer().get(sidecar.chromosomeIds);
+        position += 4L * n;
+        sidecar.positions = new int[n];
+        map(channel, position, 4L * n).asIntBuffer().get(sidecar.positions);
+        position += 4L * n;
+        sidecar.offsets = new long[n];
+        map(channel, position, 8L * n).asLongBuffer().get(sidecar.offsets);
+        position += 8L * n;
+        sidecar.geneEnds = new int[n];
+        map(channel, position, 4L * n).asIntBuffer().get(sidecar.geneEnds);
+        position += 4L * n;
+        sidecar.geneIds = new int[nrOfGeneIds];
+        map(channel, position, 4L * nrOfGeneIds).asIntBuffer().get(sidecar.geneIds);
+        position += 4L * nrOfGeneIds;
+
+        /*
+         * Genotypes, mapped in segments of whole records
+         */
+        sidecar.wordsPerRecord = wordsPerRecord(sidecar.nrOfSamples);
+        long recordSize = 8L * sidecar.wordsPerRecord;
+        sidecar.recordsPerSegment = (int) Math.max(1, SEGMENT_SIZE / Math.max(recordSize, 1));
+        int nrOfSegments = (n + sidecar.recordsPerSegment - 1) / sidecar.recordsPerSegment;
+        sidecar.genotypeSegments = new MappedByteBuffer[nrOfSegments];
+        for(int s = 0; s < nrOfSegments; s++)
+        {
+            long first = (long) s * sidecar.recordsPerSegment;
+            long records = Math.min(n - first, sidecar.recordsPerSegment);
+            sidecar.genotypeSegments[s] = map(channel, position + first * recordSize, records * recordSize);
+        }
+        return sidecar;
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long position, long size) throws IOException
+    {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    int getNrOfRecords()
+    {
+        return nrOfRecords;
+    }
+
+    /**
+     * Mark the records that pass the loosest thresholds, i.e. that are not
+     * dropped for a CAPICE score below the lowest CAPICE threshold nor for a
+     * GnomAD frequency above the highest GnomAD threshold. Missing values
+     * (NaN) never drop a record. Returns the number of records that pass.
+     */
+    int screen(double lowestCapiceThreshold, double highestGnomadThreshold, boolean[] pass)
+    {
+        int passing = 0;
+        for(int i = 0; i < nrOfRecords; i++)
+        {
+            boolean p = !(highestCapice[i] < lowestCapiceThreshold) & !(lowestGnomad[i] > highestGnomadThreshold);
+            pass[i] = p;
+            passing += p ? 1 : 0;
+        }
+        return passing;
+    }
+
+    /**
+     * Outcome flags of a record, as RecordPrefilter.screen() would give
+     * for its line.
+     */
+    int getFlags(RecordPrefilter prefilter, int record)
+    {
+        return prefilter.screen(highestCapice[record], lowestGnomad[record], missingFlags[record]);
+    }
+
+    /**
+     * A record that passed, with the alternative allele counts of the
+     * samples selected in the decoder, ordered by slot.
+     */
+    ScreenedRecord getRecord(int record, int flags, GenotypeDecoder decoder)
+    {
+        int[] selected = decoder.getSelectedSamples();
+        MappedByteBuffer segment = genotypeSegments[record / recordsPerSegment];
+        int rowStart = (record % recordsPerSegment) * wordsPerRecord * 8;
+        byte[] altCounts = null;
+        long[] altPlanes = null;
+        if(decoder.isPacked())
+        {
+            /*
+             * Bit-planes of all samples: every two words of 32 interleaved
+             * codes make one word of each plane
+             */
+            int planeWords = decoder.getPlaneWords();
+            altPlanes = new long[2 * planeWords];
+            for(int w = 0; w < wordsPerRecord; w++)
+            {
+                long word = segment.getLong(rowStart + w * 8);
+                int shift = (w & 1) << 5;
+                altPlanes[w >>> 1] |= evenBits(word) << shift;
+                altPlanes[planeWords + (w >>> 1)] |= evenBits(word >>> 1) << shift;
+            }
+        }
+        else
+        {
+            altCounts = new byte[selected.length];
+            for(int slot = 0; slot < selected.length; slot++)
+            {
+                int sample = selected[slot];
+                long word = segment.getLong(rowStart + (sample >>> 5) * 8);
+                altCounts[slot] = (byte) ((word >>> ((sample & 31) << 1)) & GENOTYPE_MASK);
+            }
+        }
+
+        int geneStart = record == 0 ? 0 : geneEnds[record - 1];
+        int[] recordGenes = new int[geneEnds[record] - geneStart];
+        for(int i = 0; i < recordGenes.length; i++)
+        {
+            recordGenes[i] = geneIdOfSidecar[geneIds[geneStart + i]];
+        }
+        ScreenedRecord sr = new ScreenedRecord(flags, chromosomes[chromosomeIds[record]], positions[record], recordGenes, altCounts, offsets[record]);
+        sr.altPlanes = altPlanes;
+        return sr;
+    }
+
+    /**
+     * The 32 even bits of a word, moved together into the low 32 bits.
+     */
+    static long evenBits(long word)
+    {
+        long x = word & 0x5555555555555555L;
+        x = (x | (x >>> 1)) & 0x3333333333333333L;
+        x = (x | (x >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x >>> 4)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+        return (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        file.close();
+    }
+}
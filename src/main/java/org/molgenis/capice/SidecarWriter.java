@@ -0,0 +1,196 @@
+package org.molgenis.capice;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the columnar sidecar of an input VCF while it is filtered, in the
+ * format read by Sidecar. Every column is written to its own temporary
+ * file next to the sidecar as the records come in, so memory use does not
+ * grow with the input, and the columns are joined behind the header once
+ * all records are seen. Records must be added in file order.
+ */
+class SidecarWriter implements Closeable {
+
+    /*
+     * Class variables
+     */
+    private File sidecar;
+    private File input;
+    private int nrOfSamples;
+    private int wordsPerRecord;
+    private int nrOfRecords = 0;
+    private int nrOfGeneIds = 0;
+    private GeneDictionary genes;
+    private Map<String, Integer> chromosomeIds = new HashMap<>();
+    private List<String> chromosomes = new ArrayList<>();
+    private File[] columnFiles = new File[Sidecar.COLUMNS];
+    private DataOutputStream[] columns = new DataOutputStream[Sidecar.COLUMNS];
+    private long[] genotypeRow;
+
+    /*
+     * Constructor. The genotypes of all samples of the input are stored,
+     * so the records must have been decoded with all samples selected. Gene
+     * IDs are those of the dictionary of the run, which is stored as well.
+     */
+    SidecarWriter(File sidecar, File input, int nrOfSamples, GeneDictionary genes) throws IOException {
+        this.sidecar = sidecar;
+        this.genes = genes;
+        this.input = input;
+        this.nrOfSamples = nrOfSamples;
+        this.wordsPerRecord = Sidecar.wordsPerRecord(nrOfSamples);
+        this.genotypeRow = new long[wordsPerRecord];
+        for(int c = 0; c < Sidecar.COLUMNS; c++)
+        {
+            columnFiles[c] = new File(sidecar.getPath() + ".column" + c + ".tmp");
+            columns[c] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(columnFiles[c]), 1 << 16));
+        }
+    }
+
+    /**
+     * Add the next record of the input, which must have been screened with
+     * RecordScreener.keepAll() so that it is parsed even when dropped.
+     */
+    void add(ScreenedRecord sr, CsqExtractor csq) throws IOException
+    {
+        columns[Sidecar.CAPICE].writeDouble(sr.highestCapice);
+        columns[Sidecar.GNOMAD].writeDouble(sr.lowestGnomad);
+        columns[Sidecar.FLAGS].writeByte(sr.flags & (RecordPrefilter.MISSING_CAPICE | RecordPrefilter.MISSING_GNOMAD));
+        columns[Sidecar.CHROMOSOME].writeInt(intern(sr.getChromosome(), chromosomeIds, chromosomes));
+        columns[Sidecar.POSITION].writeInt(sr.getPosition());
+        columns[Sidecar.OFFSET].writeLong(sr.offset);
+
+        for(int gene : sr.getGeneIds(csq))
+        {
+            columns[Sidecar.GENE_IDS].writeInt(gene);
+            nrOfGeneIds++;
+        }
+        columns[Sidecar.GENE_ENDS].writeInt(nrOfGeneIds);
+
+        /*
+         * Alternative allele counts of all samples, 2 bits each
+         */
+        for(int w = 0; w < wordsPerRecord; w++)
+        {
+            genotypeRow[w] = 0;
+        }
+        int planeWords = (nrOfSamples + 63) >>> 6;
+        for(int sample = 0; sample < nrOfSamples; sample++)
+        {
+            long code = sr.altCounts != null ? Math.min(sr.altCounts[sample], Sidecar.GENOTYPE_MASK) :
+                    (sr.altPlanes[sample >>> 6] >>> sample & 1) | (sr.altPlanes[planeWords + (sample >>> 6)] >>> sample & 1) << 1;
+            genotypeRow[sample >>> 5] |= code << ((sample & 31) << 1);
+        }
+        for(int w = 0; w < wordsPerRecord; w++)
+        {
+            columns[Sidecar.GENOTYPES].writeLong(genotypeRow[w]);
+        }
+        nrOfRecords++;
+    }
+
+    private static int intern(String value, Map<String, Integer> ids, List<String> values)
+    {
+        Integer id = ids.get(value);
+        if(id == null)
+        {
+            id = values.size();
+            ids.put(value, id);
+            values.add(value);
+        }
+        return id;
+    }
+
+    /**
+     * Stop writing after a failed scan: close and remove the temporary
+     * files, without writing a sidecar.
+     */
+    void abort()
+    {
+        for(int c = 0; c < Sidecar.COLUMNS; c++)
+        {
+            try {
+                columns[c].close();
+            } catch(IOException e) {
+                // the column is removed anyway
+            }
+            columnFiles[c].delete();
+        }
+    }
+
+    /**
+     * Write the header with the fingerprint of the input, the chromosome
+     * and gene dictionaries and the columns, and remove the temporary files.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        for(DataOutputStream column : columns)
+        {
+            column.close();
+        }
+        ByteArrayOutputStream dictionaries = new ByteArrayOutputStream();
+        DataOutputStream dictionaryOut = new DataOutputStream(dictionaries);
+        dictionaryOut.writeInt(chromosomes.size());
+        for(String chromosome : chromosomes)
+        {
+            dictionaryOut.writeUTF(chromosome);
+        }
+        int nrOfGenes = genes.size();
+        dictionaryOut.writeInt(nrOfGenes);
+        for(int gene = 0; gene < nrOfGenes; gene++)
+        {
+            dictionaryOut.writeUTF(genes.getSymbol(gene));
+        }
+        dictionaryOut.flush();
+        File written = new File(sidecar.getPath() + ".tmp");
+        try(FileOutputStream fos = new FileOutputStream(written))
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.write(Sidecar.MAGIC);
+            out.writeLong(input.length());
+            out.write(Sidecar.fingerprint(input));
+            out.writeInt(nrOfSamples);
+            out.writeInt(nrOfRecords);
+            out.writeInt(nrOfGeneIds);
+            out.writeInt(dictionaries.size());
+            dictionaries.writeTo(out);
+            out.flush();
+            FileChannel target = fos.getChannel();
+            for(File columnFile : columnFiles)
+            {
+                try(FileChannel source = new FileInputStream(columnFile).getChannel())
+                {
+                    long position = 0;
+                    while(position < source.size())
+                    {
+                        position += source.transferTo(position, source.size() - position, target);
+                    }
+                }
+            }
+        } finally {
+            for(File columnFile : columnFiles)
+            {
+                columnFile.delete();
+            }
+        }
+
+        /*
+         * Only a complete sidecar gets its name, so an interrupted run never
+         * leaves one behind that looks valid
+         */
+        Files.move(written.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,429 @@
+package org.molgenis.capice;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merge-join of a bgzipped, tab-separated table, with chromosome and
+ * position in its first two columns and sorted by position within each
+ * chromosome, with the input: as long as positions are asked for in the
+ * order of a coordinate-sorted input, the table is only read forward, and
+ * only the lines of the current position are kept, by the cursor of the
+ * subclass. Chromosomes may come in a different order than in the input:
+ * the start of every chromosome passed is remembered, so that the join can
+ * continue from there. Chromosome names are compared without a 'chr' prefix.
+ * With a tabix index next to the table, chromosome starts are taken from
+ * the index, and its linear index is used to skip to the 16kb window of a
+ * position, so only the blocks around the positions asked for are read.
+ * Every thread that asks for positions gets its own cursor in the table, so
+ * input that is screened in chunks on several threads is joined in order
+ * per thread. A cursor that has to go back rereads its chromosome.
+ */
+abstract class SortedTableJoin implements Closeable {
+
+    /*
+     * Class variables
+     */
+    private File table;
+    private String description;
+    private int columns;
+    private Map<String, Long> chromosomeStarts = new HashMap<>();
+    private Map<String, long[]> linearIndexes = new HashMap<>();
+    private long lastChromosomeStart;
+    private volatile boolean allChromosomesKnown;
+    private List<Cursor> cursors = new ArrayList<>();
+    private ThreadLocal<Cursor> cursor = new ThreadLocal<>();
+
+    /**
+     * Open a table with at least this number of columns, with its tabix
+     * index if there is one. Lines before the first line for which isData()
+     * holds are skipped. The description names the table in errors.
+     */
+    void openTable(File table, String description, int columns) throws IOException
+    {
+        this.table = table;
+        this.description = description;
+        this.columns = columns;
+        TabixIndex index = TabixIndex.forInput(table);
+        if(index != null)
+        {
+            for(TabixIndex.Reference reference : index.getReferences())
+            {
+                byte[] name = reference.name.getBytes(StandardCharsets.US_ASCII);
+                String normalized = normalize(name, 0, name.length);
+                chromosomeStarts.put(normalized, reference.startOffset);
+                if(reference.linearIndex.length > 0)
+                {
+                    linearIndexes.put(normalized, reference.linearIndex);
+                }
+            }
+            allChromosomesKnown = true;
+        }
+        try(BgzfLineReader reader = new BgzfLineReader(table))
+        {
+            while(reader.next())
+            {
+                byte[] data = reader.getLineData();
+                int start = reader.getLineStart();
+                int end = reader.getLineEnd();
+                if(end > start && isData(data, start, end))
+                {
+                    int chromEnd = RecordPrefilter.indexOf(data, start, end, (byte) '\t');
+                    chromosomeFound(data, start, chromEnd, reader.getLineOffset());
+                    return;
+                }
+            }
+        }
+        throw new IOException("No " + description + " found in " + table.getAbsolutePath());
+    }
+
+    /**
+     * Whether a line of the table, which is not empty, is the first line
+     * of data, after any header lines.
+     */
+    abstract boolean isData(byte[] data, int start, int end);
+
+    /**
+     * A new cursor in the table, for one thread.
+     */
+    abstract Cursor newCursor(BgzfLineReader reader);
+
+    /**
+     * The cursor of the current thread.
+     */
+    Cursor cursor() throws IOException
+    {
+        Cursor c = cursor.get();
+        if(c == null)
+        {
+            c = newCursor(new BgzfLineReader(table));
+            synchronized(this)
+            {
+                cursors.add(c);
+            }
+            cursor.set(c);
+        }
+        return c;
+    }
+
+    /**
+     * Remember where a chromosome starts, unless it is already known.
+     */
+    private synchronized void chromosomeFound(byte[] data, int chromStart, int chromEnd, long offset)
+    {
+        String name = normalize(data, chromStart, chromEnd);
+        if(!chromosomeStarts.containsKey(name))
+        {
+            chromosomeStarts.put(name, offset);
+            lastChromosomeStart = Math.max(lastChromosomeStart, offset);
+        }
+    }
+
+    /**
+     * Chromosome name without a 'chr' prefix.
+     */
+    private static String normalize(byte[] data, int chromStart, int chromEnd)
+    {
+        if(chromEnd - chromStart > 3 && data[chromStart] == 'c' && data[chromStart + 1] == 'h' && data[chromStart + 2] == 'r')
+        {
+            chromStart += 3;
+        }
+        return new String(data, chromStart, chromEnd - chromStart, StandardCharsets.US_ASCII);
+    }
+
+    static boolean sameBytes(byte[] bytes, byte[] data, int start, int end)
+    {
+        if(bytes == null || bytes.length != end - start)
+        {
+            return false;
+        }
+        for(int i = 0; i < bytes.length; i++)
+        {
+            if(bytes[i] != data[start + i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] copy(byte[] data, int start, int end)
+    {
+        byte[] copy = new byte[end - start];
+        System.arraycopy(data, start, copy, 0, copy.length);
+        return copy;
+    }
+
+    /**
+     * Position of one thread in the table. The subclass keeps the values
+     * of the lines of the position the cursor is at, see clear() and add().
+     */
+    abstract class Cursor
+    {
+        BgzfLineReader reader;
+        int[] tabs = new int[columns - 1];
+
+        /*
+         * The chromosome asked for, as in the input and as in the table,
+         * where it starts and its linear index, if any. Absent if it is not
+         * in the table at all.
+         */
+        byte[] queryChrom;
+        byte[] tableChrom;
+        long chromStart;
+        long[] linearIndex;
+        boolean absent;
+
+        /*
+         * Current position, whether its values are kept or it was skipped,
+         * and whether it is the last one of the chromosome. When pending,
+         * the reader is at the first line of the next position. Offset is
+         * that of the last line read.
+         */
+        long entryPos;
+        boolean kept;
+        boolean chromEnded;
+        boolean pending;
+        long offset;
+
+        Cursor(BgzfLineReader reader)
+        {
+            this.reader = reader;
+        }
+
+        /**
+         * Forget the values of the previous position, before the lines of
+         * a position are added.
+         */
+        abstract void clear();
+
+        /**
+         * Keep the values of a line of the current position. Tabs holds the
+         * ends of all columns but the last one.
+         */
+        abstract void add(byte[] data, int start, int end);
+
+        /**
+         * Move to a position of a chromosome. Returns whether the table has
+         * lines for it, in which case they were given to add().
+         */
+        boolean moveTo(byte[] chrom, int chromStart, int chromEnd, long pos) throws IOException
+        {
+            if(!sameBytes(queryChrom, chrom, chromStart, chromEnd))
+            {
+                queryChrom = copy(chrom, chromStart, chromEnd);
+                moveTo(normalize(chrom, chromStart, chromEnd));
+            }
+            if(absent)
+            {
+                return false;
+            }
+            if(pos < entryPos || pos == entryPos && !kept)
+            {
+                rewind();
+            }
+
+            /*
+             * With a tabix index, skip to the first line of the 16kb window
+             * of the position if that is further on
+             */
+            if(linearIndex != null && !chromEnded && pos > entryPos)
+            {
+                int window = (int) ((pos - 1) >>> TabixIndex.LINEAR_WINDOW_SHIFT);
+                if(window < linearIndex.length && linearIndex[window] > offset)
+                {
+                    reader.seek(linearIndex[window]);
+                    offset = linearIndex[window];
+                    pending = false;
+                    entryPos = -1;
+                }
+            }
+            while(!chromEnded && entryPos < pos)
+            {
+                readEntry(pos);
+            }
+            return entryPos == pos;
+        }
+
+        /**
+         * Go to the start of a chromosome, finding it first if needed.
+         */
+        private void moveTo(String name) throws IOException
+        {
+            Long start;
+            long from;
+            synchronized(SortedTableJoin.this)
+            {
+                start = chromosomeStarts.get(name);
+                linearIndex = linearIndexes.get(name);
+                from = lastChromosomeStart;
+            }
+            if(start == null && !allChromosomesKnown)
+            {
+                start = find(name, from);
+            }
+            absent = start == null;
+            if(!absent)
+            {
+                chromStart = start;
+                rewind();
+            }
+        }
+
+        /**
+         * Read on from the start of the last chromosome known, remembering
+         * the start of every chromosome passed, until a chromosome is found
+         * or the table ends.
+         */
+        private Long find(String name, long from) throws IOException
+        {
+            reader.seek(from);
+            byte[] current = null;
+            while(reader.next())
+            {
+                byte[] data = reader.getLineData();
+                int start = reader.getLineStart();
+                int chromEnd = RecordPrefilter.indexOf(data, start, reader.getLineEnd(), (byte) '\t');
+                if(!sameBytes(current, data, start, chromEnd))
+                {
+                    current = copy(data, start, chromEnd);
+                    chromosomeFound(data, start, chromEnd, reader.getLineOffset());
+                    if(normalize(data, start, chromEnd).equals(name))
+                    {
+                        return reader.getLineOffset();
+                    }
+                }
+            }
+            allChromosomesKnown = true;
+            return null;
+        }
+
+        /**
+         * Go back to the first position of the current chromosome.
+         */
+        private void rewind() throws IOException
+        {
+            reader.seek(chromStart);
+            offset = chromStart;
+            pending = false;
+            tableChrom = null;
+            entryPos = -1;
+            chromEnded = false;
+        }
+
+        /**
+         * Read the lines of the next position of the chromosome, if any.
+         * Lines are only added from the target position on, positions
+         * before it are skipped.
+         */
+        private void readEntry(long target) throws IOException
+        {
+            if(!pending && !nextLine())
+            {
+                chromEnded = true;
+                return;
+            }
+            pending = false;
+            byte[] data = reader.getLineData();
+            int start = reader.getLineStart();
+            int end = reader.getLineEnd();
+            locateColumns(data, start, end, 2);
+            if(tableChrom == null)
+            {
+                tableChrom = copy(data, start, tabs[0]);
+            }
+            else if(!sameBytes(tableChrom, data, start, tabs[0]))
+            {
+                chromosomeFound(data, start, tabs[0], offset);
+                chromEnded = true;
+                pending = true;
+                return;
+            }
+            entryPos = parsePosition(data, tabs[0] + 1, tabs[1]);
+            kept = entryPos >= target;
+            if(kept)
+            {
+                clear();
+                locateColumns(data, start, end, tabs.length);
+                add(data, start, end);
+            }
+
+            /*
+             * The other lines of the same position
+             */
+            while(nextLine())
+            {
+                data = reader.getLineData();
+                start = reader.getLineStart();
+                end = reader.getLineEnd();
+                locateColumns(data, start, end, 2);
+                if(!sameBytes(tableChrom, data, start, tabs[0]) || parsePosition(data, tabs[0] + 1, tabs[1]) != entryPos)
+                {
+                    pending = true;
+                    return;
+                }
+                if(kept)
+                {
+                    locateColumns(data, start, end, tabs.length);
+                    add(data, start, end);
+                }
+            }
+        }
+
+        private boolean nextLine() throws IOException
+        {
+            if(!reader.next())
+            {
+                return false;
+            }
+            offset = reader.getLineOffset();
+            return true;
+        }
+
+        /**
+         * Find the tabs after the first columns, up to the given number.
+         */
+        private void locateColumns(byte[] data, int start, int end, int columns) throws IOException
+        {
+            int pos = start;
+            for(int i = 0; i < columns; i++)
+            {
+                tabs[i] = RecordPrefilter.indexOf(data, pos, end, (byte) '\t');
+                if(tabs[i] == end)
+                {
+                    throw new IOException("Expected " + SortedTableJoin.this.columns + " columns in " + description + " at line: " + new String(data, start, end - start, StandardCharsets.ISO_8859_1));
+                }
+                pos = tabs[i] + 1;
+            }
+        }
+
+        private long parsePosition(byte[] data, int start, int end) throws IOException
+        {
+            long pos = 0;
+            for(int i = start; i < end; i++)
+            {
+                if(data[i] < '0' || data[i] > '9')
+                {
+                    throw new IOException("Position is not a whole number in " + description + ": " + new String(data, start, end - start, StandardCharsets.ISO_8859_1));
+                }
+                pos = pos * 10 + (data[i] - '0');
+            }
+            return pos;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        for(Cursor c : cursors)
+        {
+            c.reader.close();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package org.molgenis.capice;
+
+/**
+ * Management interface of one processing stage, as seen over JMX (e.g. in
+ * jconsole) while CapiceQuickFilter is running. See StageMetrics.
+ */
+public interface StageMXBean {
+
+    String getName();
+
+    /**
+     * What is counted, e.g. 'blocks' or 'records'.
+     */
+    String getUnit();
+
+    long getCount();
+
+    long getBytes();
+
+    long getNanos();
+
+    long getAllocatedBytes();
+
+    /**
+     * Allocated megabytes per second of time spent in this stage.
+     */
+    double getAllocationRate();
+}
@@ -0,0 +1,322 @@
+package org.molgenis.capice;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time, counts, bytes and allocated memory per processing stage of a
+ * CapiceQuickFilter run. Stages are measured on whichever thread does the
+ * work, so with multiple threads their time may add up to more than the
+ * elapsed time. When disabled, nothing is measured and the stages cost no
+ * more than a branch. While running, the stages can be registered as JMX
+ * MBeans; at the end they are written to a JSON report.
+ */
+class StageMetrics {
+
+    /*
+     * Static variables
+     */
+    private static final String DOMAIN = "org.molgenis.capice";
+    private static final AtomicInteger RUNS = new AtomicInteger();
+    private static final com.sun.management.ThreadMXBean ALLOCATION = allocationBean();
+
+    /**
+     * Cumulative measurements of one stage, safe to update from any thread.
+     */
+    static class Stage implements StageMXBean
+    {
+        private final String name;
+        private final String unit;
+        private final boolean enabled;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder allocatedBytes = new LongAdder();
+
+        Stage(String name, String unit, boolean enabled)
+        {
+            this.name = name;
+            this.unit = unit;
+            this.enabled = enabled;
+        }
+
+        /**
+         * Start time of a measurement, to pass to stop().
+         */
+        long start()
+        {
+            return enabled ? System.nanoTime() : 0;
+        }
+
+        /**
+         * Bytes allocated by the current thread so far, to pass to stop().
+         */
+        long startAllocation()
+        {
+            return enabled ? allocated() : 0;
+        }
+
+        /**
+         * Add the time and allocations since start() and
+         * startAllocation(), which were called on the same thread.
+         */
+        void stop(long start, long startAllocation, long count, long bytes)
+        {
+            if(!enabled)
+            {
+                return;
+            }
+            nanos.add(System.nanoTime() - start);
+            allocatedBytes.add(allocated() - startAllocation);
+            add(count, bytes);
+        }
+
+        /**
+         * Count work of which the time is measured elsewhere.
+         */
+        void add(long count, long bytes)
+        {
+            if(!enabled)
+            {
+                return;
+            }
+            this.count.add(count);
+            this.bytes.add(bytes);
+        }
+
+        @Override
+        public String getName()
+        {
+            return name;
+        }
+
+        @Override
+        public String getUnit()
+        {
+            return unit;
+        }
+
+        @Override
+        public long getCount()
+        {
+            return count.sum();
+        }
+
+        @Override
+        public long getBytes()
+        {
+            return bytes.sum();
+        }
+
+        @Override
+        public long getNanos()
+        {
+            return nanos.sum();
+        }
+
+        @Override
+        public long getAllocatedBytes()
+        {
+            return allocatedBytes.sum();
+        }
+
+        @Override
+        public double getAllocationRate()
+        {
+            return perSecond(getAllocatedBytes() / 1e6, getNanos());
+        }
+    }
+
+    /*
+     * The stages
+     */
+    final Stage decompression;
+    final Stage extraction;
+    final Stage parsing;
+    final Stage genotypes;
+    final Stage compoundHets;
+    final Stage output;
+
+    /*
+     * Class variables
+     */
+    private boolean enabled;
+    private List<ObjectName> registered;
+
+    /*
+     * Constructor
+     */
+    StageMetrics(boolean enabled) {
+        this.enabled = enabled;
+        this.decompression = new Stage("decompression", "blocks", enabled);
+        this.extraction = new Stage("capice-gnomad-extraction", "lines", enabled);
+        this.parsing = new Stage("record-parsing", "records", enabled);
+        this.genotypes = new Stage("genotype-evaluation", "records", enabled);
+        this.compoundHets = new Stage("compound-het-resolution", "sample sets", enabled);
+        this.output = new Stage("output-writing", "variants", enabled);
+    }
+
+    boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Whether the JVM can tell the bytes allocated per thread. If not,
+     * all allocated bytes are 0.
+     */
+    static boolean isAllocationMeasured()
+    {
+        return ALLOCATION != null;
+    }
+
+    List<Stage> getStages()
+    {
+        return Arrays.asList(decompression, extraction, parsing, genotypes, compoundHets, output);
+    }
+
+    /**
+     * Register the stages with the platform MBean server, as
+     * org.molgenis.capice:type=Stage,run=N,name=STAGE with a number N per
+     * run in this JVM.
+     */
+    void register() throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        int run = RUNS.incrementAndGet();
+        registered = new ArrayList<>();
+        for(Stage stage : getStages())
+        {
+            ObjectName name = new ObjectName(DOMAIN + ":type=Stage,run=" + run + ",name=" + stage.getName());
+            server.registerMBean(stage, name);
+            registered.add(name);
+        }
+    }
+
+    /**
+     * Remove the stages registered by register(), if any.
+     */
+    void unregister() throws Exception
+    {
+        if(registered == null)
+        {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(ObjectName name : registered)
+        {
+            server.unregisterMBean(name);
+        }
+        registered = null;
+    }
+
+    /**
+     * Write the stages as JSON, with the settings of the run and its
+     * elapsed time.
+     */
+    void writeReport(File report, File input, int threads, long elapsedNanos) throws Exception
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"version\": \"" + CapiceQuickFilter.version + "\",\n");
+        sb.append("  \"input\": \"" + escape(input.getAbsolutePath()) + "\",\n");
+        sb.append("  \"threads\": " + threads + ",\n");
+        sb.append("  \"elapsedNanos\": " + elapsedNanos + ",\n");
+        sb.append("  \"allocationMeasured\": " + isAllocationMeasured() + ",\n");
+        sb.append("  \"stages\": ");
+        appendJson(sb, "  ");
+        sb.append("\n}\n");
+        BufferedWriter bw = new BufferedWriter(new FileWriter(report));
+        bw.write(sb.toString());
+        bw.flush();
+        bw.close();
+    }
+
+    /**
+     * Append the stages as a JSON array, with one stage per line starting
+     * with this indent.
+     */
+    void appendJson(StringBuilder sb, String indent)
+    {
+        sb.append("[");
+        String separator = "\n";
+        for(Stage stage : getStages())
+        {
+            sb.append(separator);
+            sb.append(indent + "  {\"name\": \"" + stage.getName() + "\"");
+            sb.append(", \"unit\": \"" + stage.getUnit() + "\"");
+            sb.append(", \"count\": " + stage.getCount());
+            sb.append(", \"bytes\": " + stage.getBytes());
+            sb.append(", \"nanos\": " + stage.getNanos());
+            sb.append(", \"allocatedBytes\": " + stage.getAllocatedBytes());
+            sb.append(", \"countPerSecond\": " + perSecond(stage.getCount(), stage.getNanos()));
+            sb.append(", \"megabytesPerSecond\": " + perSecond(stage.getBytes() / 1e6, stage.getNanos()));
+            sb.append(", \"allocatedMegabytesPerSecond\": " + stage.getAllocationRate() + "}");
+            separator = ",\n";
+        }
+        sb.append("\n" + indent + "]");
+    }
+
+    private static double perSecond(double amount, long nanos)
+    {
+        return nanos == 0 ? 0 : amount * 1e9 / nanos;
+    }
+
+    /**
+     * A string as the content of a JSON string.
+     */
+    static String escape(String s)
+    {
+        StringBuilder sb = new StringBuilder();
+        for(char c : s.toCharArray())
+        {
+            if(c == '"' || c == '\\')
+            {
+                sb.append('\\').append(c);
+            }
+            else if(c < 0x20)
+            {
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Bytes allocated by the current thread, or 0 if the JVM can not tell.
+     */
+    private static long allocated()
+    {
+        return ALLOCATION == null ? 0 : ALLOCATION.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof com.sun.management.ThreadMXBean))
+        {
+            return null;
+        }
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) bean;
+        if(!allocation.isThreadAllocatedMemorySupported())
+        {
+            return null;
+        }
+        allocation.setThreadAllocatedMemoryEnabled(true);
+        return allocation;
+    }
+}
@@ -0,0 +1,215 @@
+package org.molgenis.capice;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Minimal reader for tabix (.tbi) and CSI (.csi) indices of a bgzipped VCF.
+ * Provides, per indexed chromosome, the range of virtual offsets where its
+ * records are found and, for .tbi, the linear index with the smallest
+ * virtual offset per 16kb window, used to split chromosomes into shards.
+ */
+public class TabixIndex {
+
+    /*
+     * Static variables
+     */
+    static final int LINEAR_WINDOW_SHIFT = 14;
+    private static final int TBI_PSEUDO_BIN = 37450;
+
+    /**
+     * Index data for one chromosome.
+     */
+    static class Reference
+    {
+        String name;
+        long startOffset = Long.MAX_VALUE;
+        long endOffset = 0;
+        long[] linearIndex = new long[0];
+    }
+
+    /*
+     * Class variables
+     */
+    private List<Reference> references = new ArrayList<>();
+
+    /**
+     * Find and read the index next to a bgzipped VCF, or return NULL if
+     * there is neither a .tbi nor a .csi file.
+     */
+    static TabixIndex forInput(File input) throws IOException
+    {
+        File tbi = new File(input.getPath() + ".tbi");
+        File csi = new File(input.getPath() + ".csi");
+        File index = tbi.exists() ? tbi : csi.exists() ? csi : null;
+        if(index == null)
+        {
+            return null;
+        }
+        if(index.lastModified() < input.lastModified())
+        {
+            throw new IOException("Index is older than the input VCF: " + index.getAbsolutePath());
+        }
+        TabixIndex tabixIndex = new TabixIndex();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(index)))))
+        {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            String magicStr = new String(magic, 0, 3, StandardCharsets.US_ASCII);
+            if(magicStr.equals("TBI") && magic[3] == 1)
+            {
+                tabixIndex.readTbi(in);
+            }
+            else if(magicStr.equals("CSI") && magic[3] == 1)
+            {
+                tabixIndex.readCsi(in);
+            }
+            else
+            {
+                throw new IOException("Not a tabix or CSI index: " + index.getAbsolutePath());
+            }
+        }
+        return tabixIndex;
+    }
+
+    private void readTbi(DataInputStream in) throws IOException
+    {
+        int nRef = readInt(in);
+        List<String> names = readNames(in, 6);
+        for(int ref = 0; ref < nRef; ref++)
+        {
+            Reference reference = new Reference();
+            reference.name = names.get(ref);
+            int nBin = readInt(in);
+            for(int b = 0; b < nBin; b++)
+            {
+                long bin = readInt(in) & 0xFFFFFFFFL;
+                readChunks(in, reference, bin == TBI_PSEUDO_BIN);
+            }
+            int nIntv = readInt(in);
+            reference.linearIndex = new long[nIntv];
+            for(int i = 0; i < nIntv; i++)
+            {
+                reference.linearIndex[i] = readLong(in);
+            }
+            references.add(reference);
+        }
+    }
+
+    private void readCsi(DataInputStream in) throws IOException
+    {
+        readInt(in);
+        int depth = readInt(in);
+        int lAux = readInt(in);
+        byte[] aux = new byte[lAux];
+        in.readFully(aux);
+        long pseudoBin = ((1L << (3 * depth + 3)) - 1) / 7 + 1;
+        List<String> names = new ArrayList<>();
+        if(lAux >= 28)
+        {
+            names = readNames(new DataInputStream(new ByteArrayInputStream(aux)), 6);
+        }
+        int nRef = readInt(in);
+        for(int ref = 0; ref < nRef; ref++)
+        {
+            Reference reference = new Reference();
+            reference.name = ref < names.size() ? names.get(ref) : null;
+            int nBin = readInt(in);
+            for(int b = 0; b < nBin; b++)
+            {
+                long bin = readInt(in) & 0xFFFFFFFFL;
+                readLong(in);
+                readChunks(in, reference, bin == pseudoBin);
+            }
+            references.add(reference);
+        }
+    }
+
+    /**
+     * Read the chunks of a bin and widen the offset range of the
+     * reference. The pseudo-bin holds statistics, not chunks.
+     */
+    private static void readChunks(DataInputStream in, Reference reference, boolean pseudoBin) throws IOException
+    {
+        int nChunk = readInt(in);
+        for(int c = 0; c < nChunk; c++)
+        {
+            long beg = readLong(in);
+            long end = readLong(in);
+            if(!pseudoBin)
+            {
+                reference.startOffset = Math.min(reference.startOffset, beg);
+                reference.endOffset = Math.max(reference.endOffset, end);
+            }
+        }
+    }
+
+    /**
+     * Skip the tabix settings (format, columns, meta char, skip) and read
+     * the concatenated, zero-terminated sequence names.
+     */
+    private static List<String> readNames(DataInputStream in, int settingsToSkip) throws IOException
+    {
+        for(int i = 0; i < settingsToSkip; i++)
+        {
+            readInt(in);
+        }
+        int lNm = readInt(in);
+        byte[] nm = new byte[lNm];
+        in.readFully(nm);
+        List<String> names = new ArrayList<>();
+        int start = 0;
+        for(int i = 0; i < lNm; i++)
+        {
+            if(nm[i] == 0)
+            {
+                names.add(new String(nm, start, i - start, StandardCharsets.US_ASCII));
+                start = i + 1;
+            }
+        }
+        return names;
+    }
+
+    /**
+     * The indexed chromosomes, in the order in which they appear in the VCF.
+     * Chromosomes without records are left out.
+     */
+    List<Reference> getReferences()
+    {
+        List<Reference> withRecords = new ArrayList<>();
+        for(Reference reference : references)
+        {
+            if(reference.startOffset < reference.endOffset)
+            {
+                withRecords.add(reference);
+            }
+        }
+        withRecords.sort((a, b) -> Long.compare(a.startOffset, b.startOffset));
+        return withRecords;
+    }
+
+    private static int readInt(InputStream in) throws IOException
+    {
+        int b0 = in.read(), b1 = in.read(), b2 = in.read(), b3 = in.read();
+        if((b0 | b1 | b2 | b3) < 0)
+        {
+            throw new EOFException("Unexpected end of index");
+        }
+        return b0 | (b1 << 8) | (b2 << 16) | (b3 << 24);
+    }
+
+    private static long readLong(InputStream in) throws IOException
+    {
+        return (readInt(in) & 0xFFFFFFFFL) | ((long) readInt(in) << 32);
+    }
+}
@@ -0,0 +1,97 @@
+package org.molgenis.capicegenerator;
+
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer to assemble lines of ASCII text without creating
+ * strings.
+ */
+class LineBuffer {
+
+    /*
+     * Class variables
+     */
+    private byte[] data;
+    private int length = 0;
+
+    /*
+     * Constructor
+     */
+    LineBuffer(int capacity) {
+        this.data = new byte[capacity];
+    }
+
+    private void ensure(int extra)
+    {
+        if(length + extra > data.length)
+        {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + extra));
+        }
+    }
+
+    LineBuffer append(char c)
+    {
+        ensure(1);
+        data[length++] = (byte) c;
+        return this;
+    }
+
+    LineBuffer append(byte[] bytes)
+    {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, data, length, bytes.length);
+        length += bytes.length;
+        return this;
+    }
+
+    LineBuffer append(String s)
+    {
+        ensure(s.length());
+        for(int i = 0; i < s.length(); i++)
+        {
+            data[length++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+    LineBuffer append(long value)
+    {
+        if(value < 0)
+        {
+            return append(Long.toString(value));
+        }
+        ensure(20);
+        int digits = 1;
+        for(long v = value / 10; v > 0; v /= 10)
+        {
+            digits++;
+        }
+        for(int i = length + digits - 1; i >= length; i--)
+        {
+            data[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    LineBuffer append(double value)
+    {
+        return append(Double.toString(value));
+    }
+
+    byte[] getData()
+    {
+        return data;
+    }
+
+    int length()
+    {
+        return length;
+    }
+
+    void clear()
+    {
+        length = 0;
+    }
+}
@@ -0,0 +1,183 @@
+package org.molgenis.capicegenerator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Main class for generating synthetic test inputs from command-line.
+ */
+public class Main
+{
+    public static void main(String args[]) throws Exception
+    {
+        /*
+         * Separate optional '--name=value' settings from the positional
+         * arguments, these may be given anywhere on the command-line
+         */
+        List<String> positional = new ArrayList<>();
+        Map<String, String> options = new HashMap<>();
+        for(String arg : args)
+        {
+            if(arg.startsWith("--"))
+            {
+                int eq = arg.indexOf('=');
+                options.put(eq == -1 ? arg.substring(2) : arg.substring(2, eq), eq == -1 ? "" : arg.substring(eq + 1));
+            }
+            else
+            {
+                positional.add(arg);
+            }
+        }
+
+        /*
+         * Print help if incorrect number of arguments are given
+         */
+        if(positional.size() != 2 || !positional.get(0).equals("vcf") && !positional.get(0).equals("precomputed"))
+        {
+            System.out.println("Please supply 2 arguments:");
+            System.out.println("- What to generate: 'vcf' for a VEP and " +
+                    "CAPICE annotated VCF, or 'precomputed' for a precomputed " +
+                    "CAPICE SNV scores file.");
+            System.out.println("- Output .gz file location. May not exist yet.");
+            System.out.println("Optional settings:");
+            System.out.println("- --seed=N : seed of the generated data " +
+                    "(default 1). Files with the same seed agree on reference " +
+                    "bases and CAPICE scores.");
+            System.out.println("- --length=N : bases per chromosome (default " +
+                    PrecompGenerator.DEFAULT_CHROM_LENGTH + ").");
+            System.out.println("- --threads=N : generate and compress on N " +
+                    "threads (default 1). Does not change the output.");
+            System.out.println("- --variants=N : VCF only, number of variants " +
+                    "(default 100000).");
+            System.out.println("- --samples=N : VCF only, number of samples, " +
+                    "named S0, S1, ... (default 100).");
+            System.out.println("- --transcripts=N : VCF only, CSQ transcripts " +
+                    "per alternative allele (default 3).");
+            System.out.println("- --multi-allelic=F : VCF only, fraction of " +
+                    "variants with two alternative alleles (default 0.05).");
+            System.out.println("- --missing=F : VCF only, fraction of " +
+                    "variants without CAPICE score and of alleles without " +
+                    "gnomAD frequency (default 0.1).");
+            System.out.println("- --genotypes=F,F,F,F : VCF only, relative " +
+                    "frequencies of homozygous reference, heterozygous, " +
+                    "homozygous alternative and missing genotypes (default " +
+                    "0.85,0.12,0.02,0.01).");
+            System.out.println("- --chromosomes=N : precomputed only, number " +
+                    "of chromosomes from 1 to 22 and X (default 23).");
+            System.exit(0);
+        }
+
+        /*
+         * Output .gz file
+         */
+        File output = new File(positional.get(1));
+        if(!output.getName().endsWith(".gz"))
+        {
+            System.out.println("Output file name '" + output.getName() + "' does not end in '.gz'. Output is bgzipped.");
+            System.exit(0);
+        }
+        if(output.exists())
+        {
+            System.out.println("Output file already exists at " + output.getAbsolutePath() + ". Please delete it first or use a different output file name.");
+            System.exit(0);
+        }
+
+        long seed = getNumber(options, "seed", 1, Long.MIN_VALUE);
+        long length = getNumber(options, "length", PrecompGenerator.DEFAULT_CHROM_LENGTH, 1);
+        int threads = (int) getNumber(options, "threads", 1, 1);
+
+        /*
+         * Argument parsing done, start generating
+         */
+        System.out.println("Arguments OK. Starting...");
+        long start = System.nanoTime();
+        if(positional.get(0).equals("vcf"))
+        {
+            VcfGenerator generator = new VcfGenerator(output, getNumber(options, "variants", 100000, 1), (int) getNumber(options, "samples", 100, 1));
+            generator.setTranscripts((int) getNumber(options, "transcripts", 3, 1));
+            generator.setMultiAllelicRate(getFraction(options, "multi-allelic", 0.05));
+            generator.setMissingRate(getFraction(options, "missing", 0.1));
+            if(options.containsKey("genotypes"))
+            {
+                String[] split = options.get("genotypes").split(",");
+                double[] frequencies = new double[4];
+                for(int i = 0; i < split.length && i < 4; i++)
+                {
+                    frequencies[i] = parseFraction("genotypes", split[i]);
+                }
+                if(split.length != 4 || frequencies[0] + frequencies[1] + frequencies[2] + frequencies[3] == 0)
+                {
+                    System.out.println("Genotype frequencies must be 4 comma-separated numbers, not all 0: " + options.get("genotypes"));
+                    System.exit(0);
+                }
+                generator.setGenotypeFrequencies(frequencies);
+            }
+            generator.setSeed(seed);
+            generator.setChromLength(length);
+            generator.setThreads(threads);
+            generator.run();
+        }
+        else
+        {
+            PrecompGenerator generator = new PrecompGenerator(output);
+            generator.setChromosomes((int) getNumber(options, "chromosomes", 23, 1));
+            generator.setSeed(seed);
+            generator.setChromLength(length);
+            generator.setThreads(threads);
+            generator.run();
+        }
+        System.out.println("...completed in " + ((System.nanoTime()-start)/1000000)+"ms.");
+    }
+
+    /**
+     * Whole number option, or the default if not given.
+     */
+    private static long getNumber(Map<String, String> options, String name, long defaultValue, long min)
+    {
+        if(!options.containsKey(name))
+        {
+            return defaultValue;
+        }
+        long value = 0;
+        try {
+            value = Long.parseLong(options.get(name));
+        } catch(NumberFormatException e){
+            System.out.println("Setting '" + name + "' is not a whole number: " + options.get(name));
+            System.exit(0);
+        }
+        if(value < min)
+        {
+            System.out.println("Setting '" + name + "' must be " + min + " or more instead of " + value);
+            System.exit(0);
+        }
+        return value;
+    }
+
+    /**
+     * Fraction option between 0 and 1, or the default if not given.
+     */
+    private static double getFraction(Map<String, String> options, String name, double defaultValue)
+    {
+        return options.containsKey(name) ? parseFraction(name, options.get(name)) : defaultValue;
+    }
+
+    private static double parseFraction(String name, String value)
+    {
+        double fraction = -1;
+        try {
+            fraction = Double.parseDouble(value);
+        } catch(NumberFormatException e){
+            System.out.println("Setting '" + name + "' is not a number: " + value);
+            System.exit(0);
+        }
+        if(fraction < 0 || fraction > 1)
+        {
+            System.out.println("Setting '" + name + "' must be between 0 and 1 instead of " + fraction);
+            System.exit(0);
+        }
+        return fraction;
+    }
+}
@@ -0,0 +1,101 @@
+package org.molgenis.capicegenerator;
+
+import org.molgenis.capice.BgzfBlockWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a BGZF file from parts that are generated and compressed on
+ * worker threads. Parts are written in the order they were submitted, and
+ * each starts a new block, so the file does not depend on the number of
+ * threads.
+ */
+class ParallelBgzfWriter implements Closeable {
+
+    /*
+     * Static variables
+     */
+    private static final int PARTS_IN_FLIGHT_PER_THREAD = 2;
+
+    /*
+     * Class variables
+     */
+    private OutputStream out;
+    private ExecutorService workers;
+    private ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+    private int maxInFlight;
+
+    /*
+     * Constructor
+     */
+    ParallelBgzfWriter(File output, int threads) throws IOException {
+        this.out = new BufferedOutputStream(new FileOutputStream(output), 1 << 20);
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.maxInFlight = threads * PARTS_IN_FLIGHT_PER_THREAD;
+    }
+
+    /**
+     * Generate and compress a part of the file on a worker thread.
+     */
+    void submit(Callable<LineBuffer> part) throws Exception
+    {
+        if(inFlight.size() >= maxInFlight)
+        {
+            writeOldest();
+        }
+        inFlight.add(workers.submit(() -> {
+            LineBuffer lines = part.call();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(lines.length() / 4 + 64);
+            BgzfBlockWriter writer = new BgzfBlockWriter(Deflater.DEFAULT_COMPRESSION);
+            try {
+                writer.write(lines.getData(), 0, lines.length(), compressed);
+            } finally {
+                writer.end();
+            }
+            return compressed.toByteArray();
+        }));
+    }
+
+    private void writeOldest() throws Exception
+    {
+        try {
+            out.write(inFlight.poll().get());
+        } catch(ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Write the remaining parts and the end-of-file marker. Call finish()
+     * once all parts are submitted, close() in any case.
+     */
+    void finish() throws Exception
+    {
+        while(!inFlight.isEmpty())
+        {
+            writeOldest();
+        }
+        BgzfBlockWriter.writeEofBlock(out);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        workers.shutdownNow();
+        out.close();
+    }
+}
@@ -0,0 +1,98 @@
+package org.molgenis.capicegenerator;
+
+import java.io.File;
+
+/**
+ * Writes a bgzipped precomputed CAPICE SNV scores file for the synthetic
+ * genome, in the layout checked by CapicePrecompValidator: a header, then
+ * per chromosome every position from 1 to the chromosome length, each with
+ * the reference base and the three other bases as alternative.
+ */
+public class PrecompGenerator {
+
+    /*
+     * Static variables
+     */
+    static final long DEFAULT_CHROM_LENGTH = 1000000;
+    private static final int POSITIONS_PER_PART = 50000;
+
+    /*
+     * Class variables
+     */
+    private File output;
+    private int chromosomes = SyntheticGenome.CHROMOSOMES.length;
+    private long chromLength = DEFAULT_CHROM_LENGTH;
+    private long seed = 1;
+    private int threads = 1;
+
+    /*
+     * Constructor
+     */
+    public PrecompGenerator(File output) {
+        this.output = output;
+    }
+
+    /**
+     * Number of chromosomes, from 1 to 22 and X.
+     */
+    public void setChromosomes(int chromosomes)
+    {
+        this.chromosomes = Math.min(chromosomes, SyntheticGenome.CHROMOSOMES.length);
+    }
+
+    public void setChromLength(long chromLength)
+    {
+        this.chromLength = chromLength;
+    }
+
+    public void setSeed(long seed)
+    {
+        this.seed = seed;
+    }
+
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+    /**
+     * Write the file, generating and compressing parts of it in parallel.
+     */
+    public void run() throws Exception
+    {
+        SyntheticGenome genome = new SyntheticGenome(seed);
+        try(ParallelBgzfWriter writer = new ParallelBgzfWriter(output, threads))
+        {
+            writer.submit(() -> new LineBuffer(128)
+                    .append("## Synthetic CAPICE precomputed SNV scores, seed ").append(seed).append('\n')
+                    .append("#Chr\tPos\tRef\tAlt\tScore\n"));
+            for(int chrom = 0; chrom < chromosomes; chrom++)
+            {
+                byte[] name = (SyntheticGenome.CHROMOSOMES[chrom] + "\t").getBytes();
+                int c = chrom;
+                for(long first = 1; first <= chromLength; first += POSITIONS_PER_PART)
+                {
+                    long from = first;
+                    long to = Math.min(chromLength + 1, first + POSITIONS_PER_PART);
+                    writer.submit(() -> {
+                        LineBuffer lines = new LineBuffer((int) (to - from) * 3 * 40);
+                        for(long pos = from; pos < to; pos++)
+                        {
+                            int ref = genome.getRef(c, pos);
+                            for(int alt = 0; alt < 4; alt++)
+                            {
+                                if(alt != ref)
+                                {
+                                    lines.append(name).append(pos).append('\t').append(SyntheticGenome.BASES[ref]).append('\t').append(SyntheticGenome.BASES[alt]).append('\t');
+                                    lines.append(genome.getScore(c, pos, alt)).append('\n');
+                                }
+                            }
+                        }
+                        return lines;
+                    });
+                }
+            }
+            writer.finish();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.molgenis.capicegenerator;
+
+/**
+ * Reference bases and CAPICE scores of a made-up genome, derived from the
+ * seed, chromosome and position only. Generated VCFs and precomputed score
+ * files with the same seed therefore agree on the reference base and the
+ * CAPICE score of every SNV.
+ */
+class SyntheticGenome {
+
+    /*
+     * Static variables
+     */
+    static final String[] CHROMOSOMES = {"1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11", "12", "13", "14", "15", "16", "17", "18", "19", "20", "21", "22", "X"};
+    static final char[] BASES = {'A', 'C', 'G', 'T'};
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    /*
+     * Class variables
+     */
+    private long seed;
+
+    /*
+     * Constructor
+     */
+    SyntheticGenome(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Code of the reference base (index in BASES) at a position.
+     */
+    int getRef(int chrom, long pos)
+    {
+        return (int) (hash(chrom, pos, 4) & 3);
+    }
+
+    /**
+     * CAPICE score of an SNV. Mostly low, as for real variants.
+     */
+    double getScore(int chrom, long pos, int alt)
+    {
+        double u = (hash(chrom, pos, alt) >>> 11) * 0x1.0p-53;
+        return u * u * u;
+    }
+
+    private long hash(int chrom, long pos, int which)
+    {
+        return mix(seed + GOLDEN_GAMMA * mix(((long) chrom << 40) + (pos << 3) + which));
+    }
+
+    /**
+     * Seed of the random numbers for the n-th item of a generated file.
+     */
+    static long seedFor(long seed, long n)
+    {
+        return mix(seed + GOLDEN_GAMMA * (n + 1));
+    }
+
+    /**
+     * SplitMix64 finalizer.
+     */
+    static long mix(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,328 @@
+package org.molgenis.capicegenerator;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Writes a bgzipped VCF with made-up samples that is annotated like the
+ * input of CapiceQuickFilter: CAPICE scores from the synthetic genome (as
+ * vcfanno would add them) and a VEP CSQ annotation with gene symbols and
+ * gnomAD allele frequencies. Each variant is generated from its own seed,
+ * so the output only depends on the settings.
+ */
+public class VcfGenerator {
+
+    /*
+     * Static variables
+     */
+    public static final String CSQ_FORMAT = "Allele|Consequence|IMPACT|SYMBOL|Gene|Feature_type|Feature|BIOTYPE|EXON|INTRON|HGVSc|HGVSp|cDNA_position|CDS_position|Protein_position|Amino_acids|Codons|Existing_variation|DISTANCE|STRAND|FLAGS|SYMBOL_SOURCE|HGNC_ID|REFSEQ_MATCH|SOURCE|HGVS_OFFSET|gnomAD_AF|gnomAD_AFR_AF|gnomAD_AMR_AF|gnomAD_ASJ_AF|gnomAD_EAS_AF|gnomAD_FIN_AF|gnomAD_NFE_AF|gnomAD_OTH_AF|gnomAD_SAS_AF|CLIN_SIG|SOMATIC|PHENO";
+    private static final String[] CONSEQUENCES = {"missense_variant", "synonymous_variant", "intron_variant", "stop_gained", "splice_region_variant&intron_variant", "3_prime_UTR_variant"};
+    private static final String[] IMPACTS = {"MODERATE", "LOW", "MODIFIER", "HIGH", "LOW", "MODIFIER"};
+    private static final int GNOMAD_POPULATIONS = 8;
+    private static final long GENE_SIZE = 20000;
+    private static final int GENOTYPE_TABLE_BITS = 10;
+    private static final int CELL_VARIANTS = 64;
+    private static final int PART_SIZE = 4 << 20;
+
+    /*
+     * Genotype classes: homozygous reference, heterozygous, homozygous
+     * alternative and missing, with their default frequencies
+     */
+    private static final int MISSING = 3;
+    private static final double[] DEFAULT_GENOTYPE_FREQUENCIES = {0.85, 0.12, 0.02, 0.01};
+    private static final String[][] GENOTYPES = {
+            {"0/0"}, {"0/1", "0/1", "0|1", "1|0"}, {"1/1"}, {"./."}};
+    private static final String[][] MULTI_ALLELIC_GENOTYPES = {
+            {"0/0"}, {"0/1", "0/2", "1/2"}, {"1/1", "2/2"}, {"./."}};
+
+    /*
+     * Class variables
+     */
+    private File output;
+    private long variants;
+    private int samples;
+    private int transcripts = 3;
+    private double multiAllelicRate = 0.05;
+    private double missingRate = 0.1;
+    private long seed = 1;
+    private SyntheticGenome genome = new SyntheticGenome(seed);
+    private long chromLength = PrecompGenerator.DEFAULT_CHROM_LENGTH;
+    private int threads = 1;
+
+    /*
+     * Genotype class per random draw, and the sample columns per number of
+     * alternative alleles, genotype class and variant
+     */
+    private int[] genotypeTable;
+    private byte[][][][] cells;
+
+    /*
+     * Constructor
+     */
+    public VcfGenerator(File output, long variants, int samples) {
+        this.output = output;
+        this.variants = variants;
+        this.samples = samples;
+        setGenotypeFrequencies(DEFAULT_GENOTYPE_FREQUENCIES);
+
+        /*
+         * Sample columns with some variation in depth and quality
+         */
+        SplittableRandom random = new SplittableRandom(0);
+        cells = new byte[2][4][CELL_VARIANTS][];
+        for(int alts = 0; alts < 2; alts++)
+        {
+            String[][] genotypes = alts == 0 ? GENOTYPES : MULTI_ALLELIC_GENOTYPES;
+            for(int gt = 0; gt < 4; gt++)
+            {
+                for(int v = 0; v < CELL_VARIANTS; v++)
+                {
+                    String genotype = genotypes[gt][v % genotypes[gt].length];
+                    String cell = gt == MISSING ? "\t./.:.:." : "\t" + genotype + ":" + (8 + random.nextInt(60)) + ":" + (20 + random.nextInt(80));
+                    cells[alts][gt][v] = cell.getBytes();
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of CSQ transcripts per alternative allele.
+     */
+    public void setTranscripts(int transcripts)
+    {
+        this.transcripts = transcripts;
+    }
+
+    /**
+     * Fraction of variants with two alternative alleles instead of one.
+     */
+    public void setMultiAllelicRate(double multiAllelicRate)
+    {
+        this.multiAllelicRate = multiAllelicRate;
+    }
+
+    /**
+     * Fraction of variants without CAPICE score, and of alleles without
+     * gnomAD allele frequency, each drawn independently.
+     */
+    public void setMissingRate(double missingRate)
+    {
+        this.missingRate = missingRate;
+    }
+
+    /**
+     * Relative frequencies of homozygous reference, heterozygous,
+     * homozygous alternative and missing genotypes.
+     */
+    public void setGenotypeFrequencies(double[] frequencies)
+    {
+        double total = 0;
+        for(double f : frequencies)
+        {
+            total += f;
+        }
+        genotypeTable = new int[1 << GENOTYPE_TABLE_BITS];
+        double cumulative = 0;
+        int from = 0;
+        for(int gt = 0; gt < 4; gt++)
+        {
+            cumulative += frequencies[gt] / total;
+            int to = gt == 3 ? genotypeTable.length : (int) Math.round(cumulative * genotypeTable.length);
+            Arrays.fill(genotypeTable, from, Math.max(from, to), gt);
+            from = Math.max(from, to);
+        }
+    }
+
+    public void setSeed(long seed)
+    {
+        this.seed = seed;
+        this.genome = new SyntheticGenome(seed);
+    }
+
+    /**
+     * Length of the chromosomes over which variants are spread.
+     */
+    public void setChromLength(long chromLength)
+    {
+        this.chromLength = chromLength;
+    }
+
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+    /**
+     * Write the VCF, generating and compressing parts of it in parallel.
+     */
+    public void run() throws Exception
+    {
+        try(ParallelBgzfWriter writer = new ParallelBgzfWriter(output, threads))
+        {
+            writer.submit(this::header);
+            long lineSize = 1000L * transcripts + 12L * samples;
+            long variantsPerPart = Math.max(1, PART_SIZE / lineSize);
+            for(long first = 0; first < variants; first += variantsPerPart)
+            {
+                long from = first;
+                long to = Math.min(variants, first + variantsPerPart);
+                writer.submit(() -> {
+                    LineBuffer lines = new LineBuffer((int) Math.min(PART_SIZE * 2L, lineSize * (to - from) + 1024));
+                    for(long n = from; n < to; n++)
+                    {
+                        appendLine(lines, n);
+                    }
+                    return lines;
+                });
+            }
+            writer.finish();
+        }
+    }
+
+    private LineBuffer header()
+    {
+        LineBuffer lines = new LineBuffer(4096 + samples * 8);
+        lines.append("##fileformat=VCFv4.2\n");
+        for(String chrom : SyntheticGenome.CHROMOSOMES)
+        {
+            lines.append("##contig=<ID=").append(chrom).append(",length=").append(chromLength).append(">\n");
+        }
+        lines.append("##INFO=<ID=CAPICE,Number=A,Type=Float,Description=\"CAPICE score\">\n");
+        lines.append("##INFO=<ID=CSQ,Number=.,Type=String,Description=\"Consequence annotations from Ensembl VEP. Format: ").append(CSQ_FORMAT).append("\">\n");
+        lines.append("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">\n");
+        lines.append("##FORMAT=<ID=DP,Number=1,Type=Integer,Description=\"Read depth\">\n");
+        lines.append("##FORMAT=<ID=GQ,Number=1,Type=Integer,Description=\"Genotype quality\">\n");
+        lines.append("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+        for(int s = 0; s < samples; s++)
+        {
+            lines.append("\tS").append(s);
+        }
+        lines.append('\n');
+        return lines;
+    }
+
+    /**
+     * The n-th data line, without newline.
+     */
+    public String getLine(long n)
+    {
+        LineBuffer line = new LineBuffer(1024);
+        appendLine(line, n);
+        return new String(line.getData(), 0, line.length() - 1);
+    }
+
+    /**
+     * Append the n-th data line. Variants are spread evenly over the
+     * chromosomes, in sorted order.
+     */
+    private void appendLine(LineBuffer line, long n)
+    {
+        SplittableRandom random = new SplittableRandom(SyntheticGenome.seedFor(seed, n));
+        long perChrom = (variants + SyntheticGenome.CHROMOSOMES.length - 1) / SyntheticGenome.CHROMOSOMES.length;
+        int chrom = (int) (n / perChrom);
+        long spacing = Math.max(1, chromLength / perChrom);
+        long pos = 1 + (n % perChrom) * spacing + random.nextLong(spacing);
+
+        /*
+         * Alleles, with the reference base of the genome
+         */
+        int ref = genome.getRef(chrom, pos);
+        int alts = random.nextDouble() < multiAllelicRate ? 2 : 1;
+        int[] alt = new int[alts];
+        alt[0] = (ref + 1 + random.nextInt(3)) % 4;
+        if(alts == 2)
+        {
+            alt[1] = (alt[0] + 1) % 4 == ref ? (alt[0] + 2) % 4 : (alt[0] + 1) % 4;
+        }
+        line.append(SyntheticGenome.CHROMOSOMES[chrom]).append('\t').append(pos).append("\t.\t").append(SyntheticGenome.BASES[ref]).append('\t');
+        for(int a = 0; a < alts; a++)
+        {
+            if(a > 0)
+            {
+                line.append(',');
+            }
+            line.append(SyntheticGenome.BASES[alt[a]]);
+        }
+        line.append("\t").append(20 + random.nextInt(80)).append("\tPASS\t");
+
+        /*
+         * CAPICE score per alternative allele
+         */
+        if(random.nextDouble() >= missingRate)
+        {
+            line.append("CAPICE=");
+            for(int a = 0; a < alts; a++)
+            {
+                if(a > 0)
+                {
+                    line.append(',');
+                }
+                line.append(genome.getScore(chrom, pos, alt[a]));
+            }
+            line.append(';');
+        }
+
+        /*
+         * CSQ with the same gene and gnomAD frequencies for all transcripts
+         * of an allele
+         */
+        long gene = chrom * 1000000L + pos / GENE_SIZE;
+        line.append("CSQ=");
+        for(int a = 0; a < alts; a++)
+        {
+            String gnomad = gnomad(random);
+            for(int t = 0; t < transcripts; t++)
+            {
+                if(a > 0 || t > 0)
+                {
+                    line.append(',');
+                }
+                int consequence = random.nextInt(CONSEQUENCES.length);
+                long transcript = gene * 100 + t;
+                int cdsPos = 1 + random.nextInt(3000);
+                line.append(SyntheticGenome.BASES[alt[a]]).append('|').append(CONSEQUENCES[consequence]).append('|').append(IMPACTS[consequence]);
+                line.append("|SYN").append(gene).append("|ENSG").append(gene).append("|Transcript|ENST").append(transcript).append("|protein_coding|");
+                line.append(1 + random.nextInt(12)).append("/12||ENST").append(transcript).append(".1:c.").append(cdsPos).append(SyntheticGenome.BASES[ref]).append('>').append(SyntheticGenome.BASES[alt[a]]);
+                line.append("|ENSP").append(transcript).append(".1:p.Arg").append((cdsPos + 2) / 3).append("Trp|").append(cdsPos + 60).append('|').append(cdsPos).append('|').append((cdsPos + 2) / 3);
+                line.append("|R/W|Cgg/Tgg|rs").append(random.nextInt(100000000)).append("||1||HGNC|HGNC:").append(gene % 50000).append("||||");
+                line.append(gnomad).append("|||");
+            }
+        }
+
+        /*
+         * Sample columns, one random number per sample
+         */
+        line.append("\tGT:DP:GQ");
+        byte[][][] alleleCells = cells[alts - 1];
+        for(int s = 0; s < samples; s++)
+        {
+            int r = random.nextInt();
+            line.append(alleleCells[genotypeTable[r & ((1 << GENOTYPE_TABLE_BITS) - 1)]][(r >>> GENOTYPE_TABLE_BITS) & (CELL_VARIANTS - 1)]);
+        }
+        line.append('\n');
+    }
+
+    /**
+     * The gnomAD_AF field and the population fields after it, mostly rare
+     * and sometimes missing.
+     */
+    private String gnomad(SplittableRandom random)
+    {
+        StringBuilder sb = new StringBuilder();
+        boolean missing = random.nextDouble() < missingRate;
+        double af = Math.pow(10, -6 * random.nextDouble());
+        for(int p = 0; p <= GNOMAD_POPULATIONS; p++)
+        {
+            if(p > 0)
+            {
+                sb.append('|');
+            }
+            if(!missing)
+            {
+                sb.append(p == 0 ? af : Math.min(1.0, af * (0.5 + random.nextDouble())));
+            }
+        }
+        return sb.toString();
+    }
+}
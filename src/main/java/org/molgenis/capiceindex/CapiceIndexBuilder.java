@@ -0,0 +1,248 @@
+package org.molgenis.capiceindex;
+
+import org.molgenis.capice.BgzfLineReader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts a precomputed CAPICE SNV scores file (bgzipped, tab-separated
+ * chromosome, position, ref, alt and score) into the binary format read by
+ * CapiceScoreIndex. The input is read in one pass and must have the layout
+ * checked by CapicePrecompValidator: chromosomes in blocks, positions
+ * sorted, and per position one ref with three alts. Gaps between positions
+ * are stored as entries without scores.
+ */
+public class CapiceIndexBuilder {
+
+    /*
+     * Class variables
+     */
+    private File input;
+    private File output;
+
+    /*
+     * Chromosomes written so far, for the directory
+     */
+    private List<byte[]> names = new ArrayList<>();
+    private List<long[]> ranges = new ArrayList<>();
+
+    /*
+     * Output and state of the position being collected
+     */
+    private DataOutputStream out;
+    private long written;
+    private long chromMinPos;
+    private long currentPos = -1;
+    private long currentEntry;
+
+    /*
+     * Constructor
+     */
+    public CapiceIndexBuilder(File input, File output) {
+        this.input = input;
+        this.output = output;
+    }
+
+    /**
+     * Run the CapiceIndexBuilder after constructing.
+     */
+    void run() throws Exception
+    {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1 << 20));
+        out.write(CapiceScoreIndex.MAGIC);
+        out.writeLong(0);
+        written = CapiceScoreIndex.HEADER_SIZE;
+
+        byte[] currentChrom = null;
+        int[] tabs = new int[4];
+        long lineNr = 0;
+        boolean startOfDataFound = false;
+        try(BgzfLineReader reader = new BgzfLineReader(input))
+        {
+            while(reader.next())
+            {
+                byte[] data = reader.getLineData();
+                int start = reader.getLineStart();
+                int end = reader.getLineEnd();
+
+                /*
+                 * Skip the header, as the validator does: data starts at the
+                 * first line starting with '1'
+                 */
+                if(!startOfDataFound && end > start && data[start] == '1')
+                {
+                    startOfDataFound = true;
+                }
+                if(!startOfDataFound)
+                {
+                    continue;
+                }
+
+                /*
+                 * Locate the five columns
+                 */
+                int pos = start;
+                for(int i = 0; i < tabs.length; i++)
+                {
+                    tabs[i] = indexOf(data, pos, end);
+                    if(tabs[i] == end)
+                    {
+                        throw new Exception("Expected 5 columns at line: " + line(data, start, end));
+                    }
+                    pos = tabs[i] + 1;
+                }
+                long position = Long.parseLong(line(data, tabs[0] + 1, tabs[1]));
+                int refCode = tabs[2] - tabs[1] == 2 ? CapiceScoreIndex.baseCode(data[tabs[1] + 1]) : -1;
+                int altCode = tabs[3] - tabs[2] == 2 ? CapiceScoreIndex.baseCode(data[tabs[2] + 1]) : -1;
+                double score = Double.parseDouble(line(data, tabs[3] + 1, end));
+                if(refCode == -1 || altCode == -1 || refCode == altCode)
+                {
+                    throw new Exception("Ref and alt must be different single bases A, C, G or T at line: " + line(data, start, end));
+                }
+                if(score < 0.0 || score > 1.0)
+                {
+                    throw new Exception("CAPICE score outside 0-1 range: " + score + " at line: " + line(data, start, end));
+                }
+
+                /*
+                 * Start a new chromosome, or move to the next position
+                 */
+                if(currentChrom == null || !equals(data, start, tabs[0], currentChrom))
+                {
+                    finishChromosome(currentChrom);
+                    currentChrom = new byte[tabs[0] - start];
+                    System.arraycopy(data, start, currentChrom, 0, currentChrom.length);
+                    for(byte[] name : names)
+                    {
+                        if(equals(name, 0, name.length, currentChrom))
+                        {
+                            throw new Exception("Chromosome seen before, is your ordering correct? at line: " + line(data, start, end));
+                        }
+                    }
+                    chromMinPos = position;
+                    currentPos = position;
+                    currentEntry = CapiceScoreIndex.MISSING_ENTRY | (refCode + 1);
+                }
+                else if(position != currentPos)
+                {
+                    if(position < currentPos)
+                    {
+                        throw new Exception("Current pos precedes previous pos: " + position + " < " + currentPos + " at line: " + line(data, start, end));
+                    }
+                    writeEntry(currentEntry);
+                    for(long gap = currentPos + 1; gap < position; gap++)
+                    {
+                        writeEntry(0);
+                    }
+                    currentPos = position;
+                    currentEntry = CapiceScoreIndex.MISSING_ENTRY | (refCode + 1);
+                }
+                else if((currentEntry & 0xF) != refCode + 1)
+                {
+                    throw new Exception("Non-unique ref at line: " + line(data, start, end));
+                }
+
+                /*
+                 * Store the quantized score in the slot of the alt
+                 */
+                int shift = 48 - 16 * CapiceScoreIndex.slot(refCode, altCode);
+                currentEntry = (currentEntry & ~(0xFFFFL << shift)) | ((long) CapiceScoreIndex.quantize(score) << shift);
+
+                lineNr++;
+                if(lineNr % 10000000 == 0)
+                {
+                    System.out.println("Processed " + lineNr + " lines...");
+                }
+            }
+        }
+        finishChromosome(currentChrom);
+
+        /*
+         * Write the directory and point the header to it
+         */
+        long directoryOffset = written;
+        out.writeInt(names.size());
+        for(int i = 0; i < names.size(); i++)
+        {
+            out.writeShort(names.get(i).length);
+            out.write(names.get(i));
+            out.writeLong(ranges.get(i)[0]);
+            out.writeLong(ranges.get(i)[1]);
+            out.writeLong(ranges.get(i)[2]);
+        }
+        out.close();
+        try(RandomAccessFile raf = new RandomAccessFile(output, "rw"))
+        {
+            raf.seek(CapiceScoreIndex.MAGIC.length);
+            raf.writeLong(directoryOffset);
+        }
+
+        System.out.println("Done converting " + lineNr + " lines (excl. header)");
+        for(int i = 0; i < names.size(); i++)
+        {
+            System.out.println(new String(names.get(i), StandardCharsets.US_ASCII) + " -> " + ranges.get(i)[0] + " to " + ranges.get(i)[1]);
+        }
+    }
+
+    /**
+     * Write the last position of a chromosome and add it to the directory.
+     */
+    private void finishChromosome(byte[] chrom) throws IOException
+    {
+        if(chrom == null)
+        {
+            return;
+        }
+        writeEntry(currentEntry);
+        long entries = currentPos - chromMinPos + 1;
+        names.add(chrom);
+        ranges.add(new long[]{chromMinPos, currentPos, written - entries * CapiceScoreIndex.ENTRY_SIZE});
+    }
+
+    private void writeEntry(long entry) throws IOException
+    {
+        out.writeLong(entry);
+        written += CapiceScoreIndex.ENTRY_SIZE;
+    }
+
+    private static int indexOf(byte[] data, int start, int end)
+    {
+        for(int i = start; i < end; i++)
+        {
+            if(data[i] == '\t')
+            {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static boolean equals(byte[] data, int start, int end, byte[] value)
+    {
+        if(end - start != value.length)
+        {
+            return false;
+        }
+        for(int i = 0; i < value.length; i++)
+        {
+            if(data[start + i] != value[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String line(byte[] data, int start, int end)
+    {
+        return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+}
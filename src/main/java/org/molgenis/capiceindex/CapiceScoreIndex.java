@@ -0,0 +1,189 @@
+package org.molgenis.capiceindex;
+
+import org.molgenis.capice.CapiceScores;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Memory-mapped lookup of precomputed CAPICE SNV scores, in the binary
+ * format written by CapiceIndexBuilder. Each chromosome is a dense array
+ * with one 8-byte entry per position from the first to the last position
+ * in the precomputed file: three 16-bit quantized scores, one for each
+ * alternative base in A, C, G, T order skipping the reference base, and
+ * the reference base code. A lookup is a single read from the mapped file,
+ * which is shared through the page cache by all processes using it.
+ */
+public class CapiceScoreIndex implements CapiceScores, Closeable {
+
+    /*
+     * Static variables, shared with CapiceIndexBuilder
+     */
+    static final byte[] MAGIC = {'C', 'A', 'P', 'I', 'D', 'X', '0', '1'};
+    static final int HEADER_SIZE = 16;
+    static final int ENTRY_SIZE = 8;
+    static final int MISSING_SCORE = 0xFFFF;
+    static final double SCORE_SCALE = 65534.0;
+    static final long MISSING_ENTRY = 0xFFFFFFFFFFFF0000L;
+    private static final int SEGMENT_SHIFT = 27;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    /**
+     * Positions and mapped entries of one chromosome.
+     */
+    private static class Chromosome
+    {
+        byte[] name;
+        long minPos;
+        long maxPos;
+        MappedByteBuffer[] segments;
+    }
+
+    /*
+     * Class variables
+     */
+    private RandomAccessFile file;
+    private Chromosome[] chromosomes;
+
+    /**
+     * Open and map an index file.
+     */
+    public static CapiceScoreIndex open(File indexFile) throws IOException
+    {
+        CapiceScoreIndex index = new CapiceScoreIndex();
+        index.file = new RandomAccessFile(indexFile, "r");
+        FileChannel channel = index.file.getChannel();
+
+        /*
+         * Header with the location of the chromosome directory
+         */
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if(!Arrays.equals(magic, MAGIC))
+        {
+            throw new IOException("Not a CAPICE score index: " + indexFile.getAbsolutePath());
+        }
+        long directoryOffset = header.getLong();
+
+        /*
+         * Directory with name, positions and data offset per chromosome
+         */
+        channel.position(directoryOffset);
+        DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+        index.chromosomes = new Chromosome[in.readInt()];
+        for(int i = 0; i < index.chromosomes.length; i++)
+        {
+            Chromosome chromosome = new Chromosome();
+            chromosome.name = new byte[in.readUnsignedShort()];
+            in.readFully(chromosome.name);
+            chromosome.minPos = in.readLong();
+            chromosome.maxPos = in.readLong();
+            long dataOffset = in.readLong();
+            long entries = chromosome.maxPos - chromosome.minPos + 1;
+            chromosome.segments = new MappedByteBuffer[(int) ((entries + SEGMENT_MASK) >> SEGMENT_SHIFT)];
+            for(int s = 0; s < chromosome.segments.length; s++)
+            {
+                long first = (long) s << SEGMENT_SHIFT;
+                long size = Math.min(entries - first, 1L << SEGMENT_SHIFT) * ENTRY_SIZE;
+                chromosome.segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + first * ENTRY_SIZE, size);
+            }
+            index.chromosomes[i] = chromosome;
+        }
+        return index;
+    }
+
+    @Override
+    public double getScore(byte[] chrom, int chromStart, int chromEnd, long pos, byte ref, byte alt)
+    {
+        Chromosome chromosome = find(chrom, chromStart, chromEnd);
+        if(chromosome == null && chromEnd - chromStart > 3 && chrom[chromStart] == 'c' && chrom[chromStart + 1] == 'h' && chrom[chromStart + 2] == 'r')
+        {
+            chromosome = find(chrom, chromStart + 3, chromEnd);
+        }
+        if(chromosome == null || pos < chromosome.minPos || pos > chromosome.maxPos)
+        {
+            return Double.NaN;
+        }
+        long i = pos - chromosome.minPos;
+        long entry = chromosome.segments[(int) (i >> SEGMENT_SHIFT)].getLong((int) (i & SEGMENT_MASK) * ENTRY_SIZE);
+
+        /*
+         * The reference must match, the alternative must differ from it
+         */
+        int refCode = (int) (entry & 0xF) - 1;
+        int altCode = baseCode(alt);
+        if(refCode == -1 || refCode != baseCode(ref) || altCode == -1 || altCode == refCode)
+        {
+            return Double.NaN;
+        }
+        int score = (int) (entry >>> (48 - 16 * slot(refCode, altCode))) & 0xFFFF;
+        return score == MISSING_SCORE ? Double.NaN : score / SCORE_SCALE;
+    }
+
+    private Chromosome find(byte[] chrom, int chromStart, int chromEnd)
+    {
+        for(Chromosome chromosome : chromosomes)
+        {
+            if(chromosome.name.length != chromEnd - chromStart)
+            {
+                continue;
+            }
+            int i = 0;
+            while(i < chromosome.name.length && chromosome.name[i] == chrom[chromStart + i])
+            {
+                i++;
+            }
+            if(i == chromosome.name.length)
+            {
+                return chromosome;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Code of a base: A=0, C=1, G=2, T=3, or -1 for anything else.
+     */
+    public static int baseCode(byte base)
+    {
+        switch(base)
+        {
+            case 'A': case 'a': return 0;
+            case 'C': case 'c': return 1;
+            case 'G': case 'g': return 2;
+            case 'T': case 't': return 3;
+            default: return -1;
+        }
+    }
+
+    /**
+     * Which of the three scores of a position belongs to an alternative.
+     */
+    static int slot(int refCode, int altCode)
+    {
+        return altCode > refCode ? altCode - 1 : altCode;
+    }
+
+    /**
+     * Quantize a score in the 0-1 range to 16 bits.
+     */
+    static int quantize(double score)
+    {
+        return (int) Math.round(score * SCORE_SCALE);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        file.close();
+    }
+}
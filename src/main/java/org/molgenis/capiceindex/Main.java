@@ -0,0 +1,58 @@
+package org.molgenis.capiceindex;
+
+import java.io.File;
+
+/**
+ * Main class for converting a CAPICE precomputed scores file into a binary
+ * score index from command-line.
+ */
+public class Main
+{
+    public static void main(String args[]) throws Exception
+    {
+        /*
+         * Print help if incorrect number of arguments are given
+         */
+        if(args.length != 2)
+        {
+            System.out.println("Please supply 2 arguments:");
+            System.out.println("- File location of your CAPICE precomputed scores file.");
+            System.out.println("- Output file location of the score index. May not exist yet.");
+            System.exit(0);
+        }
+
+        /*
+         * Input precomputed scores file
+         */
+        File input = new File(args[0]);
+        if(!input.getName().endsWith(".gz"))
+        {
+            System.out.println("Input CAPICE precomputed scores file name '" + input.getName() + "' does not end in '.gz'. Are you sure this is a valid input?");
+            System.exit(0);
+        }
+        if(!input.exists())
+        {
+            System.out.println("Input CAPICE precomputed scores file not found at " + input.getAbsolutePath()+".");
+            System.exit(0);
+        }
+
+        /*
+         * Output score index
+         */
+        File output = new File(args[1]);
+        if(output.exists())
+        {
+            System.out.println("Output score index already exists at " + output.getAbsolutePath()+".");
+            System.exit(0);
+        }
+
+        /*
+         * Argument parsing done, start CapiceIndexBuilder
+         */
+        System.out.println("Arguments OK. Starting...");
+        long start = System.nanoTime();
+        CapiceIndexBuilder cib = new CapiceIndexBuilder(input, output);
+        cib.run();
+        System.out.println("...completed in " + ((System.nanoTime()-start)/1000000)+"ms.");
+    }
+}
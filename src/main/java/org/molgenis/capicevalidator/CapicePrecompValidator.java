@@ -1,6 +1,7 @@
 package org.molgenis.capicevalidator;
 
-import net.sf.samtools.util.BlockCompressedInputStream;
+import org.molgenis.capice.BgzfBlockReader;
+import org.molgenis.capice.BgzfLineReader;
 import org.molgenis.capice.Helper;
 import org.molgenis.genotype.Allele;
 import org.molgenis.vcf.VcfReader;
@@ -9,10 +10,17 @@ import org.molgenis.vcf.VcfSample;
 import org.molgenis.vcf.meta.VcfMeta;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.sql.SQLOutput;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Inflater;
 
 /**
  * CapicePrecompValidator tool.
@@ -24,11 +32,20 @@ public class CapicePrecompValidator {
      * Class variables
      */
     private File input;
+    private int threads = 1;
+
+    /*
+     * Validation state and whether the header has been passed
+     */
+    private ValidationState state = new ValidationState(false);
+    private boolean startOfDataFound = false;
 
     /*
      * Static variables
      */
     private static final String version = "v0.0.1";
+    private static final int CHUNK_SIZE = 1 << 22;
+    private static final int CHUNKS_IN_FLIGHT_PER_THREAD = 2;
 
     /*
      * Constructor
@@ -37,241 +54,212 @@ public class CapicePrecompValidator {
         this.input = input;
     }
 
+    /**
+     * Validate on this many threads. The file is split into chunks at BGZF
+     * block boundaries, chunks are validated in parallel, and merged in
+     * file order to report the same errors and summary as a serial run.
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
     /**
      * Run the CapicePrecompValidator after constructing.
      */
     void run() throws Exception
     {
+        if(threads > 1)
+        {
+            runParallel();
+            return;
+        }
 
         /*
-         * Initialize the VCF reader
-         */
-        BlockCompressedInputStream is = new BlockCompressedInputStream(input);
-
-        /*
-         * Keep track of which line we are at
-         */
-        long lineNr = 0;
-
-        /*
-         * Remember current and previous position, must find 3 lines for 1 pos,
-         * then next one must be +1 unless next chrom
-         */
-        long previousPos = -1;
-
-        /*
-         * Must find 3 lines exactly for each pos
-         */
-        int nrOfLinesForPos = 0;
-
-        /*
-         * Keep track of all chromosomes that have been seen and that we do
-         * not expect to see again (e.g. chrom 1 and 2 when we are at 3)
-         */
-        Set<String> staleChroms = new HashSet<>();
-
-        /*
-         * Keep track of the active chromosome.
-         * When this changes, make it stale.
-         * Also store min and max pos per chrom.
-         */
-        String previousChrom = null;
-        HashMap<String, Long> chromMinPos = new HashMap<>();
-        HashMap<String, Long> chromMaxPos = new HashMap<>();
-
-        /*
-         * Keep track of unique ref and alts found at specific position
-         */
-        Set<String> refs = new HashSet<>();
-        Set<String> alts = new HashSet<>();
-
-        /*
-         * Did we encounter first data line yet, starting with chr 1 ?
+         * Read lines into a reusable buffer
          */
-        boolean startOfDataFound = false;
-
-        while(true) {
-            String line = is.readLine();
-
-            /*
-             * Stop when there is no more content
-             */
-            if (line == null) {
-                break;
-            }
-
-            /*
-             * Loop over any lines that don't start with '1' until we find it
-             */
-            if (!startOfDataFound && line.startsWith("1")) {
-                startOfDataFound = true;
-            }
-            if (!startOfDataFound) {
-                continue;
-            }
-
-            /*
-             * Check if split length is what we expect
-             */
-            String[] split = line.split("\t", -1);
-            if (split.length != 5) {
-                throw new Exception(
-                        "Expected length == 5 but found " + split.length +
-                                " for line: " + line);
-            }
-
-            String currentChrom = split[0];
-            long currentPos = Long.parseLong(split[1]);
-            String ref = split[2];
-            String alt = split[3];
-            Double score = Double.parseDouble(split[4]);
-
-            /*
-             * Add first position on first encounter
-             */
-            if(currentChrom.equals("1") && !chromMinPos.containsKey("1"))
-            {
-                chromMinPos.put("1", currentPos);
-            }
-
-            /*
-             * Some sanity checks:
-             * CAPICE score is in expected range
-             * Position is positive
-             * Ref and alt are 1 char
-             */
-            if(score < 0.0 || score > 1.0)
-            {
-                throw new Exception("CAPICE score outside 0-1 range: " + score + " at line: " + line);
-            }
-            if(currentPos < 0){
-                throw new Exception("Position negative: " + currentPos + " at line: " + line);
-            }
-            if(ref.length() != 1)
-            {
-                throw new Exception("Ref not 1 char at line: " + line);
-            }
-            if(alt.length() != 1){
-                throw new Exception("Alt not 1 char at line: " + line);
-            }
-            if(!ref.equals("A") && !ref.equals("T") && !ref.equals("G") && !ref.equals("C"))
-            {
-                throw new Exception("Ref does not equal A, T, G or C at line:" +
-                        " " + line);
-            }
-            if(!alt.equals("A") && !alt.equals("T") && !alt.equals("G") && !alt.equals("C"))
+        try(BgzfLineReader reader = new BgzfLineReader(input))
+        {
+            while(reader.next())
             {
-                throw new Exception("Alt does not equal A, T, G or C at line:" +
-                        " " + line);
+                processLine(reader.getLineData(), reader.getLineStart(), reader.getLineEnd());
             }
+        }
+        state.finish();
+    }
 
-            /*
-             * Detect chromosome change. Check if new one was stale.
-             * Reset the position for further checks.
-             * Add current position as min for current chromosome and
-             * previous position as max for previous chromosome
-             */
-            if(previousChrom != null && !currentChrom.equals(previousChrom))
-            {
-                if(staleChroms.contains(currentChrom))
-                {
-                    throw new Exception("Current chrom seen before, is your " +
-                            "ordering correct? at line: " + line);
-                }
-                staleChroms.add(previousChrom);
-                chromMinPos.put(currentChrom, currentPos);
-                chromMaxPos.put(previousChrom, previousPos);
-
-                /*
-                 * Reset variables that keep track of things
-                 */
-                previousPos = -1;
-                refs = new HashSet<>();
-                alts = new HashSet<>();
-                nrOfLinesForPos = 0;
-            }
+    /**
+     * Validate a line on the main state, unless it is part of the header.
+     */
+    private void processLine(byte[] data, int start, int end) throws Exception
+    {
+        /*
+         * Loop over any lines that don't start with '1' until we find it
+         */
+        if (!startOfDataFound && end > start && data[start] == '1') {
+            startOfDataFound = true;
+        }
+        if (!startOfDataFound) {
+            return;
+        }
+        state.process(data, start, end);
+    }
 
-            /*
-             * Quick check if positions are at least not counting down
-             */
-            if(previousPos != -1 && currentPos < previousPos){
-                throw new Exception("Current pos precedes previous pos: " + currentPos + " < " + previousPos + " at line: " + line);
-            }
+    /**
+     * Inflated chunk of the file. The lines from just after the first
+     * newline up to and including the last one are validated on their own
+     * state; the part before and after are pieces of the lines it shares
+     * with the previous and next chunk.
+     */
+    private static class Chunk
+    {
+        byte[] data;
+        int firstNewline = -1;
+        int lastNewline = -1;
+        ValidationState state = new ValidationState(true);
+    }
 
-            /*
-             * Detect position change. Do all kinds of checks.
-             */
-            if(previousPos != -1 && currentPos != previousPos)
+    /**
+     * Validate chunks on worker threads while the main thread reads blocks
+     * and merges the validated chunks in file order.
+     */
+    private void runParallel() throws Exception
+    {
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<>();
+        ByteArrayOutputStream carry = new ByteArrayOutputStream();
+        try(BgzfBlockReader reader = new BgzfBlockReader(input))
+        {
+            boolean done = false;
+            while(!done || !inFlight.isEmpty())
             {
-
-                /*
-                 * Check if increment is 1
-                 * NOTE: due to gaps in reference genome, don't do this check
-                 */
-//                if(currentPos - previousPos != 1)
-//                {
-//                    throw new Exception("Position increment not 1 around " +
-//                            "line:" + line);
-//                }
-
                 /*
-                 * Check if previously, there were 3 lines for this position
+                 * Read blocks for the next chunk, or merge the oldest one
+                 * when enough are in flight
                  */
-                if(nrOfLinesForPos != 3)
+                if(!done && inFlight.size() < threads * CHUNKS_IN_FLIGHT_PER_THREAD)
                 {
-                    throw new Exception("Expecting 3 lines per unique " +
-                            "position but found " + nrOfLinesForPos + " " +
-                            "just before line: " + line);
+                    List<BgzfBlockReader.Block> blocks = new ArrayList<>();
+                    int size = 0;
+                    BgzfBlockReader.Block block;
+                    while(size < CHUNK_SIZE && (block = reader.next()) != null)
+                    {
+                        blocks.add(block);
+                        size += block.getUncompressedSize();
+                    }
+                    done = size < CHUNK_SIZE;
+                    int chunkSize = size;
+                    inFlight.add(workers.submit(() -> validate(blocks, chunkSize)));
+                    continue;
                 }
-
-                /*
-                 * Check if ref was unique
-                 */
-                if(refs.size() != 1)
+                Chunk chunk = inFlight.poll().get();
+                if(chunk.firstNewline == -1)
                 {
-                    throw new Exception("Non-unique ref around line " + line);
+                    carry.write(chunk.data, 0, chunk.data.length);
+                    continue;
                 }
-
-                /*
-                 * Check if there were 3 unique alts
-                 */
-                if(alts.size() != 3)
+                carry.write(chunk.data, 0, chunk.firstNewline);
+                byte[] line = carry.toByteArray();
+                processLine(line, 0, lineEnd(line, 0, line.length));
+                carry.reset();
+                if(startOfDataFound)
                 {
-                    throw new Exception("Expected 3 alts but found " + alts.size() + " around line " + line);
+                    state.merge(chunk.state);
                 }
-
-                /*
-                 * Reset variables that keep track of things
-                 */
-                refs = new HashSet<>();
-                alts = new HashSet<>();
-                nrOfLinesForPos = 0;
-            }
-
-            refs.add(ref);
-            alts.add(alt);
-            previousPos = currentPos;
-            previousChrom = currentChrom;
-            nrOfLinesForPos++;
-            lineNr++;
-
-            if(lineNr % 1000000 == 0)
-            {
-                System.out.println("Processed " + lineNr + " lines...");
+                else
+                {
+                    /*
+                     * Still in the header, the chunk was validated as if it
+                     * was not, so go over its lines again
+                     */
+                    for(int start = chunk.firstNewline + 1; start <= chunk.lastNewline; )
+                    {
+                        int end = indexOf(chunk.data, start, chunk.lastNewline + 1);
+                        processLine(chunk.data, start, lineEnd(chunk.data, start, end));
+                        start = end + 1;
+                    }
+                }
+                carry.write(chunk.data, chunk.lastNewline + 1, chunk.data.length - chunk.lastNewline - 1);
             }
         }
+        catch(ExecutionException e)
+        {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+        finally
+        {
+            workers.shutdownNow();
+        }
 
         /*
-         * Add last seen position on last chromosome
+         * The last line may not end with a newline
          */
-        chromMaxPos.put(previousChrom, previousPos);
+        if(carry.size() > 0)
+        {
+            byte[] last = carry.toByteArray();
+            processLine(last, 0, lineEnd(last, 0, last.length));
+        }
+        state.finish();
+    }
+
+    /**
+     * Inflate the blocks of a chunk and validate its complete lines.
+     */
+    private static Chunk validate(List<BgzfBlockReader.Block> blocks, int size) throws IOException
+    {
+        Chunk chunk = new Chunk();
+        chunk.data = new byte[size];
+        Inflater inflater = new Inflater(true);
+        int offset = 0;
+        for(BgzfBlockReader.Block block : blocks)
+        {
+            BgzfBlockReader.inflate(block, inflater, chunk.data, offset);
+            offset += block.getUncompressedSize();
+        }
+        inflater.end();
 
-        System.out.println("Done checking " + lineNr + " lines (excl. header)");
+        chunk.firstNewline = indexOf(chunk.data, 0, size);
+        if(chunk.firstNewline == size)
+        {
+            chunk.firstNewline = -1;
+            return chunk;
+        }
+        chunk.lastNewline = size - 1;
+        while(chunk.data[chunk.lastNewline] != '\n')
+        {
+            chunk.lastNewline--;
+        }
+        for(int start = chunk.firstNewline + 1; start <= chunk.lastNewline; )
+        {
+            int end = indexOf(chunk.data, start, chunk.lastNewline + 1);
+            try {
+                chunk.state.process(chunk.data, start, lineEnd(chunk.data, start, end));
+            } catch(Exception e) {
+                chunk.state.fail(e);
+                break;
+            }
+            start = end + 1;
+        }
+        return chunk;
+    }
 
-        for(String chrom : chromMinPos.keySet())
+    private static int indexOf(byte[] data, int start, int end)
+    {
+        for(int i = start; i < end; i++)
         {
-            System.out.println(chrom + " -> " + chromMinPos.get(chrom) + " to " + chromMaxPos.get(chrom));
+            if(data[i] == '\n')
+            {
+                return i;
+            }
         }
+        return end;
+    }
 
+    /**
+     * End of a line without the carriage return of a Windows line ending.
+     */
+    private static int lineEnd(byte[] data, int start, int end)
+    {
+        return end > start && data[end - 1] == '\r' ? end - 1 : end;
     }
 }
@@ -5,7 +5,9 @@ import org.molgenis.capice.CapiceQuickFilter;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Main class for running CapiceQuickFilter from command-line.
@@ -14,20 +16,42 @@ public class Main
 {
     public static void main(String args[]) throws Exception
     {
+        /*
+         * Separate optional '--name=value' settings from the positional
+         * arguments, these may be given anywhere on the command-line
+         */
+        List<String> positional = new ArrayList<>();
+        Map<String, String> options = new HashMap<>();
+        for(String arg : args)
+        {
+            if(arg.startsWith("--"))
+            {
+                int eq = arg.indexOf('=');
+                options.put(eq == -1 ? arg.substring(2) : arg.substring(2, eq), eq == -1 ? "" : arg.substring(eq + 1));
+            }
+            else
+            {
+                positional.add(arg);
+            }
+        }
+
         /*
          * Print help if incorrect number of arguments are given
          */
-        if(args.length != 1)
+        if(positional.size() != 1)
         {
             System.out.println("Please supply 1 arguments:");
             System.out.println("- File location of your CAPICE precomputed scores file.");
+            System.out.println("Optional settings:");
+            System.out.println("- --threads=N : validate chunks of the file " +
+                    "on N threads (default 1).");
             System.exit(0);
         }
 
         /*
          * Input .VCF.GZ file
          */
-        File input = new File(args[0]);
+        File input = new File(positional.get(0));
         if(!input.getName().endsWith(".gz"))
         {
             System.out.println("Input CAPICE precomputed scores file name '" + input.getName() + "' does not end in '.gz'. Are you sure this is a valid input?");
@@ -39,12 +63,33 @@ public class Main
             System.exit(0);
         }
 
+        /*
+         * Number of threads
+         */
+        int threads = 1;
+        if(options.containsKey("threads"))
+        {
+            try {
+                threads = Integer.parseInt(options.get("threads"));
+            } catch(NumberFormatException e){
+                System.out.println("Number of threads is not a whole number: " + options.get("threads"));
+                System.exit(0);
+            }
+            if(threads < 1)
+            {
+                System.out.println("Number of threads must be 1 or more " +
+                        "instead of " + threads);
+                System.exit(0);
+            }
+        }
+
         /*
          * Argument parsing done, start CapicePrecompValidator
          */
         System.out.println("Arguments OK. Starting...");
         long start = System.nanoTime();
         CapicePrecompValidator cpv = new CapicePrecompValidator(input);
+        cpv.setThreads(threads);
         cpv.run();
         System.out.println("...completed in " + ((System.nanoTime()-start)/1000000)+"ms.");
     }
@@ -0,0 +1,632 @@
+package org.molgenis.capicevalidator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The checks of CapicePrecompValidator on the data lines of a precomputed
+ * CAPICE SNV file, and what they need to remember between lines.
+ *
+ * A state either validates the file from its first data line, or a chunk
+ * of lines taken from somewhere in the middle. A chunk does not know the
+ * lines before it, so it leaves the checks that need them to merge(): the
+ * position that is open at the start of the chunk, chromosomes that went
+ * stale before it, and the min/max positions of the chromosomes it enters.
+ * Merging the chunks in file order gives the same errors and summary as
+ * validating all lines on one state.
+ *
+ * Lines are validated in place on the bytes they were read into. Numbers
+ * are parsed without creating strings, bases are 2-bit codes and the refs
+ * and alts of a position are bitmasks, so a line that passes all checks
+ * allocates nothing. Strings are only made for a new chromosome and for
+ * error messages.
+ */
+class ValidationState {
+
+    /*
+     * Static variables
+     */
+    private static final long PROGRESS_INTERVAL = 1000000;
+    private static final int COLUMNS = 5;
+    private static final int MAX_FAST_DIGITS = 18;
+
+    /*
+     * Validating a chunk instead of the file from the start
+     */
+    private final boolean chunk;
+
+    /*
+     * Keep track of which line we are at
+     */
+    long lineNr = 0;
+
+    /*
+     * Remember current and previous position, must find 3 lines for 1 pos,
+     * then next one must be +1 unless next chrom
+     */
+    private long previousPos = -1;
+
+    /*
+     * Must find 3 lines exactly for each pos
+     */
+    private int nrOfLinesForPos = 0;
+
+    /*
+     * Keep track of all chromosomes that have been seen and that we do
+     * not expect to see again (e.g. chrom 1 and 2 when we are at 3)
+     */
+    private Set<String> staleChroms = new HashSet<>();
+
+    /*
+     * Keep track of the active chromosome.
+     * When this changes, make it stale.
+     * Also store min and max pos per chrom.
+     */
+    private String previousChrom = null;
+    private byte[] previousChromBytes = new byte[16];
+    private int previousChromLength = 0;
+    private HashMap<String, Long> chromMinPos = new HashMap<>();
+    private HashMap<String, Long> chromMaxPos = new HashMap<>();
+
+    /*
+     * Keep track of unique ref and alts found at specific position, one
+     * bit per base code
+     */
+    private int refs = 0;
+    private int alts = 0;
+
+    /*
+     * Column boundaries of the current line
+     */
+    private int[] tabs = new int[COLUMNS - 1];
+
+    /*
+     * Chunk only: the first line, the position group it opens (the head)
+     * and the line at which the head is closed by the next position, the
+     * chromosome changes, and the first error with its line in the chunk
+     */
+    private String firstLine;
+    private String firstChrom;
+    private long firstPos;
+    private boolean inHead;
+    private long headCloseIndex = -1;
+    private String headCloseLine;
+    private int headLines;
+    private int headRefs;
+    private int headAlts;
+    private List<ChromChange> chromChanges = new ArrayList<>();
+    private Exception error;
+    private long errorIndex;
+
+    /**
+     * A chromosome entered within a chunk, at this line of the chunk.
+     */
+    private static class ChromChange
+    {
+        final long index;
+        final String chrom;
+        final String line;
+
+        ChromChange(long index, String chrom, String line)
+        {
+            this.index = index;
+            this.chrom = chrom;
+            this.line = line;
+        }
+    }
+
+    /*
+     * Constructor
+     */
+    ValidationState(boolean chunk) {
+        this.chunk = chunk;
+    }
+
+    /**
+     * Validate the next data line, in data[start] to data[end] (exclusive).
+     */
+    void process(byte[] data, int start, int end) throws Exception
+    {
+        /*
+         * Check if split length is what we expect
+         */
+        int columns = 1;
+        for(int i = start; i < end; i++)
+        {
+            if(data[i] == '\t')
+            {
+                if(columns < COLUMNS)
+                {
+                    tabs[columns - 1] = i;
+                }
+                columns++;
+            }
+        }
+        if (columns != COLUMNS) {
+            throw new Exception(
+                    "Expected length == 5 but found " + columns +
+                            " for line: " + text(data, start, end));
+        }
+
+        int chromEnd = tabs[0];
+        long currentPos = parseLong(data, tabs[0] + 1, tabs[1]);
+        int refStart = tabs[1] + 1;
+        int refLength = tabs[2] - refStart;
+        int altStart = tabs[2] + 1;
+        int altLength = tabs[3] - altStart;
+        boolean scoreInRange = isUnitDecimal(data, tabs[3] + 1, end);
+        double score = scoreInRange ? 0.0 : Double.parseDouble(text(data, tabs[3] + 1, end));
+
+        /*
+         * Add first position on first encounter
+         */
+        boolean chrom1 = chromEnd - start == 1 && data[start] == '1';
+        if(chrom1 && !chromMinPos.containsKey("1"))
+        {
+            chromMinPos.put("1", currentPos);
+        }
+
+        /*
+         * Some sanity checks:
+         * CAPICE score is in expected range
+         * Position is positive
+         * Ref and alt are 1 char
+         */
+        if(!scoreInRange && (score < 0.0 || score > 1.0))
+        {
+            throw new Exception("CAPICE score outside 0-1 range: " + score + " at line: " + text(data, start, end));
+        }
+        if(currentPos < 0){
+            throw new Exception("Position negative: " + currentPos + " at line: " + text(data, start, end));
+        }
+        if(refLength != 1)
+        {
+            throw new Exception("Ref not 1 char at line: " + text(data, start, end));
+        }
+        if(altLength != 1){
+            throw new Exception("Alt not 1 char at line: " + text(data, start, end));
+        }
+        int ref = baseCode(data[refStart]);
+        int alt = baseCode(data[altStart]);
+        if(ref == -1)
+        {
+            throw new Exception("Ref does not equal A, T, G or C at line:" +
+                    " " + text(data, start, end));
+        }
+        if(alt == -1)
+        {
+            throw new Exception("Alt does not equal A, T, G or C at line:" +
+                    " " + text(data, start, end));
+        }
+
+        /*
+         * The first line of a chunk opens the head
+         */
+        if(chunk && previousChrom == null)
+        {
+            firstLine = text(data, start, end);
+            firstChrom = text(data, start, chromEnd);
+            firstPos = currentPos;
+            inHead = true;
+        }
+
+        /*
+         * Detect chromosome change. Check if new one was stale.
+         * Reset the position for further checks.
+         * Add current position as min for current chromosome and
+         * previous position as max for previous chromosome
+         */
+        boolean sameChrom = isPreviousChrom(data, start, chromEnd);
+        if(previousChrom != null && !sameChrom)
+        {
+            String currentChrom = text(data, start, chromEnd);
+            if(staleChroms.contains(currentChrom))
+            {
+                throw new Exception("Current chrom seen before, is your " +
+                        "ordering correct? at line: " + text(data, start, end));
+            }
+            staleChroms.add(previousChrom);
+            chromMinPos.put(currentChrom, currentPos);
+            chromMaxPos.put(previousChrom, previousPos);
+            if(chunk)
+            {
+                chromChanges.add(new ChromChange(lineNr, currentChrom, text(data, start, end)));
+                inHead = false;
+            }
+
+            /*
+             * Reset variables that keep track of things
+             */
+            previousPos = -1;
+            refs = 0;
+            alts = 0;
+            nrOfLinesForPos = 0;
+        }
+
+        /*
+         * Quick check if positions are at least not counting down
+         */
+        if(previousPos != -1 && currentPos < previousPos){
+            throw new Exception("Current pos precedes previous pos: " + currentPos + " < " + previousPos + " at line: " + text(data, start, end));
+        }
+
+        /*
+         * Detect position change. Do all kinds of checks, except for the
+         * head of a chunk, which may have lines in the previous chunk.
+         */
+        if(previousPos != -1 && currentPos != previousPos)
+        {
+            if(chunk && inHead)
+            {
+                headCloseIndex = lineNr;
+                headCloseLine = text(data, start, end);
+                headLines = nrOfLinesForPos;
+                headRefs = refs;
+                headAlts = alts;
+                inHead = false;
+            }
+            else if(nrOfLinesForPos != 3 || Integer.bitCount(refs) != 1 || Integer.bitCount(alts) != 3)
+            {
+                checkPosition(nrOfLinesForPos, refs, alts, text(data, start, end));
+            }
+
+            /*
+             * Reset variables that keep track of things
+             */
+            refs = 0;
+            alts = 0;
+            nrOfLinesForPos = 0;
+        }
+
+        refs |= 1 << ref;
+        alts |= 1 << alt;
+        previousPos = currentPos;
+        if(!sameChrom)
+        {
+            setPreviousChrom(data, start, chromEnd);
+        }
+        nrOfLinesForPos++;
+        lineNr++;
+
+        if(!chunk && lineNr % PROGRESS_INTERVAL == 0)
+        {
+            System.out.println("Processed " + lineNr + " lines...");
+        }
+    }
+
+    private boolean isPreviousChrom(byte[] data, int start, int end)
+    {
+        if(previousChrom == null || end - start != previousChromLength)
+        {
+            return false;
+        }
+        for(int i = 0; i < previousChromLength; i++)
+        {
+            if(data[start + i] != previousChromBytes[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setPreviousChrom(byte[] data, int start, int end)
+    {
+        previousChromLength = end - start;
+        if(previousChromLength > previousChromBytes.length)
+        {
+            previousChromBytes = new byte[previousChromLength];
+        }
+        System.arraycopy(data, start, previousChromBytes, 0, previousChromLength);
+        previousChrom = text(data, start, end);
+    }
+
+    /**
+     * Parse a position, falling back to Long.parseLong() for anything
+     * other than plain digits so that errors are the same.
+     */
+    private static long parseLong(byte[] data, int start, int end)
+    {
+        if(end > start && end - start <= MAX_FAST_DIGITS)
+        {
+            long value = 0;
+            int i = start;
+            while(i < end && data[i] >= '0' && data[i] <= '9')
+            {
+                value = value * 10 + (data[i] - '0');
+                i++;
+            }
+            if(i == end)
+            {
+                return value;
+            }
+        }
+        return Long.parseLong(text(data, start, end));
+    }
+
+    /**
+     * Whether a score is written as 0, 1, 0.ddd or 1.000, which are in the
+     * 0-1 range without parsing. Anything else is parsed.
+     */
+    private static boolean isUnitDecimal(byte[] data, int start, int end)
+    {
+        if(end == start || (data[start] != '0' && data[start] != '1'))
+        {
+            return false;
+        }
+        if(end == start + 1)
+        {
+            return true;
+        }
+        if(data[start + 1] != '.')
+        {
+            return false;
+        }
+        byte max = data[start] == '0' ? (byte) '9' : (byte) '0';
+        for(int i = start + 2; i < end; i++)
+        {
+            if(data[i] < '0' || data[i] > max)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Code of a base: A=0, C=1, G=2, T=3, or -1 for anything else.
+     */
+    private static int baseCode(byte base)
+    {
+        switch(base)
+        {
+            case 'A': return 0;
+            case 'C': return 1;
+            case 'G': return 2;
+            case 'T': return 3;
+            default: return -1;
+        }
+    }
+
+    private static String text(byte[] data, int start, int end)
+    {
+        return new String(data, start, end - start);
+    }
+
+    /**
+     * The checks on a position that is complete, done at the line of the
+     * next position.
+     */
+    private static void checkPosition(int nrOfLinesForPos, int refs, int alts, String line) throws Exception
+    {
+        /*
+         * Check if increment is 1
+         * NOTE: due to gaps in reference genome, don't do this check
+         */
+//        if(currentPos - previousPos != 1)
+//        {
+//            throw new Exception("Position increment not 1 around " +
+//                    "line:" + line);
+//        }
+
+        /*
+         * Check if previously, there were 3 lines for this position
+         */
+        if(nrOfLinesForPos != 3)
+        {
+            throw new Exception("Expecting 3 lines per unique " +
+                    "position but found " + nrOfLinesForPos + " " +
+                    "just before line: " + line);
+        }
+
+        /*
+         * Check if ref was unique
+         */
+        if(Integer.bitCount(refs) != 1)
+        {
+            throw new Exception("Non-unique ref around line " + line);
+        }
+
+        /*
+         * Check if there were 3 unique alts
+         */
+        if(Integer.bitCount(alts) != 3)
+        {
+            throw new Exception("Expected 3 alts but found " + Integer.bitCount(alts) + " around line " + line);
+        }
+    }
+
+    /**
+     * Stop validating a chunk at this error, which the serial run would
+     * throw unless the lines before the chunk cause an earlier one.
+     */
+    void fail(Exception e)
+    {
+        error = e;
+        errorIndex = lineNr;
+    }
+
+    /**
+     * Continue with the lines of a chunk validated on its own, which must
+     * directly follow the lines validated so far. Does the checks the chunk
+     * left open and throws the first error in file order.
+     */
+    void merge(ValidationState next) throws Exception
+    {
+        if(next.lineNr == 0 && next.error == null)
+        {
+            return;
+        }
+        Exception mergeError = null;
+        long mergeErrorIndex = Long.MAX_VALUE;
+
+        /*
+         * An error on the first line precedes all checks against the
+         * lines before it
+         */
+        if(next.errorIndex == 0 && next.error != null)
+        {
+            throw next.error;
+        }
+
+        /*
+         * First line: a chromosome change, or a position that continues
+         * the open one or follows it
+         */
+        boolean chromChange = !next.firstChrom.equals(previousChrom);
+        boolean continued = false;
+        if(chromChange)
+        {
+            if(staleChroms.contains(next.firstChrom))
+            {
+                mergeError = new Exception("Current chrom seen before, is your " +
+                        "ordering correct? at line: " + next.firstLine);
+                mergeErrorIndex = 0;
+            }
+        }
+        else if(next.firstPos < previousPos)
+        {
+            mergeError = new Exception("Current pos precedes previous pos: " + next.firstPos + " < " + previousPos + " at line: " + next.firstLine);
+            mergeErrorIndex = 0;
+        }
+        else if(next.firstPos != previousPos)
+        {
+            try {
+                checkPosition(nrOfLinesForPos, refs, alts, next.firstLine);
+            } catch(Exception e) {
+                mergeError = e;
+                mergeErrorIndex = 0;
+            }
+        }
+        else
+        {
+            continued = true;
+        }
+
+        /*
+         * The head, possibly with the lines of the open position, is
+         * complete at the next position in the chunk
+         */
+        int lines = next.inHead ? next.nrOfLinesForPos : next.headLines;
+        int groupRefs = next.inHead ? next.refs : next.headRefs;
+        int groupAlts = next.inHead ? next.alts : next.headAlts;
+        if(continued)
+        {
+            lines += nrOfLinesForPos;
+            groupRefs |= refs;
+            groupAlts |= alts;
+        }
+        if(mergeError == null && next.headCloseIndex != -1)
+        {
+            try {
+                checkPosition(lines, groupRefs, groupAlts, next.headCloseLine);
+            } catch(Exception e) {
+                mergeError = e;
+                mergeErrorIndex = next.headCloseIndex;
+            }
+        }
+
+        /*
+         * Chromosomes entered in the chunk that went stale before it
+         */
+        for(ChromChange change : next.chromChanges)
+        {
+            if(change.index >= mergeErrorIndex)
+            {
+                break;
+            }
+            if(staleChroms.contains(change.chrom) || chromChange && change.chrom.equals(previousChrom))
+            {
+                mergeError = new Exception("Current chrom seen before, is your " +
+                        "ordering correct? at line: " + change.line);
+                mergeErrorIndex = change.index;
+            }
+        }
+
+        /*
+         * Throw the first error, after the progress the serial run would
+         * have printed before it
+         */
+        if(next.error != null && next.errorIndex <= mergeErrorIndex)
+        {
+            mergeError = next.error;
+            mergeErrorIndex = next.errorIndex;
+        }
+        if(mergeError != null)
+        {
+            printProgress(lineNr + mergeErrorIndex);
+            throw mergeError;
+        }
+        printProgress(lineNr + next.lineNr);
+        lineNr += next.lineNr;
+
+        /*
+         * Take over the chromosomes, and the open position at the end
+         */
+        if(chromChange)
+        {
+            staleChroms.add(previousChrom);
+            chromMinPos.put(next.firstChrom, next.firstPos);
+            chromMaxPos.put(previousChrom, previousPos);
+        }
+        for(Map.Entry<String, Long> entry : next.chromMinPos.entrySet())
+        {
+            if(entry.getKey().equals("1") && next.firstChrom.equals("1"))
+            {
+                chromMinPos.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+            else
+            {
+                chromMinPos.put(entry.getKey(), entry.getValue());
+            }
+        }
+        chromMaxPos.putAll(next.chromMaxPos);
+        staleChroms.addAll(next.staleChroms);
+        if(next.inHead)
+        {
+            nrOfLinesForPos = lines;
+            refs = groupRefs;
+            alts = groupAlts;
+        }
+        else
+        {
+            nrOfLinesForPos = next.nrOfLinesForPos;
+            refs = next.refs;
+            alts = next.alts;
+        }
+        previousPos = next.previousPos;
+        previousChrom = next.previousChrom;
+        previousChromBytes = next.previousChromBytes;
+        previousChromLength = next.previousChromLength;
+    }
+
+    private void printProgress(long untilLineNr)
+    {
+        for(long n = (lineNr / PROGRESS_INTERVAL + 1) * PROGRESS_INTERVAL; n <= untilLineNr; n += PROGRESS_INTERVAL)
+        {
+            System.out.println("Processed " + n + " lines...");
+        }
+    }
+
+    /**
+     * Print the summary after the last line.
+     */
+    void finish()
+    {
+        /*
+         * Add last seen position on last chromosome
+         */
+        chromMaxPos.put(previousChrom, previousPos);
+
+        System.out.println("Done checking " + lineNr + " lines (excl. header)");
+
+        for(String chrom : chromMinPos.keySet())
+        {
+            System.out.println(chrom + " -> " + chromMinPos.get(chrom) + " to " + chromMaxPos.get(chrom));
+        }
+    }
+}